@@ -0,0 +1,337 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.ungoverned.oscar.util.DaemonThreadPool;
+import org.ungoverned.oscar.util.OscarConstants;
+
+/**
+ * This class calls the start and stop methods of bundle activators. If
+ * an activator timeout is configured, either for all bundles or by the
+ * <tt>Oscar-ActivatorTimeout</tt> header of a bundle, the methods are
+ * called on a bounded pool of activator threads, while the calling
+ * thread waits for at most the timeout; otherwise they are called on
+ * the calling thread. Either way the call is synchronous for the
+ * caller, which sees the activator's exception or a timeout exception.
+ * The calling thread holds the lock of the bundle, which it releases
+ * while it waits, so the activator can start, stop, or update its own
+ * bundle from any thread, as it can when it is called directly.
+ * <p>
+ * When an activator times out, a framework event of type <tt>ERROR</tt>
+ * is fired with an exception carrying the stack trace of the stuck
+ * activator thread, and the thread is interrupted. Since the activator
+ * may ignore the interrupt, the thread is abandoned and the pool gets
+ * an additional thread until the activator returns, so stuck activators
+ * do not use up the configured number of threads; each of them still
+ * holds on to its thread. Activators that start or stop other bundles
+ * do so on their activator thread, so nested activators are called
+ * directly and are covered by the timeout of the outer one.
+**/
+class ActivatorExecutor
+{
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // States of an activator call run on an activator thread.
+    private static final int CALL_RUNNING = 0;
+    private static final int CALL_DONE = 1;
+    private static final int CALL_ABANDONED = 2;
+
+    private Oscar m_oscar = null;
+    private int m_maxThreads = 0;
+    private long m_timeout = 0;
+    private ThreadPoolExecutor m_executor = null;
+    // The number of activator threads abandoned by timed out calls.
+    private int m_abandoned = 0;
+    // Set on activator threads while they call an activator.
+    private ThreadLocal m_activatorThread = new ThreadLocal();
+
+    /**
+     * Creates an activator executor.
+     *
+     * @param oscar the framework.
+     * @param maxThreads the maximum number of activator threads.
+     * @param timeout the activator timeout in milliseconds, unless a
+     *        bundle sets its own; activators are called on the calling
+     *        thread if it is not positive.
+    **/
+    ActivatorExecutor(Oscar oscar, int maxThreads, long timeout)
+    {
+        m_oscar = oscar;
+        m_maxThreads = Math.max(1, maxThreads);
+        m_timeout = timeout;
+    }
+
+    /**
+     * Calls the start method of a bundle's activator.
+     *
+     * @param bundle the bundle being started.
+     * @param activator the bundle's activator.
+     * @param context the bundle's context.
+     * @throws Exception if the activator fails or times out.
+    **/
+    void start(BundleImpl bundle, final BundleActivator activator,
+        final BundleContext context) throws Exception // package protected
+    {
+        call(bundle, "start", new Callable() {
+            public Object call() throws Exception
+            {
+                activator.start(context);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Calls the stop method of a bundle's activator.
+     *
+     * @param bundle the bundle being stopped.
+     * @param activator the bundle's activator.
+     * @param context the bundle's context.
+     * @throws Exception if the activator fails or times out.
+    **/
+    void stop(BundleImpl bundle, final BundleActivator activator,
+        final BundleContext context) throws Exception // package protected
+    {
+        call(bundle, "stop", new Callable() {
+            public Object call() throws Exception
+            {
+                activator.stop(context);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Shuts down the activator threads; activators that are still running
+     * are interrupted.
+    **/
+    synchronized void shutdown() // package protected
+    {
+        if (m_executor != null)
+        {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    private void call(final BundleImpl bundle, String action, final Callable task)
+        throws Exception
+    {
+        long timeout = getTimeout(bundle);
+        if ((timeout <= 0) || (m_activatorThread.get() != null))
+        {
+            task.call();
+            return;
+        }
+
+        final AtomicReference runner = new AtomicReference();
+        final AtomicInteger state = new AtomicInteger(CALL_RUNNING);
+        FutureTask future = new FutureTask(new Callable() {
+            public Object call() throws Exception
+            {
+                runner.set(Thread.currentThread());
+                m_activatorThread.set(Boolean.TRUE);
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    m_activatorThread.set(null);
+                    runner.set(null);
+                    if (!state.compareAndSet(CALL_RUNNING, CALL_DONE))
+                    {
+                        // The call timed out and its thread was replaced.
+                        setAbandoned(-1);
+                    }
+                }
+            }
+        }) {
+            protected void done()
+            {
+                // Wake up the caller waiting on the bundle's lock.
+                synchronized (bundle)
+                {
+                    bundle.notifyAll();
+                }
+            }
+        };
+        try
+        {
+            getExecutor().execute(future);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The executor was shut down concurrently.
+            task.call();
+            return;
+        }
+
+        try
+        {
+            // Wait on the bundle's lock, which releases it while waiting.
+            synchronized (bundle)
+            {
+                long deadline = System.nanoTime() + timeout * 1000000L;
+                long remaining = timeout;
+                while (!future.isDone() && (remaining > 0))
+                {
+                    bundle.wait(remaining);
+                    remaining = (deadline - System.nanoTime() + 999999L) / 1000000L;
+                }
+            }
+            // Throws a timeout exception if the activator is not done.
+            future.get(0, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof Exception)
+            {
+                throw (Exception) ex.getCause();
+            }
+            else if (ex.getCause() instanceof Error)
+            {
+                throw (Error) ex.getCause();
+            }
+            throw ex;
+        }
+        catch (InterruptedException ex)
+        {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BundleException("Interrupted while waiting for the activator "
+                + action + " of bundle " + bundle.getBundleId() + ".", ex);
+        }
+        catch (TimeoutException ex)
+        {
+            BundleException failure = null;
+            Thread thread = (Thread) runner.get();
+            if (thread == null)
+            {
+                failure = new BundleException("Activator " + action + " of bundle "
+                    + bundle.getBundleId() + " was not run within " + timeout
+                    + " ms; all activator threads are busy.");
+            }
+            else
+            {
+                Exception stuck = new Exception("Stack trace of activator thread \""
+                    + thread.getName() + "\".");
+                stuck.setStackTrace(thread.getStackTrace());
+                failure = new BundleException("Activator " + action + " of bundle "
+                    + bundle.getBundleId() + " timed out after " + timeout + " ms.",
+                    stuck);
+            }
+            future.cancel(true);
+            if ((thread != null) && state.compareAndSet(CALL_RUNNING, CALL_ABANDONED))
+            {
+                setAbandoned(1);
+            }
+            m_oscar.fireFrameworkEvent(FrameworkEvent.ERROR, bundle, failure);
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the activator timeout of a bundle, which is the value of
+     * its <tt>Oscar-ActivatorTimeout</tt> header if it has a valid one.
+    **/
+    private long getTimeout(BundleImpl bundle)
+    {
+        String value = bundle.getInfo().getHeader(OscarConstants.ACTIVATOR_TIMEOUT_HEADER);
+        if (value != null)
+        {
+            try
+            {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                Oscar.error("ActivatorExecutor: Invalid activator timeout of bundle "
+                    + bundle.getBundleId() + ": " + value);
+            }
+        }
+        return m_timeout;
+    }
+
+    /**
+     * Adjusts the number of abandoned activator threads and resizes the
+     * pool, so that the configured number of threads remains available.
+    **/
+    private synchronized void setAbandoned(int delta)
+    {
+        m_abandoned += delta;
+        if (m_executor == null)
+        {
+            return;
+        }
+        int size = m_maxThreads + m_abandoned;
+        if (delta > 0)
+        {
+            m_executor.setMaximumPoolSize(size);
+            m_executor.setCorePoolSize(size);
+        }
+        else
+        {
+            m_executor.setCorePoolSize(size);
+            m_executor.setMaximumPoolSize(size);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor()
+    {
+        if (m_executor == null)
+        {
+            int size = m_maxThreads + m_abandoned;
+            m_executor = new DaemonThreadPool(
+                "Oscar Activator", size, KEEP_ALIVE_SECONDS);
+        }
+        return m_executor;
+    }
+}
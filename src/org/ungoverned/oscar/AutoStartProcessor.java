@@ -0,0 +1,355 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.ungoverned.oscar.util.DaemonThreadPool;
+
+/**
+ * This class installs and starts the bundles listed by the
+ * <tt>oscar.auto.start.&lt;n&gt;</tt> configuration properties, where
+ * <tt>&lt;n&gt;</tt> is the start level of the listed bundles, and
+ * restarts the persistently started bundles when the framework starts.
+ * All listed bundles are installed in parallel and then wired as one
+ * batch together with the bundles installed before. The start levels
+ * are processed in ascending order, each level being completed before
+ * the next one begins; within a level, bundles are started in parallel
+ * as soon as the bundles exporting the packages they import from the
+ * same level are started. Bundles that import packages from each other
+ * are started one at a time in the order of their identifiers.
+ * <p>
+ * Bundles that cannot be installed or started are reported with a
+ * framework event of type <tt>ERROR</tt>; the remaining bundles are
+ * processed regardless.
+**/
+class AutoStartProcessor
+{
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private Oscar m_oscar = null;
+    private ThreadPoolExecutor m_executor = null;
+
+    // The tasks of the current start level, guarded by this object.
+    private List m_tasks = null;
+    // The number of unfinished tasks of the current start level.
+    private int m_unfinished = 0;
+    // The number of submitted, but unfinished tasks.
+    private int m_running = 0;
+
+    AutoStartProcessor(Oscar oscar, int maxThreads) // package protected
+    {
+        m_oscar = oscar;
+        maxThreads = Math.max(1, maxThreads);
+        m_executor = new DaemonThreadPool(
+            "Oscar Auto Start", maxThreads, KEEP_ALIVE_SECONDS);
+    }
+
+    /**
+     * Installs the listed bundles in parallel and records their start
+     * levels. The bundles are assigned identifiers in the order in
+     * which they are listed.
+     *
+     * @param levels a map of start levels, as <tt>Integer</tt>s, to lists
+     *        of the locations of the bundles to install.
+     * @return a map of start levels to lists of the installed bundles.
+    **/
+    public SortedMap install(SortedMap levels)
+    {
+        Map futures = new HashMap();
+        for (Iterator i = levels.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            List locations = (List) entry.getValue();
+            List list = new ArrayList();
+            for (int j = 0; j < locations.size(); j++)
+            {
+                // Identifiers are reserved in list order, since the
+                // installations finish in random order.
+                String location = (String) locations.get(j);
+                list.add(m_executor.submit(new InstallTask(
+                    location, m_oscar.reserveBundleId(location),
+                    ((Integer) entry.getKey()).intValue())));
+            }
+            futures.put(entry.getKey(), list);
+        }
+
+        SortedMap installed = new TreeMap();
+        for (Iterator i = levels.keySet().iterator(); i.hasNext(); )
+        {
+            Object level = i.next();
+            List list = (List) futures.get(level);
+            List bundles = new ArrayList();
+            for (int j = 0; j < list.size(); j++)
+            {
+                try
+                {
+                    Bundle bundle = (Bundle) ((Future) list.get(j)).get();
+                    if ((bundle != null) && !bundles.contains(bundle))
+                    {
+                        bundles.add(bundle);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return installed;
+                }
+                catch (ExecutionException ex)
+                {
+                    // The tasks report their own errors.
+                    Oscar.error("AutoStartProcessor: Unexpected error.", ex.getCause());
+                }
+            }
+            installed.put(level, bundles);
+        }
+        return installed;
+    }
+
+    /**
+     * Starts bundles in ascending order of their start levels, using the
+     * package wiring of all installed bundles.
+     *
+     * @param levels a map of start levels, as <tt>Integer</tt>s, to lists
+     *        of the bundles to start.
+    **/
+    public void start(SortedMap levels)
+    {
+        PackageWiring wiring = m_oscar.getWiring();
+        try
+        {
+            for (Iterator i = levels.values().iterator(); i.hasNext(); )
+            {
+                startLevel((List) i.next(), wiring);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Releases the processor's threads.
+    **/
+    public void close()
+    {
+        m_executor.shutdown();
+    }
+
+    /**
+     * Starts the bundles of a start level and waits until all of them
+     * are started or failed to start.
+    **/
+    private synchronized void startLevel(List bundles, PackageWiring wiring)
+        throws InterruptedException
+    {
+        bundles = new ArrayList(bundles);
+        Collections.sort(bundles, new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                long id1 = ((Bundle) o1).getBundleId();
+                long id2 = ((Bundle) o2).getBundleId();
+                return (id1 < id2) ? -1 : ((id1 > id2) ? 1 : 0);
+            }
+        });
+
+        Map tasks = new HashMap();
+        m_tasks = new ArrayList();
+        for (int i = 0; i < bundles.size(); i++)
+        {
+            StartTask task = new StartTask((BundleImpl) bundles.get(i));
+            tasks.put(task.m_bundle, task);
+            m_tasks.add(task);
+        }
+
+        // Only bundles of this level are waited for, since the bundles
+        // of lower levels are already started.
+        for (int i = 0; i < m_tasks.size(); i++)
+        {
+            StartTask task = (StartTask) m_tasks.get(i);
+            Bundle[] providers = wiring.getProviders(task.m_bundle);
+            for (int j = 0; j < providers.length; j++)
+            {
+                StartTask provider = (StartTask) tasks.get(providers[j]);
+                if (provider != null)
+                {
+                    provider.m_dependents.add(task);
+                    task.m_remaining++;
+                }
+            }
+        }
+
+        m_unfinished = m_tasks.size();
+        for (int i = 0; i < m_tasks.size(); i++)
+        {
+            StartTask task = (StartTask) m_tasks.get(i);
+            if (task.m_remaining == 0)
+            {
+                submit(task);
+            }
+        }
+        while (m_unfinished > 0)
+        {
+            if (m_running == 0)
+            {
+                // The remaining bundles depend on each other, so start
+                // the one installed first.
+                for (int i = 0; i < m_tasks.size(); i++)
+                {
+                    StartTask task = (StartTask) m_tasks.get(i);
+                    if (!task.m_submitted)
+                    {
+                        submit(task);
+                        break;
+                    }
+                }
+            }
+            wait();
+        }
+        m_tasks = null;
+    }
+
+    private void submit(StartTask task)
+    {
+        task.m_submitted = true;
+        m_running++;
+        m_executor.execute(task);
+    }
+
+    private synchronized void finished(StartTask task)
+    {
+        m_running--;
+        m_unfinished--;
+        for (int i = 0; i < task.m_dependents.size(); i++)
+        {
+            StartTask dependent = (StartTask) task.m_dependents.get(i);
+            if ((--dependent.m_remaining == 0) && !dependent.m_submitted)
+            {
+                submit(dependent);
+            }
+        }
+        notifyAll();
+    }
+
+    private class InstallTask implements Callable
+    {
+        private String m_location = null;
+        private long m_id = 0;
+        private int m_level = 0;
+
+        InstallTask(String location, long id, int level)
+        {
+            m_location = location;
+            m_id = id;
+            m_level = level;
+        }
+
+        public Object call()
+        {
+            try
+            {
+                // Without a reserved identifier, the location is already
+                // installed or being installed by another task.
+                BundleImpl bundle = (BundleImpl) ((m_id < 0)
+                    ? m_oscar.installBundle(m_location, null)
+                    : m_oscar.installBundle(m_location, null, m_id));
+                m_oscar.setBundleStartLevel(bundle, m_level);
+                return bundle;
+            }
+            catch (BundleException ex)
+            {
+                m_oscar.fireFrameworkEvent(FrameworkEvent.ERROR, m_oscar.getBundle(0), ex);
+                return null;
+            }
+            catch (RuntimeException ex)
+            {
+                m_oscar.fireFrameworkEvent(FrameworkEvent.ERROR, m_oscar.getBundle(0), ex);
+                return null;
+            }
+        }
+    }
+
+    private class StartTask implements Runnable
+    {
+        private BundleImpl m_bundle = null;
+        // The tasks waiting for this task.
+        private List m_dependents = new ArrayList();
+        // The number of tasks this task waits for.
+        private int m_remaining = 0;
+        private boolean m_submitted = false;
+
+        StartTask(BundleImpl bundle)
+        {
+            m_bundle = bundle;
+        }
+
+        public void run()
+        {
+            try
+            {
+                m_oscar.startBundle(m_bundle);
+            }
+            catch (BundleException ex)
+            {
+                m_oscar.fireFrameworkEvent(FrameworkEvent.ERROR, m_bundle, ex);
+            }
+            catch (RuntimeException ex)
+            {
+                m_oscar.fireFrameworkEvent(FrameworkEvent.ERROR, m_bundle, ex);
+            }
+            finally
+            {
+                finished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * This class represents the stored state of a revision of an installed
+ * bundle, i.e., its identifier, its location, its persistent start
+ * settings, its directory in the bundle cache, and the JAR file of the
+ * revision, which is stored by the bundle cache under its digest. The
+ * manifest is only read when the headers are first
+ * needed, so that archives can be restored from the cache index without
+ * opening their JAR files.
+**/
+class BundleArchive
+{
+    private long m_id = -1;
+    private String m_location = null;
+    private File m_dir = null;
+    private volatile File m_file = null;
+    private int m_revision = 0;
+    private byte[] m_digest = null;
+    private volatile boolean m_started = false;
+    private volatile int m_startLevel = 1;
+    private Dictionary m_headers = null;
+
+    public BundleArchive(long id, String location, File dir)
+    {
+        m_id = id;
+        m_location = location;
+        m_dir = dir;
+    }
+
+    /**
+     * Creates the archive of a new revision of a bundle, which has the
+     * same persistent start settings as the current revision.
+     *
+     * @param archive the archive of the current revision.
+     * @param revision the number of the new revision.
+    **/
+    BundleArchive(BundleArchive archive, int revision) // package protected
+    {
+        this(archive.m_id, archive.m_location, archive.m_dir);
+        m_revision = revision;
+        m_started = archive.m_started;
+        m_startLevel = archive.m_startLevel;
+    }
+
+    BundleArchive(File dir, BundleCacheIndex.Entry entry) // package protected
+    {
+        this(entry.m_id, entry.m_location, dir);
+        m_revision = entry.m_revision;
+        m_digest = entry.m_digest;
+        m_started = entry.m_started;
+        m_startLevel = entry.m_startLevel;
+    }
+
+    public long getId()
+    {
+        return m_id;
+    }
+
+    public String getLocation()
+    {
+        return m_location;
+    }
+
+    public File getDirectory()
+    {
+        return m_dir;
+    }
+
+    public int getRevision()
+    {
+        return m_revision;
+    }
+
+    /**
+     * Returns whether the bundle is persistently started, i.e., whether
+     * it is started again when the framework is restarted.
+    **/
+    public boolean isStarted()
+    {
+        return m_started;
+    }
+
+    void setStarted(boolean started) // package protected
+    {
+        m_started = started;
+    }
+
+    public int getStartLevel()
+    {
+        return m_startLevel;
+    }
+
+    void setStartLevel(int level) // package protected
+    {
+        m_startLevel = level;
+    }
+
+    /**
+     * Returns the JAR file of the revision.
+     *
+     * @return the JAR file or <tt>null</tt> if the revision was released
+     *         by the bundle cache.
+    **/
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    void setFile(File file) // package protected
+    {
+        m_file = file;
+    }
+
+    /**
+     * Returns the bundle's data area, i.e., the directory returned to
+     * the bundle by <tt>BundleContext.getDataFile("")</tt>.
+     *
+     * @return the data directory, which is created if necessary.
+    **/
+    public File getDataDirectory()
+    {
+        File dataDir = new File(m_dir, BundleCache.DATA_DIRECTORY);
+        dataDir.mkdirs();
+        return dataDir;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the revision's JAR file, which is
+     * computed while the JAR file is written into the bundle cache.
+     *
+     * @return the digest.
+    **/
+    public byte[] getDigest()
+    {
+        return m_digest;
+    }
+
+    void setDigest(byte[] digest) // package protected
+    {
+        m_digest = digest;
+    }
+
+    /**
+     * Returns the main attributes of the revision's manifest, which are
+     * read the first time they are needed. Only the manifest entry is
+     * read from the JAR file.
+     *
+     * @return a dictionary of the manifest headers, which is empty if
+     *         the JAR file has no manifest.
+     * @throws IOException if the JAR file cannot be read.
+    **/
+    public synchronized Dictionary getManifestHeaders() throws IOException
+    {
+        if (m_headers == null)
+        {
+            File file = m_file;
+            if (file == null)
+            {
+                throw new IOException("The revision was released.");
+            }
+            Hashtable headers = new Hashtable();
+            JarFile jarFile = new JarFile(file, false);
+            try
+            {
+                Manifest manifest = jarFile.getManifest();
+                if (manifest != null)
+                {
+                    Attributes attrs = manifest.getMainAttributes();
+                    for (Iterator i = attrs.entrySet().iterator(); i.hasNext(); )
+                    {
+                        Map.Entry entry = (Map.Entry) i.next();
+                        headers.put(entry.getKey().toString(), entry.getValue());
+                    }
+                }
+            }
+            finally
+            {
+                jarFile.close();
+            }
+            m_headers = headers;
+        }
+        return m_headers;
+    }
+
+    BundleCacheIndex.Entry toEntry() // package protected
+    {
+        BundleCacheIndex.Entry entry = new BundleCacheIndex.Entry();
+        entry.m_id = m_id;
+        entry.m_location = m_location;
+        entry.m_started = m_started;
+        entry.m_startLevel = m_startLevel;
+        entry.m_revision = m_revision;
+        entry.m_digest = m_digest;
+        return entry;
+    }
+
+    public String toString()
+    {
+        return "[" + m_id + "] " + m_location;
+    }
+}
@@ -0,0 +1,675 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * This class stores installed bundles in a directory of the file system,
+ * so that they survive restarts of the framework. The JAR files of all
+ * bundle revisions are stored once per content in the <tt>archives</tt>
+ * directory, named after their SHA-256 digest, so that identical JAR
+ * files installed at several locations or retained across updates share
+ * a single file. Each bundle has a sub-directory named after its
+ * identifier, which contains the bundle's data area and files recording
+ * the bundle's location and current revision. The persistent state of
+ * all bundles is kept in the journaled <tt>BundleCacheIndex</tt>,
+ * from which the installed bundles are restored on restart; if the index
+ * is missing or corrupt, it is rebuilt from the bundle directories.
+ * <p>
+ * Stored JAR files are reference counted by the revisions using them,
+ * i.e., the current revisions of the installed bundles and the previous
+ * revisions of updated bundles, which are retained until their packages
+ * are refreshed. A JAR file is deleted when its last revision is
+ * released; JAR files not used by any installed bundle are also deleted
+ * when the cache is opened.
+ * <p>
+ * JAR files are written into the cache in a single pass, which also
+ * computes their SHA-256 digest: local files are mapped into memory and
+ * written from the mapping, and streams are copied through a direct
+ * buffer. A JAR file already stored is not flushed to disk a second
+ * time. Afterwards only the manifest entry is read from the stored JAR
+ * file.
+**/
+class BundleCache
+{
+    static final String BUNDLE_DIR_PREFIX = "bundle";
+    static final String ARCHIVE_DIRECTORY = "archives";
+    static final String ARCHIVE_SUFFIX = ".jar";
+    static final String DATA_DIRECTORY = "data";
+    static final String LOCATION_FILE = "location";
+    static final String REVISION_FILE = "revision";
+
+    // The size of the chunks in which local files are mapped.
+    private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // The copy buffer of each installing thread.
+    private static final ThreadLocal m_buffer = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private File m_dir = null;
+    private File m_archiveDir = null;
+    private BundleCacheIndex m_index = null;
+    // Maps the digests of stored JAR files, as hex strings, to the
+    // number of revisions using them.
+    private Map m_refCounts = new HashMap();
+
+    public BundleCache(File dir)
+    {
+        m_dir = dir;
+        m_archiveDir = new File(dir, ARCHIVE_DIRECTORY);
+    }
+
+    public File getDirectory()
+    {
+        return m_dir;
+    }
+
+    /**
+     * Opens the bundle cache and returns the archives of the bundles
+     * installed in previous sessions. Stored JAR files that are not
+     * used by any of them are deleted.
+     *
+     * @return an array of archives ordered by bundle identifier.
+     * @throws IOException if the cache cannot be opened.
+    **/
+    public synchronized BundleArchive[] open() throws IOException
+    {
+        if (!m_archiveDir.isDirectory() && !m_archiveDir.mkdirs())
+        {
+            throw new IOException("Unable to create bundle cache: " + m_dir);
+        }
+        File indexFile = new File(m_dir, BundleCacheIndex.INDEX_FILE);
+        if (!indexFile.exists())
+        {
+            // The cache is new or its index was lost.
+            m_index = recover(indexFile);
+        }
+        else
+        {
+            try
+            {
+                m_index = BundleCacheIndex.open(indexFile);
+            }
+            catch (IOException ex)
+            {
+                Oscar.error("BundleCache: Rebuilding bundle cache index.", ex);
+                m_index = recover(indexFile);
+            }
+        }
+
+        BundleCacheIndex.Entry[] entries = m_index.getEntries();
+        List archives = new ArrayList();
+        for (int i = 0; i < entries.length; i++)
+        {
+            BundleArchive archive = new BundleArchive(
+                getBundleDirectory(entries[i].m_id), entries[i]);
+            archive.setFile(getArchiveFile(entries[i].m_digest));
+            if (!archive.getFile().isFile())
+            {
+                Oscar.error("BundleCache: Discarding bundle " + archive.getId()
+                    + ", its JAR file is missing.");
+                m_index.remove(archive.getId());
+                delete(archive.getDirectory());
+                continue;
+            }
+            acquire(toHex(entries[i].m_digest));
+            archives.add(archive);
+        }
+
+        // Delete JAR files of removed revisions and incomplete writes.
+        File[] files = m_archiveDir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            String name = files[i].getName();
+            if (!name.endsWith(ARCHIVE_SUFFIX) || !m_refCounts.containsKey(
+                name.substring(0, name.length() - ARCHIVE_SUFFIX.length())))
+            {
+                files[i].delete();
+            }
+        }
+
+        return (BundleArchive[]) archives.toArray(new BundleArchive[archives.size()]);
+    }
+
+    /**
+     * Returns the identifier to assign to the next installed bundle,
+     * which is greater than the identifiers of all bundles ever stored
+     * in the cache.
+    **/
+    public long getNextId()
+    {
+        return m_index.getNextId();
+    }
+
+    /**
+     * Creates the archive of a newly installed bundle, which becomes the
+     * bundle's first revision. Any previous content of the bundle's
+     * directory is removed.
+     *
+     * @param id the identifier of the bundle.
+     * @param location the location of the bundle.
+     * @param is the stream from which to read the bundle's JAR file,
+     *        which is closed by this method, or <tt>null</tt> to read it
+     *        from the location.
+     * @param startLevel the start level of the bundle.
+     * @return the bundle archive.
+     * @throws IOException if the bundle cannot be stored.
+    **/
+    public BundleArchive create(long id, String location, InputStream is, int startLevel)
+        throws IOException
+    {
+        File dir = getBundleDirectory(id);
+        BundleArchive archive = new BundleArchive(id, location, dir);
+        archive.setStartLevel(startLevel);
+        try
+        {
+            delete(dir);
+            if (!dir.mkdirs())
+            {
+                throw new IOException("Unable to create bundle directory: " + dir);
+            }
+            writeRevision(archive, location, is);
+            writeFile(dir, LOCATION_FILE, location);
+            writeFile(dir, REVISION_FILE,
+                archive.getRevision() + " " + toHex(archive.getDigest()));
+
+            // Reading the manifest also verifies the JAR file.
+            archive.getManifestHeaders();
+            m_index.add(archive.toEntry());
+            return archive;
+        }
+        catch (IOException ex)
+        {
+            release(archive);
+            delete(dir);
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates the archive of a new revision of an installed bundle and
+     * makes it the bundle's current revision. The previous revision
+     * remains stored until it is released.
+     *
+     * @param archive the archive of the current revision.
+     * @param location the location from which to read the new revision
+     *        if no stream is supplied.
+     * @param is the stream from which to read the new revision's JAR
+     *        file, which is closed by this method, or <tt>null</tt>.
+     * @return the archive of the new revision.
+     * @throws IOException if the revision cannot be stored, in which
+     *         case the current revision is retained.
+    **/
+    public BundleArchive update(BundleArchive archive, String location, InputStream is)
+        throws IOException
+    {
+        BundleArchive next = new BundleArchive(archive, archive.getRevision() + 1);
+        try
+        {
+            writeRevision(next, location, is);
+            next.getManifestHeaders();
+            writeFile(next.getDirectory(), REVISION_FILE,
+                next.getRevision() + " " + toHex(next.getDigest()));
+            m_index.setRevision(next.getId(), next.getRevision(), next.getDigest());
+        }
+        catch (IOException ex)
+        {
+            release(next);
+            throw ex;
+        }
+        return next;
+    }
+
+    /**
+     * Releases a revision's reference to its stored JAR file, which is
+     * deleted if no other revision uses it. Releasing a revision that
+     * holds no reference has no effect.
+     *
+     * @param archive the archive of the revision.
+    **/
+    public void release(BundleArchive archive)
+    {
+        if (archive.getFile() == null)
+        {
+            return;
+        }
+        String hex = toHex(archive.getDigest());
+        synchronized (this)
+        {
+            Integer count = (Integer) m_refCounts.get(hex);
+            if (count == null)
+            {
+                return;
+            }
+            else if (count.intValue() > 1)
+            {
+                m_refCounts.put(hex, Integer.valueOf(count.intValue() - 1));
+                return;
+            }
+            m_refCounts.remove(hex);
+            archive.setFile(null);
+            // Delete the file while holding the lock, since otherwise
+            // a concurrent install of the same JAR file could store it
+            // again before it is deleted.
+            if (!getArchiveFile(archive.getDigest()).delete())
+            {
+                Oscar.error("BundleCache: Unable to delete JAR file " + hex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct JAR files stored in the cache.
+    **/
+    public synchronized int getArchiveCount()
+    {
+        return m_refCounts.size();
+    }
+
+    /**
+     * Removes the current revision of an uninstalled bundle.
+     *
+     * @param archive the archive to remove.
+    **/
+    public void remove(BundleArchive archive)
+    {
+        try
+        {
+            m_index.remove(archive.getId());
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("BundleCache: Unable to update index.", ex);
+        }
+        if (!delete(archive.getDirectory()))
+        {
+            Oscar.error("BundleCache: Unable to delete " + archive.getDirectory());
+        }
+        release(archive);
+    }
+
+    /**
+     * Records whether a bundle is persistently started.
+     *
+     * @param archive the archive of the bundle.
+     * @param started whether the bundle is started on restart.
+    **/
+    public void setStarted(BundleArchive archive, boolean started)
+    {
+        if (archive.isStarted() != started)
+        {
+            archive.setStarted(started);
+            try
+            {
+                m_index.setStarted(archive.getId(), started);
+            }
+            catch (IOException ex)
+            {
+                Oscar.error("BundleCache: Unable to update index.", ex);
+            }
+        }
+    }
+
+    /**
+     * Records the start level of a bundle.
+     *
+     * @param archive the archive of the bundle.
+     * @param level the start level.
+    **/
+    public void setStartLevel(BundleArchive archive, int level)
+    {
+        archive.setStartLevel(level);
+        try
+        {
+            m_index.setStartLevel(archive.getId(), level);
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("BundleCache: Unable to update index.", ex);
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (m_index != null)
+        {
+            m_index.close();
+        }
+    }
+
+    private File getBundleDirectory(long id)
+    {
+        return new File(m_dir, BUNDLE_DIR_PREFIX + id);
+    }
+
+    private File getArchiveFile(byte[] digest)
+    {
+        return new File(m_archiveDir, toHex(digest) + ARCHIVE_SUFFIX);
+    }
+
+    private synchronized void acquire(String hex)
+    {
+        Integer count = (Integer) m_refCounts.get(hex);
+        m_refCounts.put(hex, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
+    }
+
+    /**
+     * Rebuilds the index from the bundle directories; the bundles are
+     * not persistently started, since that state is only kept in the
+     * index.
+    **/
+    private BundleCacheIndex recover(File indexFile) throws IOException
+    {
+        List entries = new ArrayList();
+        long nextId = 1;
+        File[] dirs = m_dir.listFiles();
+        for (int i = 0; (dirs != null) && (i < dirs.length); i++)
+        {
+            String name = dirs[i].getName();
+            if (!dirs[i].isDirectory() || !name.startsWith(BUNDLE_DIR_PREFIX))
+            {
+                continue;
+            }
+            try
+            {
+                long id = Long.parseLong(name.substring(BUNDLE_DIR_PREFIX.length()));
+                StringTokenizer st = new StringTokenizer(readFile(dirs[i], REVISION_FILE));
+                BundleArchive archive = new BundleArchive(new BundleArchive(
+                    id, readFile(dirs[i], LOCATION_FILE), dirs[i]),
+                    Integer.parseInt(st.nextToken()));
+                archive.setDigest(fromHex(st.nextToken()));
+                entries.add(archive.toEntry());
+                nextId = Math.max(nextId, id + 1);
+            }
+            catch (Exception ex)
+            {
+                Oscar.error("BundleCache: Discarding invalid bundle directory " + dirs[i], ex);
+                delete(dirs[i]);
+            }
+        }
+        return BundleCacheIndex.create(indexFile, (BundleCacheIndex.Entry[])
+            entries.toArray(new BundleCacheIndex.Entry[entries.size()]), nextId);
+    }
+
+    /**
+     * Writes the JAR file of a revision into the archive directory,
+     * unless a JAR file with the same content is already stored, and
+     * acquires a reference to it for the revision.
+    **/
+    private void writeRevision(BundleArchive archive, String location, InputStream is)
+        throws IOException
+    {
+        MessageDigest md = createDigest();
+        File tmp = File.createTempFile("install", ".tmp", m_archiveDir);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try
+        {
+            FileChannel out = fos.getChannel();
+            if ((is == null) && location.startsWith("file:"))
+            {
+                FileInputStream fis = new FileInputStream(toFile(location));
+                try
+                {
+                    copy(fis.getChannel(), out, md);
+                }
+                finally
+                {
+                    fis.close();
+                }
+            }
+            else
+            {
+                if (is == null)
+                {
+                    is = new URL(location).openStream();
+                }
+                if (is instanceof FileInputStream)
+                {
+                    copy(((FileInputStream) is).getChannel(), out, md);
+                }
+                else
+                {
+                    copy(Channels.newChannel(is), out, md);
+                }
+            }
+
+            byte[] digest = md.digest();
+            String hex = toHex(digest);
+            File file = getArchiveFile(digest);
+            synchronized (this)
+            {
+                if (m_refCounts.containsKey(hex))
+                {
+                    acquire(hex);
+                    archive.setDigest(digest);
+                    archive.setFile(file);
+                    return;
+                }
+            }
+
+            // Store the new JAR file under its digest.
+            out.force(false);
+            fos.close();
+            synchronized (this)
+            {
+                if (!m_refCounts.containsKey(hex))
+                {
+                    Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    BundleCacheIndex.forceDirectory(m_archiveDir);
+                }
+                acquire(hex);
+            }
+            archive.setDigest(digest);
+            archive.setFile(file);
+        }
+        finally
+        {
+            fos.close();
+            tmp.delete();
+            if (is != null)
+            {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the remainder of a file from its current position by
+     * mapping it into memory, so that the digest is computed and the
+     * data written without copying it into the heap.
+    **/
+    private static void copy(FileChannel in, FileChannel out, MessageDigest md)
+        throws IOException
+    {
+        long size = in.size();
+        for (long pos = in.position(); pos < size; )
+        {
+            long length = Math.min(MAP_CHUNK_SIZE, size - pos);
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            md.update(buf.duplicate());
+            while (buf.hasRemaining())
+            {
+                out.write(buf);
+            }
+            pos += length;
+        }
+    }
+
+    private static void copy(ReadableByteChannel in, FileChannel out, MessageDigest md)
+        throws IOException
+    {
+        ByteBuffer buf = (ByteBuffer) m_buffer.get();
+        buf.clear();
+        while (in.read(buf) >= 0)
+        {
+            buf.flip();
+            md.update(buf.duplicate());
+            while (buf.hasRemaining())
+            {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static File toFile(String location) throws IOException
+    {
+        try
+        {
+            return new File(URLDecoder.decode(new URL(location).getPath(), "UTF-8"));
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            // Every Java platform supports UTF-8.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex)
+    {
+        if (hex.length() != 2 * BundleCacheIndex.DIGEST_LENGTH)
+        {
+            throw new IllegalArgumentException("Invalid digest: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File dir, String name, String content) throws IOException
+    {
+        Writer w = new OutputStreamWriter(
+            new FileOutputStream(new File(dir, name)), StandardCharsets.UTF_8);
+        try
+        {
+            w.write(content);
+        }
+        finally
+        {
+            w.close();
+        }
+    }
+
+    private static String readFile(File dir, String name) throws IOException
+    {
+        Reader r = new InputStreamReader(
+            new FileInputStream(new File(dir, name)), StandardCharsets.UTF_8);
+        try
+        {
+            StringBuffer sb = new StringBuffer();
+            char[] buf = new char[256];
+            for (int count = r.read(buf); count >= 0; count = r.read(buf))
+            {
+                sb.append(buf, 0, count);
+            }
+            return sb.toString();
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+
+    private static boolean delete(File file)
+    {
+        File[] children = file.listFiles();
+        for (int i = 0; (children != null) && (i < children.length); i++)
+        {
+            delete(children[i]);
+        }
+        return !file.exists() || file.delete();
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class maintains the index of the bundle cache, which holds a
+ * compact record for each installed bundle: its identifier, location,
+ * persistent start flag, start level, current revision, and the digest
+ * of its JAR file. The framework reconstructs its installed bundles from
+ * the index on restart without opening any bundle JAR file.
+ * <p>
+ * The index is stored as a snapshot file, which is read through a
+ * memory mapping, and a <tt>BundleCacheJournal</tt> recording the
+ * changes made since the snapshot was written. Each change is applied
+ * to the entries held in memory and appended to the journal, and the
+ * caller then waits until the journal is flushed, which concurrent
+ * changes share. When the journal grows beyond a threshold, and when
+ * the index is opened or closed, the entries are written into a new
+ * snapshot file, which atomically replaces the old one, and the journal
+ * is emptied. Replaying the journal over the snapshot is idempotent,
+ * since each record describes the resulting state rather than a delta.
+**/
+class BundleCacheIndex
+{
+    static final String INDEX_FILE = "bundles.idx";
+
+    private static final int MAGIC = 0x4f534349;
+    private static final int VERSION = 2;
+    // The journal size at which the snapshot is rewritten.
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    // Header: magic, version, next bundle identifier, end of records.
+    private static final int HDR_NEXT_ID = 8;
+    private static final int HDR_END = 16;
+    private static final int HEADER_SIZE = 20;
+
+    // Record: live flag, started flag, start level, bundle identifier,
+    // revision, content digest, and the length of the UTF-8 encoded
+    // location followed by the location.
+    private static final int REC_LIVE = 0;
+    private static final int REC_STARTED = 1;
+    private static final int REC_START_LEVEL = 2;
+    private static final int REC_ID = 6;
+    private static final int REC_REVISION = 14;
+    private static final int REC_DIGEST = 18;
+    static final int DIGEST_LENGTH = 32;
+    private static final int REC_LOCATION = REC_DIGEST + DIGEST_LENGTH;
+
+    // Journal record types.
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_STARTED = 3;
+    private static final byte OP_START_LEVEL = 4;
+    private static final byte OP_REVISION = 5;
+
+    private File m_file = null;
+    private BundleCacheJournal m_journal = null;
+    // Maps bundle identifiers to their entries.
+    private Map m_entries = new TreeMap();
+    private long m_nextId = 1;
+
+    private BundleCacheIndex(File file)
+    {
+        m_file = file;
+    }
+
+    /**
+     * Opens the index, creating an empty index if the snapshot file does
+     * not exist. Changes recorded in the journal are applied to the
+     * snapshot, which is then rewritten.
+     *
+     * @param file the snapshot file.
+     * @return the index.
+     * @throws IOException if the index cannot be opened or the snapshot
+     *         is corrupt.
+    **/
+    public static BundleCacheIndex open(File file) throws IOException
+    {
+        BundleCacheIndex index = new BundleCacheIndex(file);
+        if (file.exists())
+        {
+            index.load();
+        }
+        index.m_journal = new BundleCacheJournal(
+            new File(file.getParentFile(), BundleCacheJournal.JOURNAL_FILE));
+        try
+        {
+            List records = index.m_journal.read();
+            for (int i = 0; i < records.size(); i++)
+            {
+                index.apply(ByteBuffer.wrap((byte[]) records.get(i)));
+            }
+            if ((records.size() > 0) || !file.exists())
+            {
+                index.checkpoint();
+            }
+        }
+        catch (IOException ex)
+        {
+            index.m_journal.close();
+            throw ex;
+        }
+        catch (RuntimeException ex)
+        {
+            index.m_journal.close();
+            throw new IOException("Corrupt bundle cache journal: " + ex);
+        }
+        return index;
+    }
+
+    /**
+     * Creates a new index containing the supplied entries, replacing any
+     * existing snapshot and journal.
+     *
+     * @param file the snapshot file.
+     * @param entries the entries of the index.
+     * @param nextId the next bundle identifier.
+     * @return the index.
+     * @throws IOException if the index cannot be written.
+    **/
+    public static BundleCacheIndex create(File file, Entry[] entries, long nextId)
+        throws IOException
+    {
+        new File(file.getParentFile(), BundleCacheJournal.JOURNAL_FILE).delete();
+        BundleCacheIndex index = new BundleCacheIndex(file);
+        for (int i = 0; i < entries.length; i++)
+        {
+            index.m_entries.put(Long.valueOf(entries[i].m_id), entries[i]);
+            index.m_nextId = Math.max(index.m_nextId, entries[i].m_id + 1);
+        }
+        index.m_nextId = Math.max(index.m_nextId, nextId);
+        index.write();
+        return open(file);
+    }
+
+    private void load() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(m_file, "r");
+        try
+        {
+            MappedByteBuffer buf = raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if ((buf.capacity() < HEADER_SIZE)
+                || (buf.getInt(0) != MAGIC) || (buf.getInt(4) != VERSION))
+            {
+                throw new IOException("Invalid bundle cache index: " + m_file);
+            }
+            int end = buf.getInt(HDR_END);
+            if ((end < HEADER_SIZE) || (end > buf.capacity()))
+            {
+                throw new IOException("Corrupt bundle cache index: " + m_file);
+            }
+            m_nextId = buf.getLong(HDR_NEXT_ID);
+            buf.limit(end).position(HEADER_SIZE);
+            while (buf.hasRemaining())
+            {
+                if (buf.remaining() < REC_LOCATION + 2)
+                {
+                    throw new IOException("Corrupt bundle cache index: " + m_file);
+                }
+                int length = buf.getShort(buf.position() + REC_LOCATION);
+                if ((length < 0) || (buf.remaining() < REC_LOCATION + 2 + length))
+                {
+                    throw new IOException("Corrupt bundle cache index: " + m_file);
+                }
+                boolean live = (buf.get(buf.position() + REC_LIVE) != 0);
+                Entry entry = readEntry(buf);
+                if (live)
+                {
+                    m_entries.put(Long.valueOf(entry.m_id), entry);
+                }
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    public synchronized long getNextId()
+    {
+        return m_nextId;
+    }
+
+    /**
+     * Returns the entries of all bundles in the index.
+     *
+     * @return an array of copies of the entries ordered by bundle
+     *         identifier.
+    **/
+    public synchronized Entry[] getEntries()
+    {
+        Entry[] entries = new Entry[m_entries.size()];
+        int idx = 0;
+        for (Iterator i = m_entries.values().iterator(); i.hasNext(); )
+        {
+            entries[idx++] = ((Entry) i.next()).copy();
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the entry of a newly installed bundle.
+     *
+     * @param entry the entry to add.
+     * @throws IOException if the change cannot be recorded.
+    **/
+    public void add(Entry entry) throws IOException
+    {
+        byte[] location = entry.m_location.getBytes(StandardCharsets.UTF_8);
+        if (location.length > Short.MAX_VALUE)
+        {
+            throw new IOException("Bundle location too long: " + entry.m_location);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1 + REC_LOCATION + 2 + location.length);
+        buf.put(OP_ADD);
+        writeEntry(buf, entry, location);
+        record(buf.array());
+    }
+
+    /**
+     * Removes the entry of an uninstalled bundle.
+     *
+     * @param id the identifier of the bundle.
+     * @throws IOException if the change cannot be recorded.
+    **/
+    public void remove(long id) throws IOException
+    {
+        record(ByteBuffer.allocate(9).put(OP_REMOVE).putLong(id).array());
+    }
+
+    /**
+     * Records a new revision of a bundle.
+     *
+     * @param id the identifier of the bundle.
+     * @param revision the number of the revision.
+     * @param digest the digest of the revision's JAR file.
+     * @throws IOException if the change cannot be recorded.
+    **/
+    public void setRevision(long id, int revision, byte[] digest) throws IOException
+    {
+        record(ByteBuffer.allocate(13 + DIGEST_LENGTH)
+            .put(OP_REVISION).putLong(id).putInt(revision).put(digest).array());
+    }
+
+    public void setStarted(long id, boolean started) throws IOException
+    {
+        record(ByteBuffer.allocate(10)
+            .put(OP_STARTED).putLong(id).put((byte) (started ? 1 : 0)).array());
+    }
+
+    public void setStartLevel(long id, int level) throws IOException
+    {
+        record(ByteBuffer.allocate(13)
+            .put(OP_START_LEVEL).putLong(id).putInt(level).array());
+    }
+
+    /**
+     * Writes the entries into the snapshot and closes the journal.
+    **/
+    public synchronized void close()
+    {
+        try
+        {
+            checkpoint();
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("BundleCacheIndex: Unable to write index.", ex);
+        }
+        m_journal.close();
+    }
+
+    /**
+     * Appends a change to the journal, applies it to the entries, and
+     * waits until the journal is flushed.
+    **/
+    private void record(byte[] record) throws IOException
+    {
+        long seq = 0;
+        synchronized (this)
+        {
+            seq = m_journal.append(record);
+            apply(ByteBuffer.wrap(record));
+        }
+        m_journal.sync(seq);
+
+        if (m_journal.getSize() > CHECKPOINT_SIZE)
+        {
+            synchronized (this)
+            {
+                if (m_journal.getSize() > CHECKPOINT_SIZE)
+                {
+                    checkpoint();
+                }
+            }
+        }
+    }
+
+    private void apply(ByteBuffer buf)
+    {
+        byte op = buf.get();
+        if (op == OP_ADD)
+        {
+            Entry entry = readEntry(buf);
+            m_entries.put(Long.valueOf(entry.m_id), entry);
+            m_nextId = Math.max(m_nextId, entry.m_id + 1);
+            return;
+        }
+        Long id = Long.valueOf(buf.getLong());
+        if (op == OP_REMOVE)
+        {
+            m_entries.remove(id);
+            return;
+        }
+        Entry entry = (Entry) m_entries.get(id);
+        if (op == OP_STARTED)
+        {
+            boolean started = (buf.get() != 0);
+            if (entry != null)
+            {
+                entry.m_started = started;
+            }
+        }
+        else if (op == OP_START_LEVEL)
+        {
+            int level = buf.getInt();
+            if (entry != null)
+            {
+                entry.m_startLevel = level;
+            }
+        }
+        else if (op == OP_REVISION)
+        {
+            int revision = buf.getInt();
+            byte[] digest = new byte[DIGEST_LENGTH];
+            buf.get(digest);
+            if (entry != null)
+            {
+                entry.m_revision = revision;
+                entry.m_digest = digest;
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown journal record: " + op);
+        }
+    }
+
+    /**
+     * Writes the entries into the snapshot file and empties the journal.
+    **/
+    private synchronized void checkpoint() throws IOException
+    {
+        write();
+        if (m_journal != null)
+        {
+            m_journal.reset();
+        }
+    }
+
+    /**
+     * Writes the entries into a temporary file, which then atomically
+     * replaces the snapshot file. The directory is flushed afterwards,
+     * so that the journal is not emptied before the new snapshot file
+     * is durable.
+    **/
+    private void write() throws IOException
+    {
+        byte[][] locations = new byte[m_entries.size()][];
+        int size = HEADER_SIZE;
+        int idx = 0;
+        for (Iterator i = m_entries.values().iterator(); i.hasNext(); idx++)
+        {
+            locations[idx] = ((Entry) i.next()).m_location.getBytes(StandardCharsets.UTF_8);
+            size += REC_LOCATION + 2 + locations[idx].length;
+        }
+
+        File tmp = new File(m_file.getPath() + ".tmp");
+        tmp.delete();
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try
+        {
+            MappedByteBuffer buf = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC).putInt(VERSION).putLong(m_nextId).putInt(size);
+            idx = 0;
+            for (Iterator i = m_entries.values().iterator(); i.hasNext(); idx++)
+            {
+                writeEntry(buf, (Entry) i.next(), locations[idx]);
+            }
+            buf.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+        Files.move(tmp.toPath(), m_file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(m_file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Flushes a directory to disk, so that files renamed into it are
+     * durable.
+     *
+     * @param dir the directory to flush.
+    **/
+    static void forceDirectory(File dir) throws IOException // package protected
+    {
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        }
+        catch (IOException ex)
+        {
+            // Directories cannot be opened on all platforms.
+            return;
+        }
+        try
+        {
+            channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static void writeEntry(ByteBuffer buf, Entry entry, byte[] location)
+    {
+        buf.put((byte) 1);
+        buf.put((byte) (entry.m_started ? 1 : 0));
+        buf.putInt(entry.m_startLevel);
+        buf.putLong(entry.m_id);
+        buf.putInt(entry.m_revision);
+        buf.put(entry.m_digest, 0, DIGEST_LENGTH);
+        buf.putShort((short) location.length);
+        buf.put(location);
+    }
+
+    private static Entry readEntry(ByteBuffer buf)
+    {
+        Entry entry = new Entry();
+        buf.get();
+        entry.m_started = (buf.get() != 0);
+        entry.m_startLevel = buf.getInt();
+        entry.m_id = buf.getLong();
+        entry.m_revision = buf.getInt();
+        entry.m_digest = new byte[DIGEST_LENGTH];
+        buf.get(entry.m_digest);
+        byte[] location = new byte[buf.getShort()];
+        buf.get(location);
+        entry.m_location = new String(location, StandardCharsets.UTF_8);
+        return entry;
+    }
+
+    /**
+     * The persistent state of an installed bundle.
+    **/
+    static class Entry implements Comparable
+    {
+        public long m_id = -1;
+        public String m_location = null;
+        public boolean m_started = false;
+        public int m_startLevel = 1;
+        public int m_revision = 0;
+        public byte[] m_digest = new byte[DIGEST_LENGTH];
+
+        Entry copy()
+        {
+            Entry entry = new Entry();
+            entry.m_id = m_id;
+            entry.m_location = m_location;
+            entry.m_started = m_started;
+            entry.m_startLevel = m_startLevel;
+            entry.m_revision = m_revision;
+            entry.m_digest = m_digest;
+            return entry;
+        }
+
+        public int compareTo(Object obj)
+        {
+            long id = ((Entry) obj).m_id;
+            return (m_id < id) ? -1 : ((m_id > id) ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements the write-ahead journal of the bundle cache
+ * index, an append-only file of records describing the changes made to
+ * the index since it was last written. Each record is preceded by its
+ * length and checksum, so that a record torn by a crash is detected and
+ * discarded together with everything after it.
+ * <p>
+ * Appending a record only writes it to the file; a record is durable
+ * once <tt>sync()</tt> returns for it. Concurrent callers of
+ * <tt>sync()</tt> are committed as a group: one of them flushes the file
+ * for all records appended so far, while the others wait for that flush
+ * to cover their records, so that bursts of changes cost one flush
+ * rather than one per change.
+**/
+class BundleCacheJournal
+{
+    static final String JOURNAL_FILE = "bundles.journal";
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private File m_file = null;
+    private RandomAccessFile m_raf = null;
+    private FileChannel m_channel = null;
+    // The end of the last complete record.
+    private long m_size = 0;
+    // The sequence numbers of the last appended and flushed records.
+    private long m_appended = 0;
+    private long m_synced = 0;
+    // Whether a caller is currently flushing the file.
+    private boolean m_syncing = false;
+
+    /**
+     * Opens the journal file, creating it if it does not exist.
+     *
+     * @param file the journal file.
+     * @throws IOException if the file cannot be opened.
+    **/
+    public BundleCacheJournal(File file) throws IOException
+    {
+        m_file = file;
+        m_raf = new RandomAccessFile(file, "rw");
+        m_channel = m_raf.getChannel();
+    }
+
+    /**
+     * Reads the records of the journal. A torn or corrupt record ends
+     * the journal and is removed from the file along with any data
+     * following it.
+     *
+     * @return a list of the records as byte arrays.
+     * @throws IOException if the file cannot be read.
+    **/
+    public synchronized List read() throws IOException
+    {
+        List records = new ArrayList();
+        long fileSize = m_channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= fileSize)
+        {
+            header.clear();
+            readFully(header, pos);
+            int length = header.getInt(0);
+            if ((length < 0) || (pos + RECORD_HEADER_SIZE + length > fileSize))
+            {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, pos + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4))
+            {
+                break;
+            }
+            records.add(record.array());
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        if (pos < fileSize)
+        {
+            Oscar.error("BundleCacheJournal: Discarding "
+                + (fileSize - pos) + " bytes of torn journal records.");
+            m_channel.truncate(pos);
+        }
+        m_size = pos;
+        return records;
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param record the record.
+     * @return the sequence number of the record, which is passed to
+     *         <tt>sync()</tt> to make the record durable.
+     * @throws IOException if the record cannot be written.
+    **/
+    public synchronized long append(byte[] record) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        buf.putInt(record.length).putInt((int) crc.getValue()).put(record);
+        buf.flip();
+        long pos = m_size;
+        while (buf.hasRemaining())
+        {
+            pos += m_channel.write(buf, pos);
+        }
+        m_size = pos;
+        return ++m_appended;
+    }
+
+    /**
+     * Waits until the record with the supplied sequence number and all
+     * records appended before it are flushed to disk, flushing the file
+     * if no other caller is doing so.
+     *
+     * @param seq the sequence number of the record.
+     * @throws IOException if the file cannot be flushed.
+    **/
+    public void sync(long seq) throws IOException
+    {
+        long target = 0;
+        synchronized (this)
+        {
+            while (m_synced < seq)
+            {
+                if (!m_syncing)
+                {
+                    break;
+                }
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while syncing journal.");
+                }
+            }
+            if (m_synced >= seq)
+            {
+                return;
+            }
+            m_syncing = true;
+            target = m_appended;
+        }
+
+        boolean flushed = false;
+        try
+        {
+            m_channel.force(false);
+            flushed = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                m_syncing = false;
+                if (flushed)
+                {
+                    m_synced = Math.max(m_synced, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the journal in bytes.
+    **/
+    public synchronized long getSize()
+    {
+        return m_size;
+    }
+
+    /**
+     * Empties the journal after its records were written to the index,
+     * which makes all appended records durable.
+     *
+     * @throws IOException if the file cannot be truncated.
+    **/
+    public synchronized void reset() throws IOException
+    {
+        // Records appended later must not be followed by stale records
+        // after a crash.
+        m_channel.truncate(0);
+        m_channel.force(true);
+        m_size = 0;
+        m_synced = m_appended;
+        notifyAll();
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            m_raf.close();
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("BundleCacheJournal: Unable to close " + m_file, ex);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int count = m_channel.read(buf, pos);
+            if (count < 0)
+            {
+                throw new IOException("Unexpected end of journal: " + m_file);
+            }
+            pos += count;
+        }
+    }
+}
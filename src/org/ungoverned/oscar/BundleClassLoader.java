@@ -0,0 +1,239 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the class loader of an installed bundle. Classes of
+ * packages the bundle imports from other bundles according to the
+ * package wiring are loaded from the exporting bundles; all other
+ * classes are loaded from the framework's class path or the bundle's
+ * JAR file. Since the wiring changes when bundles are installed, the
+ * imports of the bundle are looked up when the first class is loaded
+ * and kept for the lifetime of the class loader.
+ * <p>
+ * Bundles with a lazy activation policy are activated when another
+ * bundle's class loader loads one of their classes, or when a class is
+ * loaded through <tt>BundleImpl.loadClass()</tt>; the bundle loading its
+ * own classes and class loads by the framework itself do not activate
+ * it. The activation is deferred until the calling thread has left all
+ * bundle class loaders, so it never runs while the thread holds one of
+ * their class loading locks.
+**/
+class BundleClassLoader extends URLClassLoader
+{
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    // The bundle class loads of the current thread.
+    private static final ThreadLocal m_loadState = new ThreadLocal();
+
+    private BundleImpl m_bundle = null;
+    private BundleInfo m_info = null;
+    private volatile Map m_imports = null;
+
+    BundleClassLoader(URL url, ClassLoader parent, BundleImpl bundle, BundleInfo info)
+    {
+        super(new URL[] { url }, parent);
+        m_bundle = bundle;
+        m_info = info;
+    }
+
+    protected Class loadClass(String name, boolean resolve)
+        throws ClassNotFoundException
+    {
+        LoadState state = getLoadState();
+        state.m_depth++;
+        try
+        {
+            return loadBundleClass(name, resolve);
+        }
+        finally
+        {
+            if (--state.m_depth == 0)
+            {
+                state.activatePending();
+            }
+        }
+    }
+
+    /**
+     * Loads a class on behalf of another bundle or of a
+     * <tt>BundleImpl.loadClass()</tt> call, which activates the bundle if
+     * it has a lazy activation policy and the class is its own.
+     *
+     * @param name the name of the class.
+     * @return the class.
+     * @throws ClassNotFoundException if the class cannot be found.
+    **/
+    Class loadClassAndActivate(String name) throws ClassNotFoundException // package protected
+    {
+        Class clazz = loadClass(name);
+        if (clazz.getClassLoader() == this)
+        {
+            getLoadState().activate(m_info, name);
+        }
+        return clazz;
+    }
+
+    /**
+     * Loads a class for the framework itself, which never activates a
+     * bundle, even if the class is loaded from a lazily started bundle.
+     *
+     * @param name the name of the class.
+     * @param loader the class loader to use.
+     * @return the class.
+     * @throws ClassNotFoundException if the class cannot be found.
+    **/
+    static Class loadClassQuietly(String name, ClassLoader loader) // package protected
+        throws ClassNotFoundException
+    {
+        LoadState state = getLoadState();
+        state.m_quiet++;
+        try
+        {
+            return Class.forName(name, false, loader);
+        }
+        finally
+        {
+            state.m_quiet--;
+        }
+    }
+
+    private static LoadState getLoadState()
+    {
+        LoadState state = (LoadState) m_loadState.get();
+        if (state == null)
+        {
+            state = new LoadState();
+            m_loadState.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * Loads a class from the bundle that exports its package to this
+     * bundle, or otherwise from the class path or the bundle itself.
+    **/
+    private Class loadBundleClass(String name, boolean resolve)
+        throws ClassNotFoundException
+    {
+        Class clazz = null;
+        BundleImpl exporter = getExporter(name);
+        if (exporter != null)
+        {
+            try
+            {
+                clazz = exporter.loadClass(name);
+            }
+            catch (ClassNotFoundException ex)
+            {
+                // The class may still be on the class path or in the
+                // bundle itself.
+            }
+            catch (IllegalStateException ex)
+            {
+                // The exporter was uninstalled and its revision released.
+            }
+        }
+        if (clazz == null)
+        {
+            clazz = super.loadClass(name, resolve);
+        }
+        return clazz;
+    }
+
+    private BundleImpl getExporter(String name)
+    {
+        int idx = name.lastIndexOf('.');
+        if ((idx < 0) || name.startsWith("java."))
+        {
+            return null;
+        }
+        Map imports = m_imports;
+        if (imports == null)
+        {
+            imports = m_bundle.getOscar().getWiring().getImports(m_bundle);
+            m_imports = imports;
+        }
+        Object exporter = imports.get(name.substring(0, idx));
+        return (exporter instanceof BundleImpl) ? (BundleImpl) exporter : null;
+    }
+
+    /**
+     * The bundle class loads of a thread and the activations they
+     * triggered, which are run once the thread leaves the outermost
+     * bundle class load.
+    **/
+    private static class LoadState
+    {
+        public int m_depth = 0;
+        public int m_quiet = 0;
+        private List m_pending = new ArrayList();
+
+        public void activate(BundleInfo info, String name)
+        {
+            if (m_quiet > 0)
+            {
+                return;
+            }
+            else if (m_depth > 0)
+            {
+                m_pending.add(info);
+                m_pending.add(name);
+                return;
+            }
+            info.classLoaded(name);
+        }
+
+        public void activatePending()
+        {
+            while (!m_pending.isEmpty() && (m_depth == 0))
+            {
+                BundleInfo info = (BundleInfo) m_pending.remove(0);
+                String name = (String) m_pending.remove(0);
+                info.classLoaded(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Dictionary;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+class BundleContextImpl implements OscarBundleContext
+{
+    private Oscar m_oscar = null;
+    private BundleImpl m_bundle = null;
+    private volatile boolean m_valid = true;
+
+    protected BundleContextImpl(Oscar oscar, BundleImpl bundle)
+    {
+        m_oscar = oscar;
+        m_bundle = bundle;
+    }
+
+    /**
+     * Invalidates the context when its bundle is stopped; all further
+     * calls throw an <tt>IllegalStateException</tt>.
+    **/
+    void invalidate() // package protected
+    {
+        m_valid = false;
+    }
+
+    private void checkValidity()
+    {
+        if (!m_valid)
+        {
+            throw new IllegalStateException("The bundle context is no longer valid.");
+        }
+    }
+
+    public String getProperty(String name)
+    {
+        checkValidity();
+        return m_oscar.getProperty(name);
+    }
+
+    public Bundle getBundle()
+    {
+        checkValidity();
+        return m_bundle;
+    }
+
+    public Filter createFilter(String expr)
+        throws InvalidSyntaxException
+    {
+        checkValidity();
+        return m_oscar.createFilter(expr);
+    }
+
+    public Bundle installBundle(String location)
+        throws BundleException
+    {
+        checkValidity();
+        return installBundle(location, null);
+    }
+
+    public Bundle installBundle(String location, InputStream is)
+        throws BundleException
+    {
+        checkValidity();
+        return m_oscar.installBundle(location, is);
+    }
+
+    public Bundle getBundle(long id)
+    {
+        checkValidity();
+        return m_oscar.getBundle(id);
+    }
+
+    public Bundle[] getBundles()
+    {
+        checkValidity();
+        return m_oscar.getBundles();
+    }
+
+    public void addBundleListener(BundleListener l)
+    {
+        checkValidity();
+        m_oscar.addBundleListener(m_bundle, l);
+    }
+
+    public void removeBundleListener(BundleListener l)
+    {
+        checkValidity();
+        m_oscar.removeBundleListener(l);
+    }
+
+    public void addServiceListener(ServiceListener l)
+    {
+        checkValidity();
+        try
+        {
+            addServiceListener(l, null);
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            // This will not happen since the filter is null, but
+            // necessary for the compiler.
+        }
+    }
+
+    public void addServiceListener(ServiceListener l, String s)
+        throws InvalidSyntaxException
+    {
+        checkValidity();
+        m_oscar.addServiceListener(m_bundle, l, s);
+    }
+
+    public void removeServiceListener(ServiceListener l)
+    {
+        checkValidity();
+        m_oscar.removeServiceListener(l);
+    }
+
+    public void addFrameworkListener(FrameworkListener l)
+    {
+        checkValidity();
+        m_oscar.addFrameworkListener(m_bundle, l);
+    }
+
+    public void removeFrameworkListener(FrameworkListener l)
+    {
+        checkValidity();
+        m_oscar.removeFrameworkListener(l);
+    }
+
+    public ServiceRegistration registerService(
+        String clazz, Object svcObj, Dictionary dict)
+    {
+        checkValidity();
+        return registerService(new String[] { clazz }, svcObj, dict);
+    }
+
+    public ServiceRegistration registerService(
+        String[] clazzes, Object svcObj, Dictionary dict)
+    {
+        checkValidity();
+        return m_oscar.registerService(m_bundle, clazzes, svcObj, dict);
+    }
+
+    public ServiceRegistration[] registerServices(
+        String[][] clazzes, Object[] svcObjs, Dictionary[] dicts)
+    {
+        checkValidity();
+        return m_oscar.registerServices(m_bundle, clazzes, svcObjs, dicts);
+    }
+
+    public ServiceRegistration registerLazyService(
+        String[] clazzes, ServiceSupplier supplier, Dictionary dict,
+        boolean bundleScope)
+    {
+        checkValidity();
+        return m_oscar.registerLazyService(
+            m_bundle, clazzes, supplier, dict, bundleScope);
+    }
+
+    public ServiceRegistration registerPooledService(
+        String[] clazzes, ServiceFactory factory, Dictionary dict, int maxSize)
+    {
+        checkValidity();
+        return m_oscar.registerPooledService(
+            m_bundle, clazzes, factory, dict, maxSize);
+    }
+
+    public void unregisterServices(ServiceRegistration[] regs)
+    {
+        checkValidity();
+        m_oscar.unregisterServices(m_bundle, regs);
+    }
+
+    public ServiceReference getServiceReference(String clazz)
+    {
+        checkValidity();
+        try
+        {
+            return ServiceRegistry.getBestReference(
+                getServiceReferences(clazz, null));
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            Oscar.error("BundleContextImpl: " + ex);
+        }
+        return null;
+    }
+
+    public ServiceReference[] getServiceReferences(String clazz, String filter)
+        throws InvalidSyntaxException
+    {
+        checkValidity();
+        return m_oscar.getServiceReferences(m_bundle, clazz, filter);
+    }
+
+    public ServiceReference getServiceReference(Class clazz)
+    {
+        checkValidity();
+        try
+        {
+            return ServiceRegistry.getBestReference(
+                getServiceReferences(clazz, null));
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            Oscar.error("BundleContextImpl: " + ex);
+        }
+        return null;
+    }
+
+    public ServiceReference[] getServiceReferences(Class clazz, String filter)
+        throws InvalidSyntaxException
+    {
+        checkValidity();
+        return m_oscar.getServiceReferences(m_bundle, clazz, filter);
+    }
+
+    public Object getService(ServiceReference ref)
+    {
+        checkValidity();
+        if (ref == null)
+        {
+            throw new NullPointerException("Specified service reference cannot be null.");
+        }
+        return m_oscar.getService(m_bundle, ref);
+    }
+
+    public boolean ungetService(ServiceReference ref)
+    {
+        checkValidity();
+        if (ref == null)
+        {
+            throw new NullPointerException("Specified service reference cannot be null.");
+        }
+        return m_oscar.ungetService(m_bundle, ref);
+    }
+
+    public File getDataFile(String s)
+    {
+        checkValidity();
+        return m_oscar.getDataFile(m_bundle, s);
+    }
+}
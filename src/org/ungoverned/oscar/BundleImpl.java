@@ -10,12 +10,14 @@ import org.osgi.framework.ServiceReference;
 
 public class BundleImpl implements Bundle {
     private Oscar m_oscar = null;
-    private BundleInfo m_info = null;
+    private volatile BundleInfo m_info = null;
+    private volatile BundleContextImpl m_context = null;
 
     protected BundleImpl(Oscar oscar, BundleInfo info)
     {
         m_oscar = oscar;
         m_info = info;
+        m_info.setBundle(this);
     }
 
     Oscar getOscar() // package protected
@@ -30,85 +32,111 @@ public class BundleImpl implements Bundle {
 
     void setInfo(BundleInfo info) // package protected
     {
+        info.setBundle(this);
         m_info = info;
     }
 
-	@Override
-	public int getState() {
-		// TODO Auto-generated method stub
-		return 0;
-	}
-
-	@Override
-	public void start() throws BundleException {
-		// TODO Auto-generated method stub
-
-	}
+    BundleContextImpl getContext() // package protected
+    {
+        return m_context;
+    }
 
-	@Override
-	public void stop() throws BundleException {
-		// TODO Auto-generated method stub
+    void setContext(BundleContextImpl context) // package protected
+    {
+        m_context = context;
+    }
 
-	}
+    /**
+     * Loads a class using the bundle's class loader, which activates the
+     * bundle if it has a lazy activation policy.
+     *
+     * @param name the name of the class to load.
+     * @return the loaded class.
+     * @throws ClassNotFoundException if the class cannot be found.
+    **/
+    Class loadClass(String name) throws ClassNotFoundException // package protected
+    {
+        ClassLoader loader = m_info.getClassLoader();
+        if (loader instanceof BundleClassLoader)
+        {
+            return ((BundleClassLoader) loader).loadClassAndActivate(name);
+        }
+        return loader.loadClass(name);
+    }
 
-	@Override
-	public void update() throws BundleException {
-		// TODO Auto-generated method stub
+    public int getState()
+    {
+        return m_info.getState();
+    }
 
-	}
+    public void start() throws BundleException
+    {
+        m_oscar.startBundle(this);
+    }
 
-	@Override
-	public void update(InputStream in) throws BundleException {
-		// TODO Auto-generated method stub
+    public void stop() throws BundleException
+    {
+        m_oscar.stopBundle(this);
+    }
 
-	}
+    public void update() throws BundleException
+    {
+        update(null);
+    }
 
-	@Override
-	public void uninstall() throws BundleException {
-		// TODO Auto-generated method stub
+    public void update(InputStream in) throws BundleException
+    {
+        m_oscar.updateBundle(this, in);
+    }
 
-	}
+    public void uninstall() throws BundleException
+    {
+        m_oscar.uninstallBundle(this);
+    }
 
-	@Override
-	public Dictionary getHeaders() {
-		// TODO Auto-generated method stub
-		return null;
-	}
+    public Dictionary getHeaders()
+    {
+        return m_info.getHeaders();
+    }
 
-	@Override
-	public long getBundleId() {
-		// TODO Auto-generated method stub
-		return 0;
-	}
+    public long getBundleId()
+    {
+        return m_info.getBundleId();
+    }
 
-	@Override
-	public String getLocation() {
-		// TODO Auto-generated method stub
-		return null;
-	}
+    public String getLocation()
+    {
+        return m_info.getLocation();
+    }
 
-	@Override
-	public ServiceReference[] getRegisteredServices() {
-		// TODO Auto-generated method stub
-		return null;
-	}
+    public ServiceReference[] getRegisteredServices()
+    {
+        return m_oscar.getBundleRegisteredServices(this);
+    }
 
-	@Override
-	public ServiceReference[] getServicesInUse() {
-		// TODO Auto-generated method stub
-		return null;
-	}
+    public ServiceReference[] getServicesInUse()
+    {
+        return m_oscar.getBundleServicesInUse(this);
+    }
 
-	@Override
-	public boolean hasPermission(Object permission) {
-		// TODO Auto-generated method stub
-		return false;
-	}
+    public boolean hasPermission(Object permission)
+    {
+        // There is no security manager support, so bundles have all
+        // permissions.
+        return true;
+    }
 
-	@Override
-	public URL getResource(String name) {
-		// TODO Auto-generated method stub
-		return null;
-	}
+    public URL getResource(String name)
+    {
+        if (getState() == Bundle.UNINSTALLED)
+        {
+            throw new IllegalStateException("The bundle is uninstalled.");
+        }
+        return m_info.getClassLoader().getResource(name);
+    }
 
+    public String toString()
+    {
+        return "[" + getBundleId() + "] " + getLocation();
+    }
 }
@@ -1,10 +1,352 @@
 package org.ungoverned.oscar;
 
-public class BundleInfo {
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URLClassLoader;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.ungoverned.oscar.util.HeaderParser;
+import org.ungoverned.oscar.util.OscarConstants;
+
+/**
+ * This class holds the state of a bundle: its archive, its lifecycle
+ * state, its class loader, and its activator. The system bundle has no
+ * archive; its classes are loaded by the framework's class loader.
+ * <p>
+ * The lifecycle state is changed with atomic transitions, so reading it
+ * never blocks; the framework holds the bundle's lock only while it runs
+ * the work of a transition, such as calling the activator. Transitions
+ * through <tt>STARTING</tt> or <tt>STOPPING</tt> also leave these states
+ * with an atomic transition, so they never overwrite a state set in the
+ * meantime, e.g., by an activator that stops its own bundle.
+ * <p>
+ * A bundle with a lazy activation policy that was started, but not yet
+ * activated, holds a pending activation, which is run by the first
+ * class load from the bundle that matches the policy. Class loads that
+ * happen while the activation is still in progress wait for it.
+**/
+public class BundleInfo
+{
+    private static final AtomicIntegerFieldUpdater m_stateUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(BundleInfo.class, "m_state");
+
+    private BundleArchive m_archive = null;
+    private BundleImpl m_bundle = null;
+    private Dictionary m_headers = null;
+    private volatile int m_state = Bundle.INSTALLED;
+    private ClassLoader m_classLoader = null;
+    private BundleActivator m_activator = null;
+    private AtomicReference m_lazyActivation = new AtomicReference();
+    private volatile Runnable m_lazyActivator = null;
+    private String[] m_lazyIncludes = null;
+    private String[] m_lazyExcludes = null;
+
+    /**
+     * Creates the bundle info of the system bundle.
+    **/
+    public BundleInfo()
+    {
+        m_headers = new Hashtable();
+    }
+
+    /**
+     * Creates the bundle info of an installed bundle. The manifest
+     * headers are read from the archive when they are first needed.
+     *
+     * @param archive the archive of the bundle.
+    **/
+    BundleInfo(BundleArchive archive)
+    {
+        m_archive = archive;
+    }
+
+    BundleArchive getArchive() // package protected
+    {
+        return m_archive;
+    }
+
+    void setBundle(BundleImpl bundle) // package protected
+    {
+        m_bundle = bundle;
+    }
+
+    private StartupProfiler getProfiler()
+    {
+        return (m_bundle == null) ? null : m_bundle.getOscar().getProfiler();
+    }
 
     public long getBundleId()
     {
-        return 0;
+        return (m_archive == null) ? 0 : m_archive.getId();
+    }
+
+    public String getLocation()
+    {
+        return (m_archive == null) ? null : m_archive.getLocation();
+    }
+
+    /**
+     * Returns the bundle's manifest headers.
+     *
+     * @return a dictionary of the manifest headers, which is empty if
+     *         the manifest cannot be read.
+    **/
+    public synchronized Dictionary getHeaders()
+    {
+        if (m_headers == null)
+        {
+            StartupProfiler profiler = getProfiler();
+            long start = (profiler == null) ? 0 : profiler.begin();
+            try
+            {
+                m_headers = m_archive.getManifestHeaders();
+                if (profiler != null)
+                {
+                    profiler.end("manifest", "manifest", m_bundle, start);
+                }
+            }
+            catch (IOException ex)
+            {
+                Oscar.error("BundleInfo: Unable to read manifest of bundle "
+                    + m_archive.getId() + ".", ex);
+                m_headers = new Hashtable();
+            }
+        }
+        return m_headers;
+    }
+
+    public String getHeader(String name)
+    {
+        return (String) getHeaders().get(name);
+    }
+
+    public int getState()
+    {
+        return m_state;
+    }
+
+    public void setState(int state)
+    {
+        m_state = state;
+    }
+
+    /**
+     * Atomically changes the state of the bundle if it is in one of the
+     * supplied states.
+     *
+     * @param from the bitwise or of the states the bundle may be in.
+     * @param to the new state.
+     * @return <tt>true</tt> if the state was changed, <tt>false</tt> if
+     *         the bundle is in none of the supplied states.
+    **/
+    boolean transition(int from, int to) // package protected
+    {
+        while (true)
+        {
+            int state = m_state;
+            if ((state & from) == 0)
+            {
+                return false;
+            }
+            else if (m_stateUpdater.compareAndSet(this, state, to))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the class loader of the bundle, which is created the first
+     * time it is needed. Bundles see their own classes, the classes of
+     * the framework's class path, and the classes of the packages they
+     * import from other bundles.
+     *
+     * @return the bundle's class loader.
+    **/
+    public synchronized ClassLoader getClassLoader()
+    {
+        if (m_classLoader == null)
+        {
+            if (m_archive == null)
+            {
+                m_classLoader = Oscar.class.getClassLoader();
+            }
+            else if (m_archive.getFile() == null)
+            {
+                throw new IllegalStateException("The bundle revision was released.");
+            }
+            else
+            {
+                StartupProfiler profiler = getProfiler();
+                long start = (profiler == null) ? 0 : profiler.begin();
+                try
+                {
+                    m_classLoader = new BundleClassLoader(
+                        m_archive.getFile().toURI().toURL(),
+                        Oscar.class.getClassLoader(), m_bundle, this);
+                }
+                catch (MalformedURLException ex)
+                {
+                    // This cannot happen for files.
+                    throw new IllegalStateException(ex.getMessage());
+                }
+                if (profiler != null)
+                {
+                    profiler.end("classloader", "classloader", m_bundle, start);
+                }
+            }
+        }
+        return m_classLoader;
+    }
+
+    /**
+     * Discards the bundle's class loader, so that a new one is created
+     * the next time it is needed.
+    **/
+    public synchronized void closeClassLoader()
+    {
+        if (m_classLoader instanceof URLClassLoader)
+        {
+            try
+            {
+                ((URLClassLoader) m_classLoader).close();
+            }
+            catch (IOException ex)
+            {
+                Oscar.error("BundleInfo: Unable to close class loader.", ex);
+            }
+        }
+        m_classLoader = null;
+    }
+
+    public BundleActivator getActivator()
+    {
+        return m_activator;
+    }
+
+    public void setActivator(BundleActivator activator)
+    {
+        m_activator = activator;
+    }
+
+    /**
+     * Returns whether the bundle declares the lazy activation policy.
+     *
+     * @return <tt>true</tt> if the bundle is activated on its first
+     *         class load.
+    **/
+    public boolean isLazy()
+    {
+        return getLazyClause() != null;
+    }
+
+    private HeaderParser.Clause getLazyClause()
+    {
+        try
+        {
+            HeaderParser.Clause[] clauses = HeaderParser.parse(
+                getHeader(OscarConstants.ACTIVATION_POLICY_HEADER));
+            for (int i = 0; i < clauses.length; i++)
+            {
+                if (clauses[i].getName().equals(OscarConstants.ACTIVATION_LAZY))
+                {
+                    return clauses[i];
+                }
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Oscar.error("BundleInfo: Invalid activation policy of bundle "
+                + getBundleId() + ".", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Sets the pending activation of a lazily started bundle.
+     *
+     * @param activation the activation to run on the first class load.
+    **/
+    void setLazyActivation(Runnable activation) // package protected
+    {
+        HeaderParser.Clause clause = getLazyClause();
+        if (clause != null)
+        {
+            m_lazyIncludes = (clause.getParameter("include") == null)
+                ? null : HeaderParser.parseList(clause.getParameter("include"));
+            m_lazyExcludes = HeaderParser.parseList(clause.getParameter("exclude"));
+        }
+        m_lazyActivator = activation;
+        m_lazyActivation.set(activation);
+    }
+
+    boolean isLazyActivationPending() // package protected
+    {
+        return m_lazyActivation.get() != null;
+    }
+
+    /**
+     * Removes the pending activation without running it. The activation
+     * itself also calls this method to claim the activation.
+     *
+     * @return <tt>true</tt> if an activation was pending.
+    **/
+    boolean cancelLazyActivation() // package protected
+    {
+        return m_lazyActivation.getAndSet(null) != null;
+    }
+
+    /**
+     * Called by the bundle's class loader after it loaded a class from
+     * the bundle for another bundle or a <tt>BundleImpl.loadClass()</tt>
+     * call. If an activation is pending or in progress and the
+     * class's package triggers it, the activation is run by the calling
+     * thread; it only activates the bundle once and makes the other
+     * threads wait until the bundle is activated.
+     *
+     * @param name the name of the loaded class.
+    **/
+    void classLoaded(String name) // package protected
+    {
+        Runnable activation = m_lazyActivator;
+        if ((activation != null)
+            && ((m_lazyActivation.get() != null) || (m_state == Bundle.STARTING))
+            && triggersActivation(name))
+        {
+            activation.run();
+        }
+    }
+
+    private boolean triggersActivation(String name)
+    {
+        int idx = name.lastIndexOf('.');
+        String pkg = (idx < 0) ? "" : name.substring(0, idx);
+        String[] includes = m_lazyIncludes;
+        if (includes != null)
+        {
+            boolean included = false;
+            for (int i = 0; !included && (i < includes.length); i++)
+            {
+                included = includes[i].equals(pkg);
+            }
+            if (!included)
+            {
+                return false;
+            }
+        }
+        String[] excludes = m_lazyExcludes;
+        for (int i = 0; (excludes != null) && (i < excludes.length); i++)
+        {
+            if (excludes[i].equals(pkg))
+            {
+                return false;
+            }
+        }
+        return true;
     }
-    
 }
@@ -0,0 +1,153 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * This class interns the filters created by the framework, so that all
+ * equivalent filters, i.e., filters with the same canonical filter
+ * string, share one compiled instance regardless of how they were
+ * spelled. Filters are also cached by the exact expression they were
+ * created from, so that repeatedly used expressions are not parsed
+ * again. Filters are only weakly referenced and are removed from the
+ * cache once they are no longer used.
+ * <p>
+ * The cache does not use a lock; expressions are parsed by the calling
+ * thread and if two threads create equivalent filters concurrently, the
+ * one that is published first is returned to both.
+**/
+class FilterCache
+{
+    // Maps canonical filter strings to filter references.
+    private ConcurrentMap m_filters = new ConcurrentHashMap();
+    // Maps filter expressions to filter references.
+    private ConcurrentMap m_exprs = new ConcurrentHashMap();
+    private ReferenceQueue m_queue = new ReferenceQueue();
+
+    /**
+     * Returns the filter for the supplied expression, which is shared
+     * with all equivalent filters.
+     *
+     * @param expr the filter expression.
+     * @return the shared filter.
+     * @throws InvalidSyntaxException if the expression is not valid.
+    **/
+    public OscarFilter getFilter(String expr)
+        throws InvalidSyntaxException
+    {
+        expunge();
+
+        FilterReference ref = (FilterReference) m_exprs.get(expr);
+        OscarFilter filter = (ref == null) ? null : (OscarFilter) ref.get();
+        if (filter != null)
+        {
+            return filter;
+        }
+
+        OscarFilter newFilter = new OscarFilter(expr);
+        filter = intern(m_filters, newFilter.toString(), newFilter);
+        return intern(m_exprs, expr, filter);
+    }
+
+    /**
+     * Returns the number of distinct compiled filters in use.
+     *
+     * @return the number of filters.
+    **/
+    public int size()
+    {
+        expunge();
+        return m_filters.size();
+    }
+
+    /**
+     * Maps the key to the filter unless it is already mapped to a
+     * filter that is still in use.
+     *
+     * @return the filter the key is mapped to.
+    **/
+    private OscarFilter intern(ConcurrentMap map, String key, OscarFilter filter)
+    {
+        FilterReference ref = new FilterReference(filter, key, map, m_queue);
+        while (true)
+        {
+            FilterReference old = (FilterReference) map.putIfAbsent(key, ref);
+            if (old == null)
+            {
+                return filter;
+            }
+            OscarFilter oldFilter = (OscarFilter) old.get();
+            if (oldFilter != null)
+            {
+                return oldFilter;
+            }
+            else if (map.replace(key, old, ref))
+            {
+                return filter;
+            }
+        }
+    }
+
+    private void expunge()
+    {
+        FilterReference ref;
+        while ((ref = (FilterReference) m_queue.poll()) != null)
+        {
+            // The key may already refer to a new filter.
+            ref.m_map.remove(ref.m_key, ref);
+        }
+    }
+
+    private static class FilterReference extends WeakReference
+    {
+        public final String m_key;
+        public final ConcurrentMap m_map;
+
+        public FilterReference(
+            OscarFilter filter, String key, ConcurrentMap map, ReferenceQueue queue)
+        {
+            super(filter, queue);
+            m_key = key;
+            m_map = map;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.Collection;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * A hook that can remove services from the result of service look ups.
+ * Find hooks are registered as services under the name of this
+ * interface; the framework calls all registered find hooks, in the order
+ * of their service ranking, once for each call to
+ * <tt>getServiceReferences()</tt> or <tt>getServiceReference()</tt>,
+ * after the registry has determined the matching services. Hooks can
+ * therefore restrict which services a bundle sees, e.g., to the services
+ * of the bundle's tenant, without affecting the cost of the look up
+ * itself.
+**/
+public interface FindHook
+{
+    /**
+     * Called when a bundle looks up services.
+     *
+     * @param bundle the bundle looking up the services.
+     * @param name the requested class name or <tt>null</tt>.
+     * @param filter the filter of the look up or <tt>null</tt>.
+     * @param references the references of the matching services; hooks
+     *        may remove references, but not add any.
+    **/
+    public void find(Bundle bundle, String name, String filter, Collection references);
+}
@@ -0,0 +1,119 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * This class is the service factory registered for lazy services; it
+ * creates the service object using a <tt>ServiceSupplier</tt> when the
+ * service is first requested. In singleton scope all bundles share one
+ * service object, which is constructed exactly once even if several
+ * bundles request the service concurrently; in bundle scope each bundle
+ * gets its own service object, which is discarded when the bundle
+ * releases the service.
+**/
+class LazyServiceFactory implements ServiceFactory
+{
+    private ServiceSupplier m_supplier = null;
+    private boolean m_bundleScope = false;
+    private String[] m_classNames = null;
+    // The shared service object in singleton scope.
+    private volatile Object m_svcObj = null;
+
+    public LazyServiceFactory(
+        ServiceSupplier supplier, String[] classNames, boolean bundleScope)
+    {
+        m_supplier = supplier;
+        m_classNames = classNames;
+        m_bundleScope = bundleScope;
+    }
+
+    public Object getService(Bundle bundle, ServiceRegistration reg)
+    {
+        if (m_bundleScope)
+        {
+            return create();
+        }
+
+        Object svcObj = m_svcObj;
+        if (svcObj == null)
+        {
+            synchronized (this)
+            {
+                svcObj = m_svcObj;
+                if (svcObj == null)
+                {
+                    svcObj = create();
+                    m_svcObj = svcObj;
+                }
+            }
+        }
+        return svcObj;
+    }
+
+    public void ungetService(Bundle bundle, ServiceRegistration reg, Object svcObj)
+    {
+        // The shared service object is kept until the service is
+        // unregistered, while bundle scoped objects are simply dropped.
+    }
+
+    private Object create()
+    {
+        Object svcObj = m_supplier.createService();
+        if (svcObj == null)
+        {
+            return null;
+        }
+
+        // Make sure that the service object is an instance of all
+        // service classes, which could not be checked at registration.
+        for (int i = 0; i < m_classNames.length; i++)
+        {
+            Class clazz = ServiceRegistry.loadClassUsingClass(
+                svcObj.getClass(), m_classNames[i]);
+            if ((clazz == null) || !clazz.isInstance(svcObj))
+            {
+                Oscar.error("LazyServiceFactory: Service object is not an instance of \""
+                    + m_classNames[i] + "\".");
+                return null;
+            }
+        }
+        return svcObj;
+    }
+}
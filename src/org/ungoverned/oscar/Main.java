@@ -35,9 +35,13 @@
 **/
 package org.ungoverned.oscar;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.ungoverned.oscar.util.OscarConstants;
 
 public class Main
 {
@@ -48,7 +52,16 @@ public class Main
         try
         {
             // Now create an instance of Oscar.
-            m_oscar = new Oscar();
+            m_oscar = new Oscar(loadProperties());
+
+            // Stop the bundles and store the framework's state when
+            // the virtual machine exits.
+            Runtime.getRuntime().addShutdownHook(new Thread("Oscar Shutdown Hook") {
+                public void run()
+                {
+                    m_oscar.shutdown();
+                }
+            });
         }
         catch (Exception ex)
         {
@@ -57,4 +70,33 @@ public class Main
             System.exit(-1);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the framework's configuration properties from the file named
+     * by the <tt>oscar.system.properties</tt> system property, or from
+     * <tt>system.properties</tt> in the current directory.
+     *
+     * @return the configuration properties, which are empty if the file
+     *         does not exist.
+     * @throws IOException if the file cannot be read.
+    **/
+    private static Properties loadProperties() throws IOException
+    {
+        Properties props = new Properties();
+        File file = new File(System.getProperty(
+            OscarConstants.SYSTEM_PROPERTIES_PROP, "system.properties"));
+        if (file.exists())
+        {
+            InputStream is = new FileInputStream(file);
+            try
+            {
+                props.load(is);
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        return props;
+    }
+}
@@ -5,9 +5,11 @@ import java.net.*;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.osgi.framework.*;
 import org.osgi.service.packageadmin.ExportedPackage;
+import org.ungoverned.oscar.component.ComponentRuntime;
 import org.ungoverned.oscar.util.*;
 
 public class Oscar {
@@ -20,17 +22,53 @@ public class Oscar {
 
     // List of event listeners.
     private transient OscarDispatchQueue m_dispatchQueue = null;
+    // Service listeners indexed by the service classes they listen to.
+    private transient ServiceListenerIndex m_serviceListeners = null;
+    // Find and event hooks registered as services.
+    private transient ServiceHooks m_serviceHooks = null;
+    // Shares one compiled instance among all equivalent filters.
+    private transient FilterCache m_filterCache = new FilterCache();
+    // Configuration properties passed into constructor.
+    private transient Properties m_config = null;
+    // Service registry.
+    private transient ServiceRegistry m_registry = null;
+    // Maps a bundle location to a bundle.
+    private transient Map m_installedBundleMap = null;
+    // Locations of the bundles being installed, guarded by the installed
+    // bundle map.
+    private transient Set m_installingLocations = null;
+    // Previous revisions of updated bundles, which are retained until
+    // their packages are refreshed.
+    private transient List m_retainedRevisions = null;
+    // Next bundle identifier, guarded by the installed bundle map.
+    private transient long m_nextId = 1L;
+    // Storage of installed bundles.
+    private transient BundleCache m_cache = null;
+    // Package wiring of the installed bundles, computed on demand.
+    private transient volatile PackageWiring m_wiring = null;
+    // Creates instrumented service proxies, if configured.
+    private transient ServiceProxyFactory m_proxyFactory = null;
+    // Manages the components declared by bundles.
+    private transient ComponentRuntime m_componentRuntime = null;
+    // Calls the activators of bundles, with a timeout if configured.
+    private transient ActivatorExecutor m_activators = null;
+    // Records the startup timeline, if configured.
+    private transient volatile StartupProfiler m_profiler = null;
+
     // Re-usable event dispatchers.
     private Dispatcher m_frameworkDispatcher = null;
     private Dispatcher m_bundleDispatcher = null;
-    private Dispatcher m_serviceDispatcher = null;
 
     // Status flag for Oscar.
     public static final int UNKNOWN_STATUS = -1;
     public static final int RUNNING_STATUS = 0;
     public static final int STARTING_STATUS = 1;
     public static final int STOPPING_STATUS = 2;
-    private transient int m_oscarStatus = UNKNOWN_STATUS;
+    private transient volatile int m_oscarStatus = UNKNOWN_STATUS;
+    private static final AtomicIntegerFieldUpdater m_statusUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Oscar.class, "m_oscarStatus");
+    // Notified when a shutdown is complete.
+    private transient final Object m_shutdownLock = new Object();
 
     public Oscar() {
         this(null, null);
@@ -45,13 +83,24 @@ public class Oscar {
     }
 
     public Oscar(Properties props, List activatorList) {
+        m_config = props;
+
         // Initialize.
         initialize(activatorList);
     }
 
     private void initialize(List activatorList) {
         // Oscar is now in its startup sequence.
-        m_oscarStatus = STARTING_STATUS;
+        if (!m_statusUpdater.compareAndSet(this, UNKNOWN_STATUS,
+                STARTING_STATUS)) {
+            throw new IllegalStateException("Oscar is already started.");
+        }
+
+        String profile = getProperty(OscarConstants.PROFILE_FILE_PROP);
+        StartupProfiler profiler = (profile == null) ? null
+                : new StartupProfiler(new File(profile));
+        m_profiler = profiler;
+        long bootStart = (profiler == null) ? 0 : profiler.begin();
 
         // Turn on error information...
         m_errorOut = System.err;
@@ -60,6 +109,30 @@ public class Oscar {
 
         // Initialize private members.
         m_dispatchQueue = new OscarDispatchQueue();
+        Set indexedAttrs = getIndexedAttributes();
+        m_serviceListeners = new ServiceListenerIndex(indexedAttrs);
+        m_proxyFactory = createProxyFactory();
+        m_registry = new ServiceRegistry(this, indexedAttrs, m_proxyFactory);
+        m_serviceHooks = new ServiceHooks(m_registry);
+        m_installedBundleMap = new HashMap();
+        m_installingLocations = new HashSet();
+        m_retainedRevisions = new ArrayList();
+        m_cache = new BundleCache(getCacheDirectory());
+        BundleArchive[] archives = null;
+        try {
+            archives = m_cache.open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open bundle cache: "
+                    + ex.getMessage());
+        }
+        m_nextId = m_cache.getNextId();
+        m_componentRuntime = new ComponentRuntime(getIntProperty(
+                OscarConstants.COMPONENT_THREADS_PROP, Runtime.getRuntime()
+                        .availableProcessors()));
+        m_activators = new ActivatorExecutor(this, getIntProperty(
+                OscarConstants.ACTIVATOR_THREADS_PROP, Runtime.getRuntime()
+                        .availableProcessors()), getIntProperty(
+                OscarConstants.ACTIVATOR_TIMEOUT_PROP, 0));
 
         SystemBundle systembundle = null;
 
@@ -67,18 +140,265 @@ public class Oscar {
             // Create a simple bundle info for the system bundle.
             BundleInfo info = new BundleInfo();
             systembundle = new SystemBundle(this, info, activatorList);
+            m_installedBundleMap.put(systembundle.getLocation(), systembundle);
+
+            // Track hooks before any bundle can register them.
+            m_serviceListeners.addListener(systembundle, m_serviceHooks,
+                    createFilter(ServiceHooks.FILTER));
+
+            // Start the system bundle, which starts any activators
+            // that were passed into the constructor.
+            systembundle.start();
         } catch (BundleException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            // One of the supplied activators failed to start.
+            Oscar.error("Oscar: Unable to start the system bundle.", e);
+            fireFrameworkEvent(FrameworkEvent.ERROR, systembundle, e);
+        } catch (InvalidSyntaxException e) {
+            // The hook filter is constant.
+            throw new IllegalStateException(e.getMessage());
         }
-        // Oscar is now running.
-        m_oscarStatus = RUNNING_STATUS;
+        // Restore the bundles installed in previous sessions, install the
+        // configured bundles, and start both.
+        SortedMap started = restoreBundles(archives);
+        Bundle[] bundles = getBundles();
+        m_wiring = PackageWiring.load(new File(m_cache.getDirectory(),
+                PackageWiring.WIRING_FILE), bundles, PackageWiring
+                .fingerprint(bundles, getFrameworkProperties()));
+        SortedMap locations = getAutoStartLevels();
+        if ((started.size() > 0) || (locations.size() > 0)) {
+            AutoStartProcessor processor = new AutoStartProcessor(this,
+                    getIntProperty(OscarConstants.AUTO_START_THREADS_PROP,
+                            Runtime.getRuntime().availableProcessors()));
+            try {
+                SortedMap installed = processor.install(locations);
+                for (Iterator i = installed.entrySet().iterator(); i
+                        .hasNext();) {
+                    Map.Entry entry = (Map.Entry) i.next();
+                    List list = (List) started.get(entry.getKey());
+                    if (list == null) {
+                        started.put(entry.getKey(), entry.getValue());
+                    } else {
+                        list.removeAll((List) entry.getValue());
+                        list.addAll((List) entry.getValue());
+                    }
+                }
+                processor.start(started);
+            } finally {
+                processor.close();
+            }
+        }
+
+        // Oscar is now running, unless it was shut down while starting.
+        m_statusUpdater.compareAndSet(this, STARTING_STATUS, RUNNING_STATUS);
 
         // Fire started event for system bundle.
         fireBundleEvent(BundleEvent.STARTED, systembundle);
 
         // Send a framework event to indicate Oscar has started.
         fireFrameworkEvent(FrameworkEvent.STARTED, systembundle, null);
+
+        if (profiler != null) {
+            profiler.end("boot", "framework", null, bootStart);
+            profiler.write();
+            if (!"true".equalsIgnoreCase(getProperty(
+                    OscarConstants.PROFILE_RUNTIME_PROP))) {
+                m_profiler = null;
+            }
+        }
+    }
+
+    /**
+     * Restores the bundles stored in the bundle cache, which are
+     * installed again without firing events. The restored bundles' JAR
+     * files are not opened until the bundles are started.
+     *
+     * @return a map of start levels, as <tt>Integer</tt>s, to lists of the
+     *         persistently started bundles, which are ordered by
+     *         identifier.
+     */
+    private SortedMap restoreBundles(BundleArchive[] archives) {
+        SortedMap started = new TreeMap();
+        synchronized (m_installedBundleMap) {
+            for (int i = 0; i < archives.length; i++) {
+                BundleImpl bundle = new BundleImpl(this, new BundleInfo(
+                        archives[i]));
+                bundle.getInfo().setState(Bundle.INSTALLED);
+                m_installedBundleMap.put(archives[i].getLocation(), bundle);
+                if (archives[i].isStarted()) {
+                    Integer level = Integer.valueOf(archives[i]
+                            .getStartLevel());
+                    List list = (List) started.get(level);
+                    if (list == null) {
+                        list = new ArrayList();
+                        started.put(level, list);
+                    }
+                    list.add(bundle);
+                }
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Returns the package wiring of the installed bundles, which is
+     * recomputed if bundles were installed, updated, or uninstalled since
+     * it was last computed.
+     *
+     * @return the package wiring.
+     */
+    PackageWiring getWiring() {
+        Bundle[] bundles = getBundles();
+        byte[] fingerprint = PackageWiring.fingerprint(bundles,
+                getFrameworkProperties());
+        PackageWiring wiring = m_wiring;
+        if ((wiring == null) || !wiring.matches(fingerprint)) {
+            StartupProfiler profiler = m_profiler;
+            long start = (profiler == null) ? 0 : profiler.begin();
+            wiring = PackageWiring.resolve(bundles, fingerprint);
+            m_wiring = wiring;
+            if (profiler != null) {
+                profiler.end("resolve", "resolve", null, start);
+            }
+        }
+        return wiring;
+    }
+
+    /**
+     * Returns the profiler recording the startup timeline.
+     *
+     * @return the profiler or <tt>null</tt> if no timeline is recorded.
+     */
+    StartupProfiler getProfiler() {
+        return m_profiler;
+    }
+
+    /**
+     * Returns the properties that may affect the package wiring, i.e.,
+     * the configuration properties and the framework's system
+     * properties.
+     */
+    private SortedMap getFrameworkProperties() {
+        SortedMap props = new TreeMap();
+        for (Iterator i = System.getProperties().entrySet().iterator(); i
+                .hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            String key = entry.getKey().toString();
+            if (key.startsWith("oscar.") || key.startsWith("org.osgi.")) {
+                props.put(key, entry.getValue().toString());
+            }
+        }
+        if (m_config != null) {
+            for (Iterator i = m_config.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                props.put(entry.getKey().toString(), entry.getValue()
+                        .toString());
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Returns the bundles listed by the <tt>oscar.auto.start.&lt;n&gt;</tt>
+     * properties in the configuration properties and the system
+     * properties.
+     *
+     * @return a map of start levels, as <tt>Integer</tt>s, to lists of
+     *         bundle locations, which is ordered by start level.
+     */
+    private SortedMap getAutoStartLevels() {
+        Set keys = new HashSet(System.getProperties().keySet());
+        if (m_config != null) {
+            keys.addAll(m_config.keySet());
+        }
+        String prefix = OscarConstants.AUTO_START_PROP + ".";
+        SortedMap levels = new TreeMap();
+        for (Iterator i = keys.iterator(); i.hasNext();) {
+            String key = i.next().toString();
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            int level = 0;
+            try {
+                level = Integer.parseInt(key.substring(prefix.length()));
+            } catch (NumberFormatException ex) {
+                // Other properties may share the prefix.
+                continue;
+            }
+            if (level < 1) {
+                Oscar.error("Oscar: Invalid start level: " + key);
+                continue;
+            }
+            List locations = new ArrayList();
+            StringTokenizer st = new StringTokenizer(getProperty(key));
+            while (st.hasMoreTokens()) {
+                locations.add(st.nextToken());
+            }
+            if (locations.size() > 0) {
+                levels.put(Integer.valueOf(level), locations);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the lower case names of the service properties configured
+     * to be indexed by the service registry and listener index.
+     */
+    private Set getIndexedAttributes() {
+        Set attrs = new HashSet();
+        String s = getProperty(OscarConstants.SERVICE_INDEX_ATTRIBUTES_PROP);
+        if (s != null) {
+            StringTokenizer st = new StringTokenizer(s, ", \t\r\n");
+            while (st.hasMoreTokens()) {
+                attrs.add(st.nextToken().toLowerCase(Locale.ROOT));
+            }
+        }
+        // Object classes have their own index in the registry.
+        attrs.remove(Constants.OBJECTCLASS.toLowerCase(Locale.ROOT));
+        return attrs;
+    }
+
+    /**
+     * Creates the factory of instrumented service proxies if any service
+     * classes are configured to be proxied.
+     */
+    private ServiceProxyFactory createProxyFactory() {
+        String s = getProperty(OscarConstants.SERVICE_PROXY_CLASSES_PROP);
+        if (s == null) {
+            return null;
+        }
+        Set classNames = new HashSet();
+        StringTokenizer st = new StringTokenizer(s, ", \t\r\n");
+        while (st.hasMoreTokens()) {
+            classNames.add(st.nextToken());
+        }
+        if (classNames.size() == 0) {
+            return null;
+        }
+        String enabled = getProperty(OscarConstants.SERVICE_METRICS_ENABLED_PROP);
+        return new ServiceProxyFactory(classNames, (enabled == null)
+                || Boolean.valueOf(enabled.trim()).booleanValue());
+    }
+
+    private File getCacheDirectory() {
+        String dir = getProperty(OscarConstants.CACHE_DIR_PROP);
+        if (dir == null) {
+            dir = System.getProperty("user.home") + File.separator + ".oscar"
+                    + File.separator + "cache";
+        }
+        return new File(dir);
+    }
+
+    private int getIntProperty(String key, int defaultValue) {
+        String s = getProperty(key);
+        if (s != null) {
+            try {
+                return Integer.parseInt(s.trim());
+            } catch (NumberFormatException ex) {
+                Oscar.error("Oscar: Invalid value for " + key + ": " + s);
+            }
+        }
+        return defaultValue;
     }
 
     //
@@ -89,18 +409,883 @@ public class Oscar {
         return m_oscarStatus;
     }
 
+    /**
+     * Shuts down the framework by stopping all installed bundles in
+     * reverse order of installation and then the system bundle, which
+     * stops the activators passed into the constructor and releases all
+     * of their services and listeners. Stopping bundles at shutdown does
+     * not change whether they are persistently started, so the same
+     * bundles are started again when the framework is restarted. If the
+     * framework is already shutting down, this method waits until it is
+     * shut down.
+     */
+    public void shutdown() {
+        int status;
+        do {
+            status = m_oscarStatus;
+            if (status == STOPPING_STATUS) {
+                awaitShutdown();
+                return;
+            } else if ((status != STARTING_STATUS)
+                    && (status != RUNNING_STATUS)) {
+                // Oscar is already shut down.
+                return;
+            }
+        } while (!m_statusUpdater.compareAndSet(this, status, STOPPING_STATUS));
+        Bundle[] bundles = getBundles();
+        Arrays.sort(bundles, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long id1 = ((Bundle) o1).getBundleId();
+                long id2 = ((Bundle) o2).getBundleId();
+                return (id1 > id2) ? -1 : ((id1 < id2) ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < bundles.length; i++) {
+            try {
+                if (bundles[i].getBundleId() == 0) {
+                    ((SystemBundle) bundles[i]).stopActivators();
+                } else {
+                    stopBundle((BundleImpl) bundles[i], false);
+                }
+            } catch (BundleException ex) {
+                Oscar.error("Oscar: Error stopping bundle "
+                        + bundles[i].getBundleId() + ".", ex);
+            }
+        }
+        m_componentRuntime.shutdown();
+        m_activators.shutdown();
+        try {
+            getWiring().store(
+                    new File(m_cache.getDirectory(), PackageWiring.WIRING_FILE));
+        } catch (IOException ex) {
+            Oscar.error("Oscar: Unable to store package wiring.", ex);
+        }
+        m_cache.close();
+        StartupProfiler profiler = m_profiler;
+        if (profiler != null) {
+            profiler.write();
+        }
+        synchronized (m_shutdownLock) {
+            m_statusUpdater.set(this, UNKNOWN_STATUS);
+            m_shutdownLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a shutdown started by another thread is complete.
+     */
+    private void awaitShutdown() {
+        synchronized (m_shutdownLock) {
+            while (m_oscarStatus == STOPPING_STATUS) {
+                try {
+                    m_shutdownLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the specified configuration property; the
+     * properties passed into the constructor are searched first, then
+     * the system properties.
+     *
+     * @param key the name of the property.
+     * @return the property value or <tt>null</tt> if it is not defined.
+     */
+    public String getProperty(String key) {
+        String value = (m_config == null) ? null : m_config.getProperty(key);
+        return (value == null) ? System.getProperty(key) : value;
+    }
+
+    /**
+     * Switches the recording of calls through instrumented service
+     * proxies on or off. Proxies are only created for the service classes
+     * configured with the <tt>oscar.service.proxy.classes</tt> property;
+     * while recording is off, they delegate calls with negligible
+     * overhead.
+     *
+     * @param enabled whether calls are recorded.
+     */
+    public void setServiceMetricsEnabled(boolean enabled) {
+        if (m_proxyFactory != null) {
+            m_proxyFactory.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * Returns the calls recorded by the instrumented proxies of the
+     * referenced service.
+     *
+     * @param ref the service reference.
+     * @return the metrics or <tt>null</tt> if no bundle got a proxy of
+     *         the service yet.
+     */
+    public ServiceMetrics getServiceMetrics(ServiceReference ref) {
+        return m_registry.getServiceMetrics(ref);
+    }
+
+    /**
+     * Returns the pool of the referenced service, which reports the size
+     * and usage of the pool.
+     *
+     * @param ref the service reference.
+     * @return the pool or <tt>null</tt> if the service is not pooled.
+     */
+    public PooledServiceFactory getServicePool(ServiceReference ref) {
+        ServiceFactory factory = ((ServiceReferenceImpl) ref)
+                .getServiceRegistration().getFactory();
+        return (factory instanceof PooledServiceFactory)
+                ? (PooledServiceFactory) factory : null;
+    }
+
+    /**
+     * Refreshes the packages of the supplied bundles. Currently, this
+     * discards the previous revisions of the bundles that were retained
+     * when they were updated, which closes their class loaders and
+     * releases their JAR files in the bundle cache, and framework caches
+     * that depend on the class spaces of bundles, such as cached service
+     * class compatibility results, and then fires a
+     * <tt>PACKAGES_REFRESHED</tt> framework event.
+     *
+     * @param bundles the bundles to refresh or <tt>null</tt> for all.
+     */
+    public void refreshPackages(Bundle[] bundles) {
+        Set ids = null;
+        if (bundles != null) {
+            ids = new HashSet();
+            for (int i = 0; i < bundles.length; i++) {
+                ids.add(Long.valueOf(bundles[i].getBundleId()));
+            }
+        }
+        List released = new ArrayList();
+        synchronized (m_retainedRevisions) {
+            for (Iterator i = m_retainedRevisions.iterator(); i.hasNext();) {
+                BundleInfo info = (BundleInfo) i.next();
+                if ((ids == null)
+                        || ids.contains(Long.valueOf(info.getBundleId()))) {
+                    released.add(info);
+                    i.remove();
+                }
+            }
+        }
+        for (int i = 0; i < released.size(); i++) {
+            BundleInfo info = (BundleInfo) released.get(i);
+            info.closeClassLoader();
+            m_cache.release(info.getArchive());
+        }
+
+        m_registry.flushAssignableCache();
+
+        fireFrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED,
+                getBundle(0), null);
+    }
+
+    //
+    // Bundle management methods.
+    //
+
+    /**
+     * Installs a bundle by storing its JAR file in the bundle cache. If a
+     * bundle with the same location is already installed, then that
+     * bundle is returned. Bundles at different locations are installed
+     * concurrently, while concurrent installations of the same location
+     * wait for the first one to complete.
+     *
+     * @param location the location of the bundle.
+     * @param is the stream from which to read the bundle or <tt>null</tt>
+     *        to read it from the location URL.
+     * @return the installed bundle.
+     * @throws BundleException if the bundle cannot be installed.
+     */
+    Bundle installBundle(String location, InputStream is)
+            throws BundleException {
+        BundleImpl bundle = null;
+        long id = 0;
+        synchronized (m_installedBundleMap) {
+            while (m_installingLocations.contains(location)) {
+                try {
+                    m_installedBundleMap.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BundleException("Interrupted while installing: "
+                            + location, ex);
+                }
+            }
+            bundle = (BundleImpl) m_installedBundleMap.get(location);
+            if (bundle != null) {
+                return bundle;
+            }
+            m_installingLocations.add(location);
+            id = m_nextId++;
+        }
+        return installBundle(location, is, id);
+    }
+
+    /**
+     * Reserves the next bundle identifier for the installation of a
+     * bundle, so that bundles installed concurrently can be numbered in
+     * a given order. The location is marked as being installed until
+     * <tt>installBundle(String, InputStream, long)</tt> is called with
+     * the reserved identifier.
+     *
+     * @param location the location of the bundle.
+     * @return the reserved identifier or <tt>-1</tt> if a bundle with
+     *         the same location is already installed or being installed.
+     */
+    long reserveBundleId(String location) {
+        synchronized (m_installedBundleMap) {
+            if (m_installingLocations.contains(location)
+                    || m_installedBundleMap.containsKey(location)) {
+                return -1;
+            }
+            m_installingLocations.add(location);
+            return m_nextId++;
+        }
+    }
+
+    /**
+     * Installs a bundle under an identifier that was reserved for its
+     * location.
+     *
+     * @param location the location of the bundle.
+     * @param is the stream from which to read the bundle or <tt>null</tt>
+     *        to read it from the location URL.
+     * @param id the reserved identifier.
+     * @return the installed bundle.
+     * @throws BundleException if the bundle cannot be installed.
+     */
+    Bundle installBundle(String location, InputStream is, long id)
+            throws BundleException {
+        BundleImpl bundle = null;
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        try {
+            try {
+                BundleArchive archive = m_cache.create(id, location, is,
+                        getIntProperty(OscarConstants.BUNDLE_START_LEVEL_PROP, 1));
+                bundle = new BundleImpl(this, new BundleInfo(archive));
+            } catch (IOException ex) {
+                throw new BundleException("Unable to install bundle: "
+                        + location, ex);
+            }
+            bundle.getInfo().setState(Bundle.INSTALLED);
+            if (profiler != null) {
+                profiler.end("install", "lifecycle", bundle, start);
+            }
+        } finally {
+            synchronized (m_installedBundleMap) {
+                m_installingLocations.remove(location);
+                if (bundle != null) {
+                    m_installedBundleMap.put(location, bundle);
+                }
+                m_installedBundleMap.notifyAll();
+            }
+        }
+
+        fireBundleEvent(BundleEvent.INSTALLED, bundle);
+
+        return bundle;
+    }
+
+    /**
+     * Updates a bundle by storing a new revision of its JAR file in the
+     * bundle cache. An active bundle is stopped before and started again
+     * after the update. The previous revision is retained until the
+     * bundle's packages are refreshed, so that classes can still be
+     * loaded from it by objects created before the update.
+     *
+     * @param bundle the bundle to update.
+     * @param is the stream from which to read the new revision or
+     *        <tt>null</tt> to read it from the bundle's update location.
+     * @throws BundleException if the bundle cannot be updated.
+     */
+    void updateBundle(BundleImpl bundle, InputStream is)
+            throws BundleException {
+        if (bundle.getBundleId() == 0) {
+            throw new BundleException("Cannot update the system bundle.");
+        }
+
+        boolean active = false;
+        synchronized (bundle) {
+            BundleInfo info = bundle.getInfo();
+            if (info.getState() == Bundle.UNINSTALLED) {
+                throw new IllegalStateException("The bundle is uninstalled.");
+            }
+            String location = info.getHeader(Constants.BUNDLE_UPDATELOCATION);
+            location = (location == null) ? info.getLocation() : location
+                    .trim();
+
+            active = (info.getState() == Bundle.ACTIVE)
+                    || info.isLazyActivationPending();
+            if (active) {
+                stopBundle(bundle, false);
+            }
+
+            try {
+                BundleInfo updated = new BundleInfo(m_cache.update(info
+                        .getArchive(), location, is));
+                updated.setState(Bundle.INSTALLED);
+                bundle.setInfo(updated);
+                synchronized (m_retainedRevisions) {
+                    m_retainedRevisions.add(info);
+                }
+                m_registry.flushAssignableCache(bundle);
+            } catch (IOException ex) {
+                if (active) {
+                    startBundle(bundle);
+                }
+                throw new BundleException("Unable to update bundle: "
+                        + location, ex);
+            }
+        }
+
+        fireBundleEvent(BundleEvent.UPDATED, bundle);
+
+        if (active) {
+            startBundle(bundle);
+        }
+    }
+
+    /**
+     * Sets the start level of a bundle, which determines the order in
+     * which the persistently started bundles are started on restart.
+     *
+     * @param bundle the bundle.
+     * @param level the start level.
+     */
+    void setBundleStartLevel(BundleImpl bundle, int level) {
+        BundleArchive archive = bundle.getInfo().getArchive();
+        if (archive != null) {
+            m_cache.setStartLevel(archive, level);
+        }
+    }
+
+    /**
+     * Starts a bundle by calling the start method of its activator, if it
+     * has one, and then activating its components. The bundle is
+     * persistently recorded as started before its activator is called.
+     * A bundle with the lazy activation policy is only marked as
+     * starting; it is activated when the first class is loaded from it.
+     *
+     * @param bundle the bundle to start.
+     * @throws BundleException if the activator fails.
+     */
+    void startBundle(final BundleImpl bundle) throws BundleException {
+        // Starting an active bundle does not need its lock.
+        if (bundle.getState() == Bundle.ACTIVE) {
+            return;
+        }
+        synchronized (bundle) {
+            final BundleInfo info = bundle.getInfo();
+            if (info.getState() == Bundle.UNINSTALLED) {
+                throw new IllegalStateException("The bundle is uninstalled.");
+            } else if ((info.getState() == Bundle.ACTIVE)
+                    || (info.getState() == Bundle.STARTING)) {
+                // The bundle is being activated or waits for its lazy
+                // activation.
+                return;
+            }
+
+            m_cache.setStarted(info.getArchive(), true);
+            if (info.isLazy()) {
+                if (!info.transition(Bundle.INSTALLED | Bundle.RESOLVED,
+                        Bundle.STARTING)) {
+                    throw new IllegalStateException("The bundle is uninstalled.");
+                }
+                info.setLazyActivation(new Runnable() {
+                    public void run() {
+                        activateLazily(bundle, info);
+                    }
+                });
+                return;
+            }
+            activateBundle(bundle, info);
+        }
+
+        fireBundleEvent(BundleEvent.STARTED, bundle);
+    }
+
+    /**
+     * Activates a lazily started bundle; called by the threads that load
+     * classes from the bundle until it is activated. The first thread
+     * claims and runs the activation while holding the bundle's lock, so
+     * the other threads wait until it is done. Activator errors are
+     * reported as framework events, since they cannot be reported to the
+     * caller.
+     */
+    private void activateLazily(BundleImpl bundle, BundleInfo info) {
+        synchronized (bundle) {
+            if ((bundle.getInfo() != info) || !info.cancelLazyActivation()) {
+                // The bundle was already activated, stopped, updated, or
+                // uninstalled, or this thread is activating it.
+                return;
+            }
+            try {
+                activateBundle(bundle, info);
+            } catch (BundleException ex) {
+                fireFrameworkEvent(FrameworkEvent.ERROR, bundle, ex);
+                return;
+            }
+        }
+
+        fireBundleEvent(BundleEvent.STARTED, bundle);
+    }
+
+    /**
+     * Activates a bundle by calling the start method of its activator and
+     * activating its components; the caller holds the bundle's lock. A
+     * lazily started bundle is already in the <tt>STARTING</tt> state.
+     */
+    private void activateBundle(BundleImpl bundle, BundleInfo info)
+            throws BundleException {
+        if (!info.transition(Bundle.INSTALLED | Bundle.RESOLVED
+                | Bundle.STARTING, Bundle.STARTING)) {
+            throw new IllegalStateException("The bundle is uninstalled.");
+        }
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        bundle.setContext(new BundleContextImpl(this, bundle));
+        try {
+            String className = info.getHeader(Constants.BUNDLE_ACTIVATOR);
+            if (className != null) {
+                info.setActivator((BundleActivator) bundle.loadClass(
+                        className.trim()).getDeclaredConstructor()
+                        .newInstance());
+                long activatorStart = (profiler == null) ? 0 : profiler
+                        .begin();
+                m_activators.start(bundle, info.getActivator(), bundle
+                        .getContext());
+                if (profiler != null) {
+                    profiler.end("activator.start", "activator", bundle,
+                            activatorStart);
+                }
+            }
+        } catch (Throwable th) {
+            // Release everything the activator left behind.
+            info.setActivator(null);
+            bundle.getContext().invalidate();
+            cleanupBundle(bundle);
+            bundle.setContext(null);
+            info.transition(Bundle.STARTING, Bundle.RESOLVED);
+            throw new BundleException("Activator start error.", th);
+        }
+        if (!info.transition(Bundle.STARTING, Bundle.ACTIVE)) {
+            // The activator stopped its own bundle.
+            info.setActivator(null);
+            bundle.getContext().invalidate();
+            cleanupBundle(bundle);
+            bundle.setContext(null);
+            throw new BundleException("The bundle was stopped while starting.");
+        }
+
+        m_componentRuntime.addComponents(bundle, bundle.getContext(), info
+                .getClassLoader());
+        if (profiler != null) {
+            profiler.end("start", "lifecycle", bundle, start);
+        }
+    }
+
+    /**
+     * Stops a bundle by deactivating its components and calling the stop
+     * method of its activator; everything the bundle left behind is
+     * released afterwards. The bundle is persistently recorded as
+     * stopped.
+     *
+     * @param bundle the bundle to stop.
+     * @throws BundleException if the activator fails.
+     */
+    void stopBundle(BundleImpl bundle) throws BundleException {
+        stopBundle(bundle, true);
+    }
+
+    /**
+     * Stops a bundle.
+     *
+     * @param bundle the bundle to stop.
+     * @param persist whether to record the bundle as stopped in the
+     *        bundle cache, so that it is not started on restart.
+     * @throws BundleException if the activator fails.
+     */
+    private void stopBundle(BundleImpl bundle, boolean persist)
+            throws BundleException {
+        // Stopping a bundle that is not started, without recording it as
+        // stopped, does not need its lock.
+        if (!persist && ((bundle.getState()
+                & (Bundle.INSTALLED | Bundle.RESOLVED)) != 0)) {
+            return;
+        }
+        Throwable rethrow = null;
+        synchronized (bundle) {
+            BundleInfo info = bundle.getInfo();
+            if (info.getState() == Bundle.UNINSTALLED) {
+                throw new IllegalStateException("The bundle is uninstalled.");
+            }
+            if (persist) {
+                m_cache.setStarted(info.getArchive(), false);
+            }
+            if (info.cancelLazyActivation()
+                    || (info.getState() == Bundle.STARTING)) {
+                // The bundle was started lazily, but never activated.
+                info.transition(Bundle.STARTING, Bundle.RESOLVED);
+                return;
+            }
+
+            StartupProfiler profiler = m_profiler;
+            long start = (profiler == null) ? 0 : profiler.begin();
+            if (!info.transition(Bundle.ACTIVE, Bundle.STOPPING)) {
+                return;
+            }
+            m_componentRuntime.removeComponents(bundle);
+            try {
+                if (info.getActivator() != null) {
+                    m_activators.stop(bundle, info.getActivator(), bundle
+                            .getContext());
+                }
+            } catch (Throwable th) {
+                rethrow = th;
+            }
+            info.setActivator(null);
+            bundle.getContext().invalidate();
+            cleanupBundle(bundle);
+            bundle.setContext(null);
+            info.transition(Bundle.STOPPING, Bundle.RESOLVED);
+            if (profiler != null) {
+                profiler.end("stop", "lifecycle", bundle, start);
+            }
+        }
+
+        fireBundleEvent(BundleEvent.STOPPED, bundle);
+
+        if (rethrow != null) {
+            throw new BundleException("Activator stop error.", rethrow);
+        }
+    }
+
+    /**
+     * Uninstalls a bundle, stopping it first if it is active, and removes
+     * it from the bundle cache.
+     *
+     * @param bundle the bundle to uninstall.
+     * @throws BundleException if the bundle cannot be uninstalled.
+     */
+    void uninstallBundle(BundleImpl bundle) throws BundleException {
+        if (bundle.getBundleId() == 0) {
+            throw new BundleException("Cannot uninstall the system bundle.");
+        }
+
+        BundleInfo info = null;
+        while (true) {
+            try {
+                stopBundle(bundle);
+            } catch (BundleException ex) {
+                fireFrameworkEvent(FrameworkEvent.ERROR, bundle, ex);
+            }
+
+            synchronized (bundle) {
+                info = bundle.getInfo();
+                if (info.transition(Bundle.INSTALLED | Bundle.RESOLVED,
+                        Bundle.UNINSTALLED)) {
+                    break;
+                } else if (info.getState() == Bundle.UNINSTALLED) {
+                    throw new IllegalStateException(
+                            "The bundle is uninstalled.");
+                } else if (info.getState() == Bundle.STOPPING) {
+                    // Another thread waits for the activator to stop;
+                    // waiting releases the lock.
+                    try {
+                        bundle.wait(100);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new BundleException(
+                                "Interrupted while uninstalling the bundle.", ex);
+                    }
+                }
+            }
+            // The bundle was started again concurrently, stop it again.
+        }
+        synchronized (m_installedBundleMap) {
+            m_installedBundleMap.remove(bundle.getLocation());
+        }
+        info.closeClassLoader();
+        m_cache.remove(info.getArchive());
+        m_registry.flushAssignableCache(bundle);
+
+        fireBundleEvent(BundleEvent.UNINSTALLED, bundle);
+    }
+
+    Bundle getBundle(long id) {
+        synchronized (m_installedBundleMap) {
+            for (Iterator i = m_installedBundleMap.values().iterator(); i
+                    .hasNext();) {
+                Bundle bundle = (Bundle) i.next();
+                if (bundle.getBundleId() == id) {
+                    return bundle;
+                }
+            }
+        }
+        return null;
+    }
+
+    Bundle[] getBundles() {
+        synchronized (m_installedBundleMap) {
+            return (Bundle[]) m_installedBundleMap.values().toArray(
+                    new Bundle[m_installedBundleMap.size()]);
+        }
+    }
+
+    File getDataFile(BundleImpl bundle, String s) {
+        BundleArchive archive = bundle.getInfo().getArchive();
+        // The system bundle is not stored in the bundle cache, so it has
+        // no data area.
+        return (archive == null) ? null : new File(archive
+                .getDataDirectory(), s);
+    }
+
+    //
+    // Listener methods.
+    //
+
+    void addBundleListener(Bundle bundle, BundleListener l) {
+        m_dispatchQueue.addListener(BundleListener.class,
+                new BundleListenerWrapper(bundle, l));
+    }
+
+    void removeBundleListener(BundleListener l) {
+        m_dispatchQueue.removeListener(BundleListener.class, l);
+    }
+
+    void addServiceListener(Bundle bundle, ServiceListener l, String f)
+            throws InvalidSyntaxException {
+        Filter filter = (f == null) ? null : createFilter(f);
+        m_serviceListeners.addListener(bundle, l, filter);
+    }
+
+    void removeServiceListener(ServiceListener l) {
+        m_serviceListeners.removeListener(l);
+    }
+
+    void addFrameworkListener(Bundle bundle, FrameworkListener l) {
+        m_dispatchQueue.addListener(FrameworkListener.class,
+                new FrameworkListenerWrapper(bundle, l));
+    }
+
+    void removeFrameworkListener(FrameworkListener l) {
+        m_dispatchQueue.removeListener(FrameworkListener.class, l);
+    }
+
+    //
+    // Service registry methods.
+    //
+
+    ServiceRegistration registerService(BundleImpl bundle,
+            String[] classNames, Object svcObj, Dictionary dict) {
+        validateService(classNames, svcObj);
+
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        ServiceRegistration reg = m_registry.registerService(bundle,
+                classNames.clone(), svcObj, dict);
+        if (profiler != null) {
+            profiler.end("register", "service", bundle, start);
+        }
+        return reg;
+    }
+
+    ServiceRegistration[] registerServices(BundleImpl bundle,
+            String[][] classNames, Object[] svcObjs, Dictionary[] dicts) {
+        if ((classNames == null) || (svcObjs == null)) {
+            throw new NullPointerException(
+                    "Service class names and objects cannot be null.");
+        } else if ((classNames.length != svcObjs.length)
+                || ((dicts != null) && (dicts.length != svcObjs.length))) {
+            throw new IllegalArgumentException(
+                    "Service arrays must have the same length.");
+        }
+
+        // Validate all services before registering any of them.
+        String[][] copy = new String[classNames.length][];
+        for (int i = 0; i < svcObjs.length; i++) {
+            validateService(classNames[i], svcObjs[i]);
+            copy[i] = classNames[i].clone();
+        }
+
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        ServiceRegistration[] reg = m_registry.registerServices(bundle, copy,
+                svcObjs, dicts);
+        if (profiler != null) {
+            profiler.end("register", "service", bundle, start);
+        }
+        return reg;
+    }
+
+    ServiceRegistration registerLazyService(BundleImpl bundle,
+            String[] classNames, ServiceSupplier supplier, Dictionary dict,
+            boolean bundleScope) {
+        if (classNames == null) {
+            throw new NullPointerException("Service class names cannot be null.");
+        } else if (supplier == null) {
+            throw new IllegalArgumentException("Service supplier cannot be null.");
+        }
+        String[] copy = classNames.clone();
+
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        ServiceRegistration reg = m_registry.registerService(bundle, copy,
+                new LazyServiceFactory(supplier, copy, bundleScope), dict);
+        if (profiler != null) {
+            profiler.end("register", "service", bundle, start);
+        }
+        return reg;
+    }
+
+    ServiceRegistration registerPooledService(BundleImpl bundle,
+            String[] classNames, ServiceFactory factory, Dictionary dict,
+            int maxSize) {
+        if (classNames == null) {
+            throw new NullPointerException("Service class names cannot be null.");
+        } else if (factory == null) {
+            throw new IllegalArgumentException("Service factory cannot be null.");
+        } else if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        ServiceRegistration reg = m_registry.registerService(bundle,
+                classNames.clone(), new PooledServiceFactory(
+                        factory, maxSize), dict);
+        if (profiler != null) {
+            profiler.end("register", "service", bundle, start);
+        }
+        return reg;
+    }
+
+    void unregisterServices(BundleImpl bundle, ServiceRegistration[] regs) {
+        // Make sure all registrations are valid before unregistering
+        // any of them.
+        for (int i = 0; i < regs.length; i++) {
+            if (!(regs[i] instanceof ServiceRegistrationImpl)
+                    || !((ServiceRegistrationImpl) regs[i]).isValid()) {
+                throw new IllegalStateException(
+                        "The service registration is no longer valid.");
+            }
+        }
+
+        if (!m_registry.unregisterServices(regs)) {
+            throw new IllegalStateException(
+                    "The service registration is no longer valid.");
+        }
+    }
+
+    private void validateService(String[] classNames, Object svcObj) {
+        if (classNames == null) {
+            throw new NullPointerException("Service class names cannot be null.");
+        } else if (svcObj == null) {
+            throw new IllegalArgumentException("Service object cannot be null.");
+        }
+
+        // Make sure that the service object is an instance of all
+        // service classes; this is not possible for service factories.
+        if (!(svcObj instanceof ServiceFactory)) {
+            for (int i = 0; i < classNames.length; i++) {
+                Class clazz = ServiceRegistry.loadClassUsingClass(
+                        svcObj.getClass(), classNames[i]);
+                if (clazz == null) {
+                    throw new IllegalArgumentException(
+                            "Cannot cast service: " + classNames[i]);
+                } else if (!clazz.isAssignableFrom(svcObj.getClass())) {
+                    throw new IllegalArgumentException(
+                            "Service object is not an instance of \""
+                                    + classNames[i] + "\".");
+                }
+            }
+        }
+    }
+
+    ServiceReference[] getServiceReferences(BundleImpl bundle,
+            String className, String expr) throws InvalidSyntaxException {
+        Filter filter = (expr == null) ? null : createFilter(expr);
+        return m_serviceHooks.find(bundle, className, expr, m_registry
+                .getServiceReferences(className, filter));
+    }
+
+    ServiceReference[] getServiceReferences(BundleImpl bundle, Class clazz,
+            String expr) throws InvalidSyntaxException {
+        if (clazz == null) {
+            throw new NullPointerException("Service class cannot be null.");
+        }
+        Filter filter = (expr == null) ? null : createFilter(expr);
+        return m_serviceHooks.find(bundle, clazz.getName(), expr, m_registry
+                .getServiceReferences(bundle, clazz, filter));
+    }
+
+    ServiceReference[] getBundleRegisteredServices(BundleImpl bundle) {
+        return m_registry.getRegisteredServices(bundle);
+    }
+
+    ServiceReference[] getBundleServicesInUse(BundleImpl bundle) {
+        return m_registry.getServicesInUse(bundle);
+    }
+
+    /**
+     * Unregisters all services registered by the supplied bundle, releases
+     * all services it still uses and removes all of its listeners, as
+     * required when a bundle is stopped. The registry's reverse indexes
+     * make this proportional to the number of affected services.
+     */
+    void cleanupBundle(BundleImpl bundle) {
+        m_registry.unregisterServices(bundle);
+        m_registry.ungetServices(bundle);
+        removeListeners(bundle);
+    }
+
+    Object getService(BundleImpl bundle, ServiceReference ref) {
+        return m_registry.getService(bundle, ref);
+    }
+
+    boolean ungetService(BundleImpl bundle, ServiceReference ref) {
+        return m_registry.ungetService(bundle, ref);
+    }
+
+    Filter createFilter(String expr) throws InvalidSyntaxException {
+        return m_filterCache.getFilter(expr);
+    }
+
+    /**
+     * Returns the number of distinct compiled filters in use. Filters are
+     * converted to a canonical form when created, so all equivalent
+     * filters share one compiled instance.
+     *
+     * @return the number of distinct filters.
+     */
+    public int getFilterCount() {
+        return m_filterCache.size();
+    }
+
     //
     // Event firing methods.
     //
 
-    private void fireFrameworkEvent(int type, Bundle bundle, Throwable throwable) {
+    void fireFrameworkEvent(int type, Bundle bundle, Throwable throwable) {
         Oscar.debug("Oscar-fireFrameworkEvent:  type=" + type + " throwable="
                 + throwable);
         if (m_frameworkDispatcher == null) {
             m_frameworkDispatcher = new Dispatcher() {
                 public void dispatch(EventListener l, EventObject eventObj) {
+                    StartupProfiler profiler = m_profiler;
+                    long start = (profiler == null) ? 0 : profiler.begin();
                     ((FrameworkListener) l)
                             .frameworkEvent((FrameworkEvent) eventObj);
+                    if (profiler != null) {
+                        profiler.end("FrameworkEvent "
+                                + ((FrameworkEvent) eventObj).getType(),
+                                "event", ((FrameworkEvent) eventObj)
+                                        .getBundle(), start);
+                    }
                 }
             };
         }
@@ -115,7 +1300,14 @@ public class Oscar {
         if (m_bundleDispatcher == null) {
             m_bundleDispatcher = new Dispatcher() {
                 public void dispatch(EventListener l, EventObject eventObj) {
+                    StartupProfiler profiler = m_profiler;
+                    long start = (profiler == null) ? 0 : profiler.begin();
                     ((BundleListener) l).bundleChanged((BundleEvent) eventObj);
+                    if (profiler != null) {
+                        profiler.end("BundleEvent "
+                                + ((BundleEvent) eventObj).getType(), "event",
+                                ((BundleEvent) eventObj).getBundle(), start);
+                    }
                 }
             };
         }
@@ -125,28 +1317,126 @@ public class Oscar {
                 event);
     }
 
-    private void fireServiceEvent(int type, ServiceReference ref) {
+    void fireServiceEvent(int type, ServiceReference ref) {
         Oscar.debug("Oscar-fireServiceEvent:  type=" + type + " ref=" + ref);
-        if (m_serviceDispatcher == null) {
-            m_serviceDispatcher = new Dispatcher() {
-                public void dispatch(EventListener l, EventObject eventObj) {
-                    ((ServiceListener) l)
-                            .serviceChanged((ServiceEvent) eventObj);
+
+        // Service events are always delivered synchronously, so route
+        // the event directly to the listeners interested in the service.
+        ServiceListenerWrapper[] listeners = m_serviceListeners
+                .getListeners(ref);
+        if (listeners.length == 0) {
+            return;
+        }
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+        ServiceEvent event = new ServiceEvent(type, ref);
+        listeners = m_serviceHooks.event(event, listeners);
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].serviceChanged(event);
+            } catch (Throwable th) {
+                Oscar.error("Oscar: Error during service event dispatch.", th);
+            }
+        }
+        if (profiler != null) {
+            profiler.end("ServiceEvent " + type, "event", ref.getBundle(),
+                    start);
+        }
+    }
+
+    /**
+     * Fires the events for a modification of a service's properties. Only
+     * the listeners that are candidates for either the old or the new
+     * properties are notified; each of them receives a
+     * <tt>MODIFIED</tt> event if the service matches its filter after
+     * the modification or a <tt>SERVICE_MODIFIED_ENDMATCH</tt> event if
+     * the service only matched before. Filters that do not reference any
+     * of the modified properties are not evaluated again.
+     */
+    void fireServiceModified(ServiceRegistrationImpl reg,
+            ServiceProperties oldProps, ServiceProperties newProps, Set changed) {
+        Oscar.debug("Oscar-fireServiceModified:  ref=" + reg.getReference()
+                + " changed=" + changed);
+
+        ServiceListenerWrapper[] listeners = m_serviceListeners.getListeners(
+                oldProps, newProps);
+        if (listeners.length == 0) {
+            return;
+        }
+        ServiceEvent modified = new ServiceEvent(ServiceEvent.MODIFIED, reg
+                .getReference());
+        ServiceEvent endMatch = new ServiceEvent(
+                OscarConstants.SERVICE_MODIFIED_ENDMATCH, reg.getReference());
+        listeners = m_serviceHooks.event(modified, listeners);
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].serviceModified(reg, oldProps, newProps, changed,
+                        modified, endMatch);
+            } catch (Throwable th) {
+                Oscar.error("Oscar: Error during service event dispatch.", th);
+            }
+        }
+    }
+
+    /**
+     * Fires a service event of the supplied type for each of the supplied
+     * references. The candidate listeners of all references are collected
+     * first, and then each listener receives all of its events, in the
+     * order of the supplied references, before the next listener is
+     * notified.
+     */
+    void fireServiceEvents(int type, ServiceReference[] refs) {
+        Oscar.debug("Oscar-fireServiceEvents:  type=" + type + " count="
+                + refs.length);
+
+        StartupProfiler profiler = m_profiler;
+        long start = (profiler == null) ? 0 : profiler.begin();
+
+        // Group the events by listener.
+        Map eventMap = new LinkedHashMap();
+        for (int i = 0; i < refs.length; i++) {
+            ServiceListenerWrapper[] listeners = m_serviceListeners
+                    .getListeners(refs[i]);
+            if (listeners.length == 0) {
+                continue;
+            }
+            ServiceEvent event = new ServiceEvent(type, refs[i]);
+            listeners = m_serviceHooks.event(event, listeners);
+            for (int j = 0; j < listeners.length; j++) {
+                List events = (List) eventMap.get(listeners[j]);
+                if (events == null) {
+                    events = new ArrayList();
+                    eventMap.put(listeners[j], events);
                 }
-            };
+                events.add(event);
+            }
+        }
+
+        for (Iterator i = eventMap.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            ServiceListenerWrapper listener = (ServiceListenerWrapper) entry
+                    .getKey();
+            List events = (List) entry.getValue();
+            for (int j = 0; j < events.size(); j++) {
+                try {
+                    listener.serviceChanged((ServiceEvent) events.get(j));
+                } catch (Throwable th) {
+                    Oscar.error("Oscar: Error during service event dispatch.",
+                            th);
+                }
+            }
+        }
+        if (profiler != null) {
+            profiler.end("ServiceEvents " + type, "event", null, start);
         }
-        ServiceEvent event = null;
-        event = new ServiceEvent(type, ref);
-        m_dispatchQueue.dispatch(m_serviceDispatcher, ServiceListener.class,
-                event);
     }
 
     private void removeListeners(BundleImpl bundle) {
-        Oscar.debug("Removing all listeners for bundle "
-                + bundle.getInfo().getBundleId());
         if (bundle == null) {
             return;
         }
+        Oscar.debug("Removing all listeners for bundle "
+                + bundle.getInfo().getBundleId());
 
         // Remove all listeners associated with the supplied bundle;
         // it is only possible to know the bundle associated with a
@@ -164,6 +1454,8 @@ public class Oscar {
             }
         }
 
+        m_serviceListeners.removeListeners(bundle);
+
         Oscar.debug("Removed all listeners for bundle "
                 + bundle.getInfo().getBundleId());
     }
@@ -0,0 +1,190 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.Dictionary;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Oscar-specific extension of the <tt>BundleContext</tt> interface. The
+ * bundle context passed to bundle activators always implements this
+ * interface, so bundles that are willing to depend on Oscar can cast
+ * their context to use these methods.
+**/
+public interface OscarBundleContext extends BundleContext
+{
+    /**
+     * Returns the references of the services registered under the name
+     * of the supplied class that match the supplied filter and whose
+     * service objects can be cast to the supplied class. Unlike the
+     * string-based variant, the class identifies exactly which version
+     * of the service interface the caller uses, so incompatible
+     * providers are never returned. Whether a provider is compatible is
+     * computed once per calling bundle and cached until packages are
+     * refreshed.
+     *
+     * @param clazz the class under which the services were registered.
+     * @param filter the filter criteria or <tt>null</tt> for all services.
+     * @return an array of matching references or <tt>null</tt> if there
+     *         are none.
+     * @throws InvalidSyntaxException if the filter contains an invalid
+     *         filter string.
+     * @throws IllegalStateException if the bundle context is no longer
+     *         valid.
+    **/
+    public ServiceReference[] getServiceReferences(Class clazz, String filter)
+        throws InvalidSyntaxException;
+
+    /**
+     * Returns the reference of the compatible service registered under
+     * the name of the supplied class with the highest ranking; if there
+     * is a tie, the service with the lowest service id is returned.
+     *
+     * @param clazz the class under which the service was registered.
+     * @return the reference or <tt>null</tt> if there is no compatible
+     *         service.
+     * @throws IllegalStateException if the bundle context is no longer
+     *         valid.
+    **/
+    public ServiceReference getServiceReference(Class clazz);
+
+    /**
+     * Registers a batch of services in one atomic update of the service
+     * registry. The three arrays must have the same length; the services
+     * are validated as for <tt>registerService()</tt> and if any of them
+     * is invalid, none of them is registered. The following ordering
+     * guarantees apply:
+     * <ul>
+     *   <li>All services become visible to service look ups at the same
+     *       time, before any <tt>REGISTERED</tt> event is delivered.</li>
+     *   <li>Each service listener receives the events for the batch in
+     *       the order of the supplied arrays.</li>
+     *   <li>Listeners are notified one after another; a listener
+     *       receives all of its events before the next listener receives
+     *       any, so the events of a batch are not interleaved per service
+     *       across listeners as they would be for individual
+     *       registrations.</li>
+     * </ul>
+     *
+     * @param clazzes the class names under which each service is registered.
+     * @param svcObjs the service objects.
+     * @param dicts the properties of each service; the array or any of its
+     *        elements may be <tt>null</tt>.
+     * @return the registrations in the order of the supplied arrays.
+     * @throws IllegalArgumentException if any service is invalid or the
+     *         arrays do not have the same length.
+     * @throws IllegalStateException if the bundle context is no longer
+     *         valid.
+    **/
+    public ServiceRegistration[] registerServices(
+        String[][] clazzes, Object[] svcObjs, Dictionary[] dicts);
+
+    /**
+     * Registers a service whose service object is created on demand by
+     * the supplied supplier, when a bundle first gets the service. The
+     * service is visible to look ups and listeners immediately, but the
+     * supplier is not called until the service is used. The following
+     * scopes are supported:
+     * <ul>
+     *   <li>Singleton scope: the supplier is called once and all bundles
+     *       share the service object; concurrent first requests wait for
+     *       the single construction.</li>
+     *   <li>Bundle scope: the supplier is called once for each bundle
+     *       getting the service, as for a <tt>ServiceFactory</tt>, and
+     *       the object is discarded when the bundle releases it.</li>
+     * </ul>
+     * Since the service object does not exist at registration time, it
+     * is only checked to be an instance of all service classes when it
+     * is created; if it is not, the requesting bundle gets
+     * <tt>null</tt>.
+     *
+     * @param clazzes the class names under which the service is registered.
+     * @param supplier the supplier creating the service object.
+     * @param dict the service properties or <tt>null</tt>.
+     * @param bundleScope <tt>true</tt> for bundle scope, <tt>false</tt>
+     *        for singleton scope.
+     * @return the registration of the service.
+     * @throws IllegalStateException if the bundle context is no longer
+     *         valid.
+    **/
+    public ServiceRegistration registerLazyService(
+        String[] clazzes, ServiceSupplier supplier, Dictionary dict,
+        boolean bundleScope);
+
+    /**
+     * Registers a service whose service objects are created by a
+     * stateless <tt>ServiceFactory</tt> and kept in a bounded pool. A
+     * bundle getting the service borrows an idle service object from the
+     * pool or, if there is none and the pool is not full, gets a new one
+     * from the factory; once the pool is full, bundles share the pooled
+     * objects, preferring the one with the fewest borrowers. Objects
+     * released by bundles return to the pool and are only released to
+     * the factory when the service is unregistered. Since service
+     * objects may be handed to different bundles over time and shared
+     * by several bundles, the factory must not create service objects
+     * that depend on the requesting bundle or keep per-client state.
+     *
+     * @param clazzes the class names under which the service is registered.
+     * @param factory the stateless factory creating the service objects.
+     * @param dict the service properties or <tt>null</tt>.
+     * @param maxSize the maximum number of service objects in the pool.
+     * @return the registration of the service.
+     * @throws IllegalArgumentException if the pool size is not positive.
+     * @throws IllegalStateException if the bundle context is no longer
+     *         valid.
+    **/
+    public ServiceRegistration registerPooledService(
+        String[] clazzes, ServiceFactory factory, Dictionary dict, int maxSize);
+
+    /**
+     * Unregisters a batch of services. The <tt>UNREGISTERING</tt> events
+     * of all services are delivered first, with the same ordering
+     * guarantees as <tt>registerServices()</tt>, while all services are
+     * still registered; then all services are removed from the registry
+     * in one atomic update and finally they are released by all bundles
+     * still using them.
+     *
+     * @param regs the registrations to unregister.
+     * @throws IllegalStateException if any registration is no longer
+     *         valid, in which case no service is unregistered.
+    **/
+    public void unregisterServices(ServiceRegistration[] regs);
+}
@@ -0,0 +1,358 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.ungoverned.oscar.ldap.Mapper;
+import org.ungoverned.oscar.ldap.Node;
+import org.ungoverned.oscar.ldap.Parser;
+
+/**
+ * This class implements the OSGi <tt>Filter</tt> interface using the
+ * LDAP filter parser and evaluator from the <tt>ldap</tt> package. The
+ * filter string is parsed once when the filter is created, including the
+ * conversion of the comparison values to the types of property values,
+ * and the parsed filter is converted to a canonical form, so that
+ * filters that only differ in spelling have the same filter string and
+ * are equal.
+ * References to services of this framework are matched directly against
+ * the registry's property snapshot of the service, which does not
+ * allocate any memory for the common property types.
+**/
+public class OscarFilter implements Filter
+{
+    private Node m_root = null;
+    private String m_toString = null;
+    // Lower case names of the attributes referenced by the filter.
+    private Set m_attrs = null;
+    // The result of the last evaluation against a property snapshot,
+    // which is shared by all listeners using this filter.
+    private volatile MatchResult m_lastMatch = null;
+
+    /**
+     * Construct a filter for a given filter expression string.
+     *
+     * @param expr the filter expression string for the filter.
+     * @throws InvalidSyntaxException if the filter string is not valid.
+    **/
+    public OscarFilter(String expr) throws InvalidSyntaxException
+    {
+        m_root = Parser.parse(expr).normalize();
+        Set attrs = new HashSet();
+        addAttributes(m_root, attrs);
+        m_attrs = Collections.unmodifiableSet(attrs);
+    }
+
+    Node getRoot() // package protected
+    {
+        return m_root;
+    }
+
+    /**
+     * Returns the names of all attributes referenced by this filter;
+     * the result of evaluating the filter can only change if the value
+     * of one of these attributes changes.
+     *
+     * @return an unmodifiable set of lower case attribute names.
+    **/
+    Set getAttributes() // package protected
+    {
+        return m_attrs;
+    }
+
+    private static void addAttributes(Node node, Set attrs)
+    {
+        Node[] children = node.getChildren();
+        if (children != null)
+        {
+            for (int i = 0; i < children.length; i++)
+            {
+                addAttributes(children[i], attrs);
+            }
+        }
+        else
+        {
+            attrs.add(node.getAttribute().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Returns the equality terms on the supplied attributes that any
+     * matching set of properties must satisfy, i.e., the filter itself
+     * if it is such a term or the equality terms of a top-level
+     * conjunction.
+     * Each term is returned as a two element array containing the lower
+     * case attribute name and the value.
+     *
+     * @param attrs the set of lower case attribute names to consider.
+     * @return an array of terms, which is empty if there are none.
+    **/
+    String[][] getRequiredTerms(Set attrs) // package protected
+    {
+        List terms = new ArrayList();
+        if (m_root.getOperator() == Node.AND)
+        {
+            Node[] children = m_root.getChildren();
+            for (int i = 0; i < children.length; i++)
+            {
+                addRequiredTerm(children[i], attrs, terms);
+            }
+        }
+        else
+        {
+            addRequiredTerm(m_root, attrs, terms);
+        }
+        return (String[][]) terms.toArray(new String[terms.size()][]);
+    }
+
+    private static void addRequiredTerm(Node node, Set attrs, List terms)
+    {
+        if (node.getOperator() == Node.EQUAL)
+        {
+            String attr = node.getAttribute().toLowerCase(Locale.ROOT);
+            if (attrs.contains(attr))
+            {
+                terms.add(new String[] { attr, node.getValue() });
+            }
+        }
+    }
+
+    /**
+     * Filter using a service's properties. The filter is executed using
+     * the properties of the referenced service.
+     *
+     * @param ref A reference to the service whose properties will be used
+     *        in the match.
+     * @return <tt>true</tt> if the service's properties match this filter;
+     *         <tt>false</tt> otherwise.
+    **/
+    public boolean match(final ServiceReference ref)
+    {
+        if (ref instanceof ServiceReferenceImpl)
+        {
+            return m_root.evaluate(
+                ((ServiceReferenceImpl) ref).getServiceRegistration().getProperties());
+        }
+        return m_root.evaluate(new Mapper() {
+            public Object lookup(String name)
+            {
+                return ref.getProperty(name);
+            }
+        });
+    }
+
+    /**
+     * Filter using a service property snapshot.
+     *
+     * @param props the property snapshot to match.
+     * @return <tt>true</tt> if the properties match this filter;
+     *         <tt>false</tt> otherwise.
+    **/
+    boolean match(ServiceProperties props) // package protected
+    {
+        return m_root.evaluate(props);
+    }
+
+    /**
+     * Filter using a service property snapshot, reusing the result of
+     * the previous evaluation if it was for the same snapshot. Since
+     * equivalent filters are shared, this avoids evaluating the filter
+     * once for every listener using it when an event is delivered.
+     *
+     * @param props the property snapshot to match.
+     * @return <tt>true</tt> if the properties match this filter;
+     *         <tt>false</tt> otherwise.
+    **/
+    boolean matchShared(ServiceProperties props) // package protected
+    {
+        MatchResult last = m_lastMatch;
+        if ((last != null) && (last.m_props == props))
+        {
+            return last.m_match;
+        }
+        boolean match = m_root.evaluate(props);
+        m_lastMatch = new MatchResult(props, match);
+        return match;
+    }
+
+    /**
+     * Filter using a <tt>Map</tt>, e.g., for matching configuration or
+     * other attributes that are not service properties. Key look ups are
+     * case insensitive; keys that are not strings are ignored.
+     *
+     * @param map the map whose keys and values are used to determine
+     *        a match.
+     * @return <tt>true</tt> if the map's keys and values match this
+     *         filter; <tt>false</tt> otherwise.
+    **/
+    public boolean match(final Map map)
+    {
+        if (map == null)
+        {
+            return false;
+        }
+        return m_root.evaluate(new Mapper() {
+            public Object lookup(String name)
+            {
+                Object value = map.get(name);
+                if (value != null)
+                {
+                    return value;
+                }
+                for (Iterator i = map.entrySet().iterator(); i.hasNext(); )
+                {
+                    Map.Entry entry = (Map.Entry) i.next();
+                    if ((entry.getKey() instanceof String)
+                        && ((String) entry.getKey()).equalsIgnoreCase(name))
+                    {
+                        return entry.getValue();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Filter using a <tt>Dictionary</tt> object. The filter is executed
+     * using the <tt>Dictionary</tt> object's keys and values; key look
+     * ups are case insensitive.
+     *
+     * @param dict the <tt>Dictionary</tt> object whose keys and values
+     *        are used to determine a match.
+     * @return <tt>true</tt> if the <tt>Dictionary</tt> object's keys and
+     *         values match this filter; <tt>false</tt> otherwise.
+     * @throws IllegalArgumentException if the dictionary contains case
+     *         variants of the same key name.
+    **/
+    public boolean match(final Dictionary dict)
+    {
+        if (dict == null)
+        {
+            return false;
+        }
+        return m_root.evaluate(new Mapper() {
+            public Object lookup(String name)
+            {
+                Object value = dict.get(name);
+                if (value != null)
+                {
+                    return value;
+                }
+                for (Enumeration e = dict.keys(); e.hasMoreElements(); )
+                {
+                    Object key = e.nextElement();
+                    if ((key instanceof String)
+                        && ((String) key).equalsIgnoreCase(name))
+                    {
+                        return dict.get(key);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns this filter's filter string.
+     *
+     * @return the filter string.
+    **/
+    public String toString()
+    {
+        if (m_toString == null)
+        {
+            m_toString = m_root.toString();
+        }
+        return m_toString;
+    }
+
+    /**
+     * Compares this filter to another filter by comparing their
+     * filter strings.
+     *
+     * @param obj the object to compare.
+     * @return <tt>true</tt> if the object is a filter with the same
+     *         filter string, <tt>false</tt> otherwise.
+    **/
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+        {
+            return true;
+        }
+        else if (!(obj instanceof Filter))
+        {
+            return false;
+        }
+        return toString().equals(obj.toString());
+    }
+
+    /**
+     * Returns the hash code of this filter's filter string.
+     *
+     * @return the hash code of the filter string.
+    **/
+    public int hashCode()
+    {
+        return toString().hashCode();
+    }
+
+    private static class MatchResult
+    {
+        public final ServiceProperties m_props;
+        public final boolean m_match;
+
+        public MatchResult(ServiceProperties props, boolean match)
+        {
+            m_props = props;
+            m_match = match;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.ungoverned.oscar.util.HeaderParser;
+
+/**
+ * This class computes the package wiring of a set of bundles, i.e., for
+ * each bundle, the bundles exporting the packages it imports according
+ * to their <tt>Import-Package</tt>, <tt>DynamicImport-Package</tt>, and
+ * <tt>Export-Package</tt> headers. Each package is wired to a single
+ * exporter, the exporting bundle with the lowest identifier. Imports of
+ * packages that no bundle exports are left unwired, since such packages
+ * may be provided by the framework's class path. Dynamic imports are
+ * wired to all exported packages they match, but do not make a bundle
+ * depend on the exporters.
+ * <p>
+ * The wiring is used to order the starting of bundles, so that the
+ * exporters of a bundle's packages are started before the bundle
+ * itself, and by the bundle class loaders, which load the classes of
+ * imported packages from the exporting bundles.
+ * <p>
+ * Computing the wiring requires the manifests of all bundles, so the
+ * wiring is stored in the bundle cache at shutdown together with a
+ * fingerprint of the bundles' JAR files and the framework properties.
+ * On the next start, the stored wiring is used as long as the
+ * fingerprint is unchanged.
+**/
+class PackageWiring
+{
+    static final String WIRING_FILE = "wiring";
+
+    private static final int MAGIC = 0x4f535749;
+    private static final int VERSION = 1;
+    private static final Bundle[] EMPTY = new Bundle[0];
+
+    private byte[] m_fingerprint = null;
+    // Maps package names to their exporting bundles.
+    private Map m_exporters = new TreeMap();
+    // The wires from importing bundles to exporting bundles.
+    private List m_wires = new ArrayList();
+    // Maps bundles to the arrays of bundles they import packages from.
+    private Map m_providers = new HashMap();
+    // Maps importing bundles to maps of package names to exporters.
+    private Map m_imports = new HashMap();
+
+    private PackageWiring(byte[] fingerprint)
+    {
+        m_fingerprint = fingerprint;
+    }
+
+    /**
+     * Wires the supplied bundles to each other.
+     *
+     * @param bundles the bundles to wire, which may include the system
+     *        bundle.
+     * @param fingerprint the fingerprint of the bundles, as returned by
+     *        <tt>fingerprint()</tt>.
+     * @return the wiring of the bundles.
+    **/
+    public static PackageWiring resolve(Bundle[] bundles, byte[] fingerprint)
+    {
+        bundles = sort(bundles);
+        PackageWiring wiring = new PackageWiring(fingerprint);
+        for (int i = 0; i < bundles.length; i++)
+        {
+            String[] pkgs = getPackages(bundles[i], Constants.EXPORT_PACKAGE);
+            for (int j = 0; j < pkgs.length; j++)
+            {
+                if (!wiring.m_exporters.containsKey(pkgs[j]))
+                {
+                    wiring.m_exporters.put(pkgs[j], bundles[i]);
+                }
+            }
+        }
+        for (int i = 0; i < bundles.length; i++)
+        {
+            String[] pkgs = getPackages(bundles[i], Constants.IMPORT_PACKAGE);
+            for (int j = 0; j < pkgs.length; j++)
+            {
+                Bundle exporter = (Bundle) wiring.m_exporters.get(pkgs[j]);
+                if ((exporter != null) && (exporter != bundles[i]))
+                {
+                    wiring.m_wires.add(new Wire(bundles[i], pkgs[j], exporter, false));
+                }
+            }
+            pkgs = getPackages(bundles[i], Constants.DYNAMICIMPORT_PACKAGE);
+            for (int j = 0; j < pkgs.length; j++)
+            {
+                wiring.wireDynamic(bundles[i], pkgs[j]);
+            }
+        }
+        wiring.index();
+        return wiring;
+    }
+
+    private void wireDynamic(Bundle importer, String pattern)
+    {
+        String prefix = null;
+        if (pattern.equals("*"))
+        {
+            prefix = "";
+        }
+        else if (pattern.endsWith(".*"))
+        {
+            prefix = pattern.substring(0, pattern.length() - 1);
+        }
+        for (Iterator i = m_exporters.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            String pkg = (String) entry.getKey();
+            if ((entry.getValue() != importer)
+                && ((prefix == null) ? pkg.equals(pattern) : pkg.startsWith(prefix)))
+            {
+                m_wires.add(new Wire(importer, pkg, (Bundle) entry.getValue(), true));
+            }
+        }
+    }
+
+    /**
+     * Builds the providers and the imported packages of the bundles from
+     * the wires; static wires take precedence over dynamic ones.
+    **/
+    private void index()
+    {
+        Map providers = new HashMap();
+        for (int i = 0; i < m_wires.size(); i++)
+        {
+            Wire wire = (Wire) m_wires.get(i);
+            Map imports = (Map) m_imports.get(wire.m_importer);
+            if (imports == null)
+            {
+                imports = new HashMap();
+                m_imports.put(wire.m_importer, imports);
+            }
+            if (!wire.m_dynamic || !imports.containsKey(wire.m_package))
+            {
+                imports.put(wire.m_package, wire.m_exporter);
+            }
+            if (!wire.m_dynamic)
+            {
+                Set set = (Set) providers.get(wire.m_importer);
+                if (set == null)
+                {
+                    set = new LinkedHashSet();
+                    providers.put(wire.m_importer, set);
+                }
+                set.add(wire.m_exporter);
+            }
+        }
+        for (Iterator i = providers.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            Set set = (Set) entry.getValue();
+            m_providers.put(entry.getKey(), set.toArray(new Bundle[set.size()]));
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a set of bundles and the framework
+     * properties, which changes whenever a bundle is installed, updated,
+     * or uninstalled, or a property changes.
+     *
+     * @param bundles the bundles.
+     * @param props the framework properties.
+     * @return the fingerprint.
+    **/
+    public static byte[] fingerprint(Bundle[] bundles, SortedMap props)
+    {
+        bundles = sort(bundles);
+        MessageDigest md = null;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(ex.getMessage());
+        }
+        for (int i = 0; i < bundles.length; i++)
+        {
+            BundleArchive archive = ((BundleImpl) bundles[i]).getInfo().getArchive();
+            if (archive != null)
+            {
+                md.update(Long.toString(archive.getId()).getBytes(StandardCharsets.UTF_8));
+                md.update(archive.getDigest());
+            }
+        }
+        for (Iterator i = props.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            md.update((entry.getKey() + "=" + entry.getValue() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns whether the wiring was computed for the bundles and
+     * properties with the supplied fingerprint.
+    **/
+    public boolean matches(byte[] fingerprint)
+    {
+        return Arrays.equals(m_fingerprint, fingerprint);
+    }
+
+    /**
+     * Returns the bundle a package is wired to.
+     *
+     * @param pkg the name of the package.
+     * @return the exporting bundle or <tt>null</tt> if no bundle exports
+     *         the package.
+    **/
+    public Bundle getExporter(String pkg)
+    {
+        return (Bundle) m_exporters.get(pkg);
+    }
+
+    /**
+     * Returns the bundles that export packages statically imported by a
+     * bundle.
+     *
+     * @param bundle the importing bundle.
+     * @return an array of the exporting bundles, which does not contain
+     *         the importing bundle itself.
+    **/
+    public Bundle[] getProviders(Bundle bundle)
+    {
+        Bundle[] providers = (Bundle[]) m_providers.get(bundle);
+        return (providers == null) ? EMPTY : providers;
+    }
+
+    /**
+     * Returns the packages a bundle imports from other bundles.
+     *
+     * @param bundle the importing bundle.
+     * @return an unmodifiable map of package names to the exporting
+     *         bundles.
+    **/
+    public Map getImports(Bundle bundle)
+    {
+        Map imports = (Map) m_imports.get(bundle);
+        return (imports == null)
+            ? Collections.EMPTY_MAP : Collections.unmodifiableMap(imports);
+    }
+
+    /**
+     * Stores the wiring in a file, which is written atomically and
+     * flushed to disk together with its directory.
+     *
+     * @param file the file.
+     * @throws IOException if the file cannot be written.
+    **/
+    public void store(File file) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(m_fingerprint);
+            out.writeInt(m_exporters.size());
+            for (Iterator i = m_exporters.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                out.writeUTF((String) entry.getKey());
+                out.writeLong(((Bundle) entry.getValue()).getBundleId());
+            }
+            out.writeInt(m_wires.size());
+            for (int i = 0; i < m_wires.size(); i++)
+            {
+                Wire wire = (Wire) m_wires.get(i);
+                out.writeLong(wire.m_importer.getBundleId());
+                out.writeUTF(wire.m_package);
+                out.writeLong(wire.m_exporter.getBundleId());
+                out.writeBoolean(wire.m_dynamic);
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        BundleCacheIndex.forceDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Loads a stored wiring if it was computed for the bundles and
+     * properties with the supplied fingerprint.
+     *
+     * @param file the file.
+     * @param bundles the installed bundles.
+     * @param fingerprint the fingerprint of the bundles.
+     * @return the wiring or <tt>null</tt> if the file does not exist, is
+     *         invalid, or has a different fingerprint.
+    **/
+    public static PackageWiring load(File file, Bundle[] bundles, byte[] fingerprint)
+    {
+        if (!file.exists())
+        {
+            return null;
+        }
+        Map bundleMap = new HashMap();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            bundleMap.put(Long.valueOf(bundles[i].getBundleId()), bundles[i]);
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                byte[] stored = new byte[fingerprint.length];
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                {
+                    return null;
+                }
+                in.readFully(stored);
+                if (!Arrays.equals(stored, fingerprint))
+                {
+                    return null;
+                }
+                PackageWiring wiring = new PackageWiring(fingerprint);
+                for (int i = in.readInt(); i > 0; i--)
+                {
+                    String pkg = in.readUTF();
+                    wiring.m_exporters.put(pkg, getBundle(bundleMap, in.readLong()));
+                }
+                for (int i = in.readInt(); i > 0; i--)
+                {
+                    Bundle importer = getBundle(bundleMap, in.readLong());
+                    String pkg = in.readUTF();
+                    Bundle exporter = getBundle(bundleMap, in.readLong());
+                    wiring.m_wires.add(new Wire(importer, pkg, exporter, in.readBoolean()));
+                }
+                wiring.index();
+                return wiring;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("PackageWiring: Ignoring invalid wiring file " + file, ex);
+            return null;
+        }
+    }
+
+    private static Bundle getBundle(Map bundleMap, long id) throws IOException
+    {
+        Bundle bundle = (Bundle) bundleMap.get(Long.valueOf(id));
+        if (bundle == null)
+        {
+            throw new IOException("Unknown bundle: " + id);
+        }
+        return bundle;
+    }
+
+    private static Bundle[] sort(Bundle[] bundles)
+    {
+        bundles = bundles.clone();
+        Arrays.sort(bundles, new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                long id1 = ((Bundle) o1).getBundleId();
+                long id2 = ((Bundle) o2).getBundleId();
+                return (id1 < id2) ? -1 : ((id1 > id2) ? 1 : 0);
+            }
+        });
+        return bundles;
+    }
+
+    private static String[] getPackages(Bundle bundle, String header)
+    {
+        List pkgs = new ArrayList();
+        try
+        {
+            HeaderParser.Clause[] clauses = HeaderParser.parse(
+                (String) bundle.getHeaders().get(header));
+            for (int i = 0; i < clauses.length; i++)
+            {
+                pkgs.addAll(Arrays.asList(clauses[i].getNames()));
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Oscar.error("PackageWiring: Invalid " + header + " header in bundle "
+                + bundle.getBundleId() + ".", ex);
+        }
+        return (String[]) pkgs.toArray(new String[pkgs.size()]);
+    }
+
+    /**
+     * A wire from a bundle importing a package to the bundle exporting it.
+    **/
+    private static class Wire
+    {
+        private Bundle m_importer = null;
+        private String m_package = null;
+        private Bundle m_exporter = null;
+        private boolean m_dynamic = false;
+
+        Wire(Bundle importer, String pkg, Bundle exporter, boolean dynamic)
+        {
+            m_importer = importer;
+            m_package = pkg;
+            m_exporter = exporter;
+            m_dynamic = dynamic;
+        }
+    }
+}
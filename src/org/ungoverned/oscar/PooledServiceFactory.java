@@ -0,0 +1,317 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * This class is the service factory registered for pooled services; it
+ * keeps a bounded pool of service objects created by a stateless
+ * <tt>ServiceFactory</tt>. A bundle getting the service borrows an idle
+ * service object or, if there is none and the pool is not full, one
+ * newly created by the provider's factory; once the pool is full, the
+ * bundle shares the service object with the fewest borrowers. When a
+ * bundle releases the service, its service object returns to the pool
+ * instead of being discarded. The pooled objects are released to the
+ * provider's factory when the service is unregistered.
+ * <p>
+ * The methods without parameters report the size and usage of the pool.
+**/
+public class PooledServiceFactory implements ServiceFactory
+{
+    private ServiceFactory m_factory = null;
+    private int m_maxSize = 0;
+    // All pooled objects and the entries of the borrowed objects.
+    private List m_entries = new ArrayList();
+    private Map m_borrowed = new IdentityHashMap();
+    // Idle objects; the most recently returned object is reused first.
+    private List m_idle = new ArrayList();
+    // The number of objects being created by the provider's factory.
+    private int m_creating = 0;
+    private boolean m_closed = false;
+    // Statistics.
+    private long m_createCount = 0;
+    private long m_borrowCount = 0;
+    private long m_shareCount = 0;
+
+    PooledServiceFactory(ServiceFactory factory, int maxSize)
+    {
+        m_factory = factory;
+        m_maxSize = maxSize;
+    }
+
+    public Object getService(Bundle bundle, ServiceRegistration reg)
+    {
+        synchronized (this)
+        {
+            while (!m_closed)
+            {
+                m_borrowCount++;
+                if (m_idle.size() > 0)
+                {
+                    PoolEntry entry = (PoolEntry) m_idle.remove(m_idle.size() - 1);
+                    entry.m_borrowers = 1;
+                    return entry.m_svcObj;
+                }
+                else if ((m_entries.size() + m_creating) < m_maxSize)
+                {
+                    m_creating++;
+                    break;
+                }
+                else if (m_entries.size() > 0)
+                {
+                    m_shareCount++;
+                    PoolEntry entry = getLeastBorrowed();
+                    entry.m_borrowers++;
+                    return entry.m_svcObj;
+                }
+
+                // All objects of the pool are being created, so wait
+                // for one of them.
+                m_borrowCount--;
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (m_closed)
+            {
+                return null;
+            }
+        }
+
+        // Create the object without holding the lock, since the
+        // provider's factory may take a long time.
+        Object svcObj = null;
+        boolean created = false;
+        try
+        {
+            svcObj = m_factory.getService(bundle, reg);
+            created = true;
+        }
+        finally
+        {
+            if (!created)
+            {
+                endCreation();
+            }
+        }
+
+        synchronized (this)
+        {
+            endCreation();
+            if (svcObj == null)
+            {
+                return null;
+            }
+            else if (!m_closed)
+            {
+                PoolEntry entry = new PoolEntry();
+                entry.m_svcObj = svcObj;
+                entry.m_bundle = bundle;
+                entry.m_borrowers = 1;
+                m_entries.add(entry);
+                m_borrowed.put(svcObj, entry);
+                m_createCount++;
+                return svcObj;
+            }
+        }
+
+        // The service was unregistered while creating the object.
+        m_factory.ungetService(bundle, reg, svcObj);
+        return null;
+    }
+
+    private synchronized void endCreation()
+    {
+        // Wake up bundles waiting for an object being created.
+        m_creating--;
+        notifyAll();
+    }
+
+    public void ungetService(Bundle bundle, ServiceRegistration reg, Object svcObj)
+    {
+        PoolEntry entry = null;
+        synchronized (this)
+        {
+            entry = (PoolEntry) m_borrowed.get(svcObj);
+            if ((entry == null) || (--entry.m_borrowers > 0))
+            {
+                return;
+            }
+            if (!m_closed)
+            {
+                m_idle.add(entry);
+                return;
+            }
+            m_entries.remove(entry);
+            m_borrowed.remove(svcObj);
+        }
+
+        // The service was unregistered, so the last borrower releases
+        // the object.
+        m_factory.ungetService(entry.m_bundle, reg, svcObj);
+    }
+
+    /**
+     * Releases all idle objects to the provider's factory when the
+     * service is unregistered; borrowed objects are released when they
+     * are returned.
+     *
+     * @param reg the registration of the service.
+    **/
+    void close(ServiceRegistration reg) // package protected
+    {
+        PoolEntry[] idle = null;
+        synchronized (this)
+        {
+            m_closed = true;
+            idle = (PoolEntry[]) m_idle.toArray(new PoolEntry[m_idle.size()]);
+            m_idle.clear();
+            for (int i = 0; i < idle.length; i++)
+            {
+                m_entries.remove(idle[i]);
+                m_borrowed.remove(idle[i].m_svcObj);
+            }
+            notifyAll();
+        }
+
+        for (int i = 0; i < idle.length; i++)
+        {
+            try
+            {
+                m_factory.ungetService(idle[i].m_bundle, reg, idle[i].m_svcObj);
+            }
+            catch (Exception ex)
+            {
+                Oscar.error("PooledServiceFactory: Error releasing service object.", ex);
+            }
+        }
+    }
+
+    private PoolEntry getLeastBorrowed()
+    {
+        PoolEntry least = null;
+        for (int i = 0; i < m_entries.size(); i++)
+        {
+            PoolEntry entry = (PoolEntry) m_entries.get(i);
+            if ((least == null) || (entry.m_borrowers < least.m_borrowers))
+            {
+                least = entry;
+            }
+        }
+        return least;
+    }
+
+    /**
+     * Returns the maximum number of service objects in the pool.
+    **/
+    public int getMaxSize()
+    {
+        return m_maxSize;
+    }
+
+    /**
+     * Returns the number of service objects currently in the pool,
+     * whether idle or borrowed.
+    **/
+    public synchronized int getSize()
+    {
+        return m_entries.size();
+    }
+
+    /**
+     * Returns the number of idle service objects in the pool.
+    **/
+    public synchronized int getIdleCount()
+    {
+        return m_idle.size();
+    }
+
+    /**
+     * Returns the number of service objects created by the provider's
+     * factory since the service was registered.
+    **/
+    public synchronized long getCreateCount()
+    {
+        return m_createCount;
+    }
+
+    /**
+     * Returns the number of times a bundle got a service object from
+     * the pool.
+    **/
+    public synchronized long getBorrowCount()
+    {
+        return m_borrowCount;
+    }
+
+    /**
+     * Returns the number of times a bundle got a service object that
+     * was already borrowed, because the pool was full.
+    **/
+    public synchronized long getShareCount()
+    {
+        return m_shareCount;
+    }
+
+    public synchronized String toString()
+    {
+        return "size=" + m_entries.size() + "/" + m_maxSize
+            + ", idle=" + m_idle.size() + ", created=" + m_createCount
+            + ", borrowed=" + m_borrowCount + ", shared=" + m_shareCount;
+    }
+
+    private static class PoolEntry
+    {
+        public Object m_svcObj = null;
+        // The bundle for which the provider's factory created the object.
+        public Bundle m_bundle = null;
+        public int m_borrowers = 0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class keeps track of the registered find and event hooks and
+ * calls them. It listens for the registration of hook services itself
+ * and keeps the hooks sorted by service ranking in arrays that are
+ * replaced on change, so that calling the hooks never blocks. When no
+ * hooks are registered, look ups and event deliveries are not affected.
+**/
+class ServiceHooks implements ServiceListener
+{
+    // Filter selecting the hook services.
+    public static final String FILTER = "(|(objectClass=" + FindHook.class.getName()
+        + ")(objectClass=" + EventHook.class.getName() + "))";
+
+    private static final HookEntry[] m_emptyList = new HookEntry[0];
+
+    private ServiceRegistry m_registry = null;
+
+    // The hooks, sorted by ranking.
+    private volatile HookEntry[] m_findHooks = m_emptyList;
+    private volatile HookEntry[] m_eventHooks = m_emptyList;
+
+    public ServiceHooks(ServiceRegistry registry)
+    {
+        m_registry = registry;
+    }
+
+    public synchronized void serviceChanged(ServiceEvent event)
+    {
+        ServiceRegistrationImpl reg = ((ServiceReferenceImpl)
+            event.getServiceReference()).getServiceRegistration();
+        boolean add = (event.getType() != ServiceEvent.UNREGISTERING);
+        String[] classes = reg.getClasses();
+        for (int i = 0; i < classes.length; i++)
+        {
+            if (classes[i].equals(FindHook.class.getName()))
+            {
+                m_findHooks = update(m_findHooks, reg, FindHook.class, add);
+            }
+            else if (classes[i].equals(EventHook.class.getName()))
+            {
+                m_eventHooks = update(m_eventHooks, reg, EventHook.class, add);
+            }
+        }
+    }
+
+    /**
+     * Lets the find hooks remove references from the result of a look
+     * up.
+     *
+     * @param bundle the bundle looking up the services.
+     * @param name the requested class name or <tt>null</tt>.
+     * @param filter the filter of the look up or <tt>null</tt>.
+     * @param refs the matching references or <tt>null</tt>.
+     * @return the remaining references or <tt>null</tt> if there are none.
+    **/
+    public ServiceReference[] find(
+        Bundle bundle, String name, String filter, ServiceReference[] refs)
+    {
+        HookEntry[] hooks = m_findHooks;
+        if ((hooks.length == 0) || (refs == null))
+        {
+            return refs;
+        }
+
+        List list = new ArrayList(Arrays.asList(refs));
+        Collection shrinkable = new ShrinkableCollection(list);
+        for (int i = 0; (i < hooks.length) && (list.size() > 0); i++)
+        {
+            try
+            {
+                ((FindHook) hooks[i].m_hook).find(bundle, name, filter, shrinkable);
+            }
+            catch (Throwable th)
+            {
+                Oscar.error("ServiceHooks: Error calling find hook.", th);
+            }
+        }
+
+        if (list.size() == refs.length)
+        {
+            return refs;
+        }
+        return (list.size() == 0)
+            ? null : (ServiceReference[]) list.toArray(new ServiceReference[list.size()]);
+    }
+
+    /**
+     * Lets the event hooks remove listeners from the recipients of a
+     * service event; a hook removes all listeners of a bundle at once.
+     *
+     * @param event the service event.
+     * @param listeners the candidate listeners of the event.
+     * @return the listeners that receive the event.
+    **/
+    public ServiceListenerWrapper[] event(
+        ServiceEvent event, ServiceListenerWrapper[] listeners)
+    {
+        HookEntry[] hooks = m_eventHooks;
+        if ((hooks.length == 0) || (listeners.length == 0))
+        {
+            return listeners;
+        }
+
+        // Collect the bundles owning the listeners; the system bundle
+        // always receives events.
+        Set bundleSet = new HashSet();
+        List bundles = new ArrayList();
+        for (int i = 0; i < listeners.length; i++)
+        {
+            Bundle bundle = listeners[i].getBundle();
+            if ((bundle.getBundleId() != 0) && bundleSet.add(bundle))
+            {
+                bundles.add(bundle);
+            }
+        }
+        if (bundles.size() == 0)
+        {
+            return listeners;
+        }
+
+        Collection shrinkable = new ShrinkableCollection(bundles);
+        for (int i = 0; (i < hooks.length) && (bundles.size() > 0); i++)
+        {
+            try
+            {
+                ((EventHook) hooks[i].m_hook).event(event, shrinkable);
+            }
+            catch (Throwable th)
+            {
+                Oscar.error("ServiceHooks: Error calling event hook.", th);
+            }
+        }
+
+        if (bundles.size() == bundleSet.size())
+        {
+            return listeners;
+        }
+        bundleSet.retainAll(bundles);
+        List list = new ArrayList(listeners.length);
+        for (int i = 0; i < listeners.length; i++)
+        {
+            Bundle bundle = listeners[i].getBundle();
+            if ((bundle.getBundleId() == 0) || bundleSet.contains(bundle))
+            {
+                list.add(listeners[i]);
+            }
+        }
+        return (ServiceListenerWrapper[]) list.toArray(
+            new ServiceListenerWrapper[list.size()]);
+    }
+
+    private HookEntry[] update(
+        HookEntry[] hooks, ServiceRegistrationImpl reg, Class type, boolean add)
+    {
+        List list = new ArrayList(hooks.length + 1);
+        HookEntry entry = null;
+        for (int i = 0; i < hooks.length; i++)
+        {
+            if (hooks[i].m_reg == reg)
+            {
+                entry = hooks[i];
+            }
+            else
+            {
+                list.add(hooks[i]);
+            }
+        }
+        if (add)
+        {
+            if (entry == null)
+            {
+                // The hook is used on behalf of the bundle registering
+                // it and is released when it is unregistered.
+                entry = new HookEntry();
+                entry.m_reg = reg;
+                entry.m_hook = m_registry.getService(reg.getBundle(), reg.getReference());
+            }
+            if (type.isInstance(entry.m_hook))
+            {
+                list.add(entry);
+            }
+        }
+        // Sort by ranking, since the ranking may have been modified.
+        HookEntry[] newHooks = (HookEntry[]) list.toArray(new HookEntry[list.size()]);
+        Arrays.sort(newHooks, RANKING_ORDER);
+        return newHooks;
+    }
+
+    // Orders hooks by descending ranking and ascending id.
+    private static final Comparator RANKING_ORDER = new Comparator() {
+        public int compare(Object o1, Object o2)
+        {
+            ServiceRegistrationImpl r1 = ((HookEntry) o1).m_reg;
+            ServiceRegistrationImpl r2 = ((HookEntry) o2).m_reg;
+            if (r1.getRanking() != r2.getRanking())
+            {
+                return (r1.getRanking() > r2.getRanking()) ? -1 : 1;
+            }
+            return r1.getServiceId().compareTo(r2.getServiceId());
+        }
+    };
+
+    private static class HookEntry
+    {
+        public ServiceRegistrationImpl m_reg = null;
+        public Object m_hook = null;
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.ungoverned.oscar.ldap.Node;
+
+/**
+ * This class keeps track of registered service listeners and routes
+ * service events to them. Listeners whose filters require specific values
+ * of indexed service properties, e.g., filters like
+ * <tt>(objectClass=foo.Bar)</tt> or
+ * <tt>(&amp;(objectClass=foo.Bar)(tenant=acme))</tt>, are indexed by those
+ * property values, so that an event is only routed to the listeners
+ * indexed under one of the service's property values and to the listeners
+ * that cannot be indexed. The <tt>objectClass</tt> property is always
+ * indexed; additional properties are configured using the
+ * <tt>oscar.service.index.attributes</tt> property.
+ * <p>
+ * The index is copy-on-write: modifications create a new immutable
+ * snapshot under a lock, while routing simply reads the current
+ * snapshot and never blocks.
+**/
+class ServiceListenerIndex
+{
+    private static final String OBJECTCLASS = Constants.OBJECTCLASS.toLowerCase(Locale.ROOT);
+    private static final ServiceListenerWrapper[] m_emptyList =
+        new ServiceListenerWrapper[0];
+
+    // Lower case names of the indexed properties.
+    private Set m_indexedAttrs = null;
+    // The current snapshot of the index.
+    private volatile Snapshot m_snapshot = new Snapshot(
+        new HashMap(), m_emptyList, m_emptyList);
+
+    /**
+     * Creates a listener index.
+     *
+     * @param attrs the lower case names of the indexed properties in
+     *        addition to <tt>objectClass</tt>.
+    **/
+    public ServiceListenerIndex(Set attrs)
+    {
+        m_indexedAttrs = new HashSet(attrs);
+        m_indexedAttrs.add(OBJECTCLASS);
+    }
+
+    /**
+     * Adds a service listener to the index; if the listener is already
+     * registered, then only its filter is replaced.
+     *
+     * @param bundle the bundle registering the listener.
+     * @param l the service listener.
+     * @param filter the listener's filter or <tt>null</tt>.
+    **/
+    public synchronized void addListener(
+        Bundle bundle, ServiceListener l, Filter filter)
+    {
+        ServiceListenerWrapper old = find(l);
+        if (old != null)
+        {
+            remove(old);
+        }
+        add(new ServiceListenerWrapper(bundle, l, filter));
+    }
+
+    /**
+     * Removes a service listener from the index.
+     *
+     * @param l the service listener to remove.
+    **/
+    public synchronized void removeListener(ServiceListener l)
+    {
+        ServiceListenerWrapper old = find(l);
+        if (old != null)
+        {
+            remove(old);
+        }
+    }
+
+    /**
+     * Removes all service listeners registered by the supplied bundle.
+     *
+     * @param bundle the bundle whose listeners are removed.
+    **/
+    public synchronized void removeListeners(Bundle bundle)
+    {
+        ServiceListenerWrapper[] all = m_snapshot.m_all;
+        for (int i = 0; i < all.length; i++)
+        {
+            if (bundle.equals(all[i].getBundle()))
+            {
+                remove(all[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns all registered service listeners.
+     *
+     * @return an array of all service listener wrappers.
+    **/
+    public ServiceListenerWrapper[] getListeners()
+    {
+        return m_snapshot.m_all;
+    }
+
+    /**
+     * Returns the service listeners that may be interested in events for
+     * the supplied service reference; the returned listeners still have
+     * to check their filters.
+     *
+     * @param ref the service reference of the event.
+     * @return an array of candidate service listener wrappers.
+    **/
+    public ServiceListenerWrapper[] getListeners(ServiceReference ref)
+    {
+        return getListeners(
+            ((ServiceReferenceImpl) ref).getServiceRegistration().getProperties());
+    }
+
+    /**
+     * Returns the service listeners that may be interested in events for
+     * a service with the supplied properties; the returned listeners
+     * still have to check their filters.
+     *
+     * @param props the service properties.
+     * @return an array of candidate service listener wrappers.
+    **/
+    public ServiceListenerWrapper[] getListeners(ServiceProperties props)
+    {
+        Snapshot snapshot = m_snapshot;
+
+        // Fast path for the common case of a single service class and
+        // only class-indexed listeners.
+        if ((snapshot.m_unindexed.length == 0) && (snapshot.m_attrMap.size() == 1))
+        {
+            String[] classes = (String[]) props.get(Constants.OBJECTCLASS);
+            Map valueMap = (Map) snapshot.m_attrMap.get(OBJECTCLASS);
+            if ((classes.length == 1) && (valueMap != null))
+            {
+                ServiceListenerWrapper[] listeners =
+                    (ServiceListenerWrapper[]) valueMap.get(classes[0]);
+                return (listeners == null) ? m_emptyList : listeners;
+            }
+        }
+
+        // Collect the buckets of all indexed property values.
+        List buckets = new ArrayList();
+        for (Iterator i = snapshot.m_attrMap.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            Object value = props.get((String) entry.getKey());
+            if (value == null)
+            {
+                // Listeners indexed by this property cannot match.
+                continue;
+            }
+            Map valueMap = (Map) entry.getValue();
+            String[] values = getStringValues(value);
+            if (values == null)
+            {
+                // The value cannot be looked up by string, since filter
+                // values are converted to the type of the property value
+                // when evaluated; all listeners indexed by the property
+                // are candidates.
+                buckets.addAll(valueMap.values());
+                continue;
+            }
+            for (int j = 0; j < values.length; j++)
+            {
+                Object bucket = valueMap.get(values[j]);
+                if (bucket != null)
+                {
+                    buckets.add(bucket);
+                }
+            }
+        }
+        if (snapshot.m_unindexed.length > 0)
+        {
+            buckets.add(snapshot.m_unindexed);
+        }
+
+        if (buckets.size() == 0)
+        {
+            return m_emptyList;
+        }
+        else if (buckets.size() == 1)
+        {
+            return (ServiceListenerWrapper[]) buckets.get(0);
+        }
+
+        // A listener may be reachable through multiple buckets.
+        List list = new ArrayList();
+        Map seen = new IdentityHashMap();
+        for (int i = 0; i < buckets.size(); i++)
+        {
+            ServiceListenerWrapper[] listeners = (ServiceListenerWrapper[]) buckets.get(i);
+            for (int j = 0; j < listeners.length; j++)
+            {
+                if (seen.put(listeners[j], listeners[j]) == null)
+                {
+                    list.add(listeners[j]);
+                }
+            }
+        }
+        return (ServiceListenerWrapper[]) list.toArray(
+            new ServiceListenerWrapper[list.size()]);
+    }
+
+    /**
+     * Returns the service listeners that may be interested in a
+     * modification of a service's properties, i.e., the candidates for
+     * both the old and the new properties, since listeners that matched
+     * only the old properties have to be told that the service no
+     * longer matches.
+     *
+     * @param oldProps the properties before the modification.
+     * @param newProps the properties after the modification.
+     * @return an array of candidate service listener wrappers.
+    **/
+    public ServiceListenerWrapper[] getListeners(
+        ServiceProperties oldProps, ServiceProperties newProps)
+    {
+        ServiceListenerWrapper[] oldListeners = getListeners(oldProps);
+        ServiceListenerWrapper[] newListeners = getListeners(newProps);
+        if ((oldListeners == newListeners) || (oldListeners.length == 0))
+        {
+            return newListeners;
+        }
+        else if (newListeners.length == 0)
+        {
+            return oldListeners;
+        }
+
+        List list = new ArrayList(newListeners.length + oldListeners.length);
+        Map seen = new IdentityHashMap();
+        for (int pass = 0; pass < 2; pass++)
+        {
+            ServiceListenerWrapper[] listeners = (pass == 0) ? newListeners : oldListeners;
+            for (int i = 0; i < listeners.length; i++)
+            {
+                if (seen.put(listeners[i], listeners[i]) == null)
+                {
+                    list.add(listeners[i]);
+                }
+            }
+        }
+        return (ServiceListenerWrapper[]) list.toArray(
+            new ServiceListenerWrapper[list.size()]);
+    }
+
+    /**
+     * Returns the values of the supplied property value as strings if
+     * the value is a string or an array or collection of strings.
+     *
+     * @param value the property value.
+     * @return an array of strings or <tt>null</tt> if the value contains
+     *         values of other types.
+    **/
+    static String[] getStringValues(Object value) // package protected
+    {
+        if (value instanceof String)
+        {
+            return new String[] { (String) value };
+        }
+        else if (value instanceof String[])
+        {
+            return (String[]) value;
+        }
+        else if (value instanceof Collection)
+        {
+            Collection c = (Collection) value;
+            String[] values = new String[c.size()];
+            int idx = 0;
+            for (Iterator i = c.iterator(); i.hasNext(); )
+            {
+                Object obj = i.next();
+                if (!(obj instanceof String))
+                {
+                    return null;
+                }
+                values[idx++] = (String) obj;
+            }
+            return values;
+        }
+        return null;
+    }
+
+    private ServiceListenerWrapper find(ServiceListener l)
+    {
+        ServiceListenerWrapper[] all = m_snapshot.m_all;
+        for (int i = 0; i < all.length; i++)
+        {
+            if (all[i].getListener() == l)
+            {
+                return all[i];
+            }
+        }
+        return null;
+    }
+
+    private void add(ServiceListenerWrapper wrapper)
+    {
+        Snapshot snapshot = m_snapshot;
+        Map attrMap = snapshot.m_attrMap;
+        ServiceListenerWrapper[] unindexed = snapshot.m_unindexed;
+
+        List keys = getIndexKeys(wrapper.getFilter());
+        if (keys == null)
+        {
+            unindexed = append(unindexed, wrapper);
+        }
+        else
+        {
+            attrMap = new HashMap(attrMap);
+            for (int i = 0; i < keys.size(); i++)
+            {
+                String[] key = (String[]) keys.get(i);
+                Map valueMap = (Map) attrMap.get(key[0]);
+                valueMap = (valueMap == null) ? new HashMap() : new HashMap(valueMap);
+                attrMap.put(key[0], valueMap);
+                ServiceListenerWrapper[] listeners =
+                    (ServiceListenerWrapper[]) valueMap.get(key[1]);
+                valueMap.put(key[1], append(listeners, wrapper));
+            }
+        }
+
+        m_snapshot = new Snapshot(
+            attrMap, unindexed, append(snapshot.m_all, wrapper));
+    }
+
+    private void remove(ServiceListenerWrapper wrapper)
+    {
+        Snapshot snapshot = m_snapshot;
+        Map attrMap = snapshot.m_attrMap;
+        ServiceListenerWrapper[] unindexed = snapshot.m_unindexed;
+
+        List keys = getIndexKeys(wrapper.getFilter());
+        if (keys == null)
+        {
+            unindexed = remove(unindexed, wrapper);
+        }
+        else
+        {
+            attrMap = new HashMap(attrMap);
+            for (int i = 0; i < keys.size(); i++)
+            {
+                String[] key = (String[]) keys.get(i);
+                Map valueMap = (Map) attrMap.get(key[0]);
+                if (valueMap == null)
+                {
+                    continue;
+                }
+                valueMap = new HashMap(valueMap);
+                ServiceListenerWrapper[] listeners =
+                    (ServiceListenerWrapper[]) valueMap.get(key[1]);
+                listeners = (listeners == null) ? m_emptyList : remove(listeners, wrapper);
+                if (listeners.length == 0)
+                {
+                    valueMap.remove(key[1]);
+                }
+                else
+                {
+                    valueMap.put(key[1], listeners);
+                }
+                if (valueMap.size() == 0)
+                {
+                    attrMap.remove(key[0]);
+                }
+                else
+                {
+                    attrMap.put(key[0], valueMap);
+                }
+            }
+        }
+
+        m_snapshot = new Snapshot(
+            attrMap, unindexed, remove(snapshot.m_all, wrapper));
+    }
+
+    /**
+     * Determines the property values under which a listener with the
+     * supplied filter has to be indexed.
+     *
+     * @param filter the filter to analyze.
+     * @return a list of two element arrays containing the lower case
+     *         property name and the value, or <tt>null</tt> if the filter
+     *         cannot be indexed.
+    **/
+    private List getIndexKeys(Filter filter)
+    {
+        if (!(filter instanceof OscarFilter))
+        {
+            return null;
+        }
+        return getIndexKeys(((OscarFilter) filter).getRoot());
+    }
+
+    private List getIndexKeys(Node node)
+    {
+        switch (node.getOperator())
+        {
+            case Node.EQUAL:
+                String attr = node.getAttribute().toLowerCase(Locale.ROOT);
+                if (m_indexedAttrs.contains(attr))
+                {
+                    List keys = new ArrayList();
+                    keys.add(new String[] { attr, node.getValue() });
+                    return keys;
+                }
+                return null;
+            case Node.AND:
+                // A conjunction can only match if all of its terms match,
+                // so any indexable term is sufficient; prefer terms other
+                // than objectClass, since they are usually more selective.
+                List best = null;
+                Node[] children = node.getChildren();
+                for (int i = 0; i < children.length; i++)
+                {
+                    List keys = getIndexKeys(children[i]);
+                    if ((keys != null) && ((best == null) || isClassOnly(best)))
+                    {
+                        best = keys;
+                    }
+                }
+                return best;
+            case Node.OR:
+                // A disjunction is only indexable if all of its
+                // terms are indexable.
+                List union = new ArrayList();
+                children = node.getChildren();
+                for (int i = 0; i < children.length; i++)
+                {
+                    List keys = getIndexKeys(children[i]);
+                    if (keys == null)
+                    {
+                        return null;
+                    }
+                    for (int j = 0; j < keys.size(); j++)
+                    {
+                        if (!containsKey(union, (String[]) keys.get(j)))
+                        {
+                            union.add(keys.get(j));
+                        }
+                    }
+                }
+                return union;
+        }
+        return null;
+    }
+
+    private static boolean isClassOnly(List keys)
+    {
+        for (int i = 0; i < keys.size(); i++)
+        {
+            if (!((String[]) keys.get(i))[0].equals(OBJECTCLASS))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsKey(List keys, String[] key)
+    {
+        for (int i = 0; i < keys.size(); i++)
+        {
+            String[] k = (String[]) keys.get(i);
+            if (k[0].equals(key[0]) && k[1].equals(key[1]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ServiceListenerWrapper[] append(
+        ServiceListenerWrapper[] listeners, ServiceListenerWrapper wrapper)
+    {
+        if (listeners == null)
+        {
+            return new ServiceListenerWrapper[] { wrapper };
+        }
+        ServiceListenerWrapper[] newList =
+            new ServiceListenerWrapper[listeners.length + 1];
+        System.arraycopy(listeners, 0, newList, 0, listeners.length);
+        newList[listeners.length] = wrapper;
+        return newList;
+    }
+
+    private static ServiceListenerWrapper[] remove(
+        ServiceListenerWrapper[] listeners, ServiceListenerWrapper wrapper)
+    {
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (listeners[i] == wrapper)
+            {
+                if (listeners.length == 1)
+                {
+                    return m_emptyList;
+                }
+                ServiceListenerWrapper[] newList =
+                    new ServiceListenerWrapper[listeners.length - 1];
+                System.arraycopy(listeners, 0, newList, 0, i);
+                System.arraycopy(
+                    listeners, i + 1, newList, i, newList.length - i);
+                return newList;
+            }
+        }
+        return listeners;
+    }
+
+    private static class Snapshot
+    {
+        // Maps lower case property name to a map of property
+        // values to arrays of listener wrappers.
+        public final Map m_attrMap;
+        // Listeners that are not indexed.
+        public final ServiceListenerWrapper[] m_unindexed;
+        // All listeners in the order they were added.
+        public final ServiceListenerWrapper[] m_all;
+
+        public Snapshot(Map attrMap,
+            ServiceListenerWrapper[] unindexed, ServiceListenerWrapper[] all)
+        {
+            m_attrMap = attrMap;
+            m_unindexed = unindexed;
+            m_all = all;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.ungoverned.oscar.util.ListenerWrapper;
+import org.ungoverned.oscar.util.OscarConstants;
+
+/**
+ * This class wraps a service listener and its filter. Filters are
+ * evaluated directly against the immutable property snapshots of the
+ * services, which requires neither locking nor allocation. When a
+ * service's properties are modified, whether the service matched before
+ * is derived from the old snapshot; if the filter does not reference
+ * any of the modified properties, the filter is evaluated only once,
+ * since its result cannot have changed.
+**/
+class ServiceListenerWrapper extends ListenerWrapper implements ServiceListener
+{
+    // LDAP query filter.
+    private volatile Filter m_filter = null;
+
+    public ServiceListenerWrapper(
+        Bundle bundle, ServiceListener l, Filter filter)
+    {
+        super(bundle, ServiceListener.class, l);
+        m_filter = filter;
+    }
+
+    public void setFilter(Filter filter)
+    {
+        m_filter = filter;
+    }
+
+    public Filter getFilter()
+    {
+        return m_filter;
+    }
+
+    public void serviceChanged(ServiceEvent event)
+    {
+        // Only deliver the event if the service matches the filter.
+        Filter filter = m_filter;
+        if (filter == null)
+        {
+            ((ServiceListener) getListener()).serviceChanged(event);
+            return;
+        }
+
+        ServiceRegistrationImpl reg =
+            ((ServiceReferenceImpl) event.getServiceReference()).getServiceRegistration();
+        if (match(filter, reg, reg.getProperties()))
+        {
+            ((ServiceListener) getListener()).serviceChanged(event);
+        }
+    }
+
+    /**
+     * Delivers the appropriate event for a modification of the supplied
+     * registration's properties: a <tt>MODIFIED</tt> event if the
+     * service matches the filter after the modification, or a
+     * <tt>SERVICE_MODIFIED_ENDMATCH</tt> event if it only matched
+     * before the modification.
+     *
+     * @param reg the modified registration.
+     * @param oldProps the properties before the modification.
+     * @param newProps the properties after the modification.
+     * @param changed the lower case names of the modified properties.
+     * @param modified the <tt>MODIFIED</tt> event.
+     * @param endMatch the <tt>SERVICE_MODIFIED_ENDMATCH</tt> event.
+    **/
+    public void serviceModified(
+        ServiceRegistrationImpl reg, ServiceProperties oldProps,
+        ServiceProperties newProps, Set changed,
+        ServiceEvent modified, ServiceEvent endMatch)
+    {
+        Filter filter = m_filter;
+        if (filter == null)
+        {
+            ((ServiceListener) getListener()).serviceChanged(modified);
+            return;
+        }
+
+        boolean newMatch;
+        boolean oldMatch;
+        if (references(filter, changed))
+        {
+            newMatch = match(filter, reg, newProps);
+            oldMatch = match(filter, reg, oldProps);
+        }
+        else
+        {
+            // The filter does not reference any modified property, so
+            // its result cannot have changed.
+            newMatch = match(filter, reg, newProps);
+            oldMatch = newMatch;
+        }
+
+        if (newMatch)
+        {
+            ((ServiceListener) getListener()).serviceChanged(modified);
+        }
+        else if (oldMatch)
+        {
+            ((ServiceListener) getListener()).serviceChanged(endMatch);
+        }
+    }
+
+    private static boolean references(Filter filter, Set changed)
+    {
+        if (!(filter instanceof OscarFilter))
+        {
+            return true;
+        }
+        Set attrs = ((OscarFilter) filter).getAttributes();
+        if (attrs.size() < changed.size())
+        {
+            for (Iterator i = attrs.iterator(); i.hasNext(); )
+            {
+                if (changed.contains(i.next()))
+                {
+                    return true;
+                }
+            }
+        }
+        else
+        {
+            for (Iterator i = changed.iterator(); i.hasNext(); )
+            {
+                if (attrs.contains(i.next()))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean match(
+        Filter filter, ServiceRegistrationImpl reg, ServiceProperties props)
+    {
+        if (filter instanceof OscarFilter)
+        {
+            return ((OscarFilter) filter).matchShared(props);
+        }
+        else if (props == reg.getProperties())
+        {
+            return filter.match(reg.getReference());
+        }
+        // Other filter implementations can only be evaluated against a
+        // copy of earlier properties.
+        Hashtable dict = new Hashtable();
+        for (int i = 0; i < props.size(); i++)
+        {
+            dict.put(props.getKey(i), props.getValue(i));
+        }
+        return filter.match(dict);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records the calls made through the instrumented proxies of
+ * a service: for each method of the service interfaces the number of
+ * calls, the total time spent, and a latency histogram. Bucket <tt>i</tt>
+ * of a histogram counts the calls that took at least <tt>2^i</tt> and
+ * less than <tt>2^(i+1)</tt> nanoseconds; bucket 0 also counts calls
+ * that took no measurable time. Calls that throw an exception are
+ * recorded as well.
+ * <p>
+ * The generated proxies call <tt>start()</tt> before and
+ * <tt>stop()</tt> after delegating to the service object. While
+ * recording is switched off, <tt>start()</tt> does not read the clock,
+ * so the residual cost of a proxy is a field read and two calls that
+ * the JIT compiler inlines.
+**/
+public class ServiceMetrics
+{
+    /** The number of buckets of each histogram. **/
+    public static final int BUCKETS = 64;
+
+    private ServiceProxyFactory m_factory = null;
+    private String[] m_methods = null;
+    private AtomicLongArray m_counts = null;
+    private AtomicLongArray m_times = null;
+    private AtomicLongArray m_histograms = null;
+
+    ServiceMetrics(ServiceProxyFactory factory, String[] methods)
+    {
+        m_factory = factory;
+        m_methods = methods;
+        m_counts = new AtomicLongArray(methods.length);
+        m_times = new AtomicLongArray(methods.length);
+        m_histograms = new AtomicLongArray(methods.length * BUCKETS);
+    }
+
+    /**
+     * Called by proxies before delegating a call.
+     *
+     * @return the start time of the call or <tt>-1</tt> if recording is
+     *         switched off.
+    **/
+    public long start()
+    {
+        return m_factory.isEnabled() ? System.nanoTime() : -1L;
+    }
+
+    /**
+     * Called by proxies after a delegated call returned or threw an
+     * exception.
+     *
+     * @param method the index of the called method.
+     * @param start the value returned by <tt>start()</tt>.
+    **/
+    public void stop(int method, long start)
+    {
+        if (start < 0)
+        {
+            return;
+        }
+        long time = Math.max(0L, System.nanoTime() - start);
+        m_counts.incrementAndGet(method);
+        m_times.addAndGet(method, time);
+        int bucket = (time == 0) ? 0 : 63 - Long.numberOfLeadingZeros(time);
+        m_histograms.incrementAndGet(method * BUCKETS + bucket);
+    }
+
+    /**
+     * Returns the signatures of the instrumented methods; the index of
+     * a signature is the method index used by the other methods.
+     *
+     * @return an array of method signatures, e.g., <tt>run()</tt>.
+    **/
+    public String[] getMethods()
+    {
+        return m_methods.clone();
+    }
+
+    public long getCallCount(int method)
+    {
+        return m_counts.get(method);
+    }
+
+    /**
+     * Returns the total time spent in calls of the method.
+     *
+     * @param method the method index.
+     * @return the total time in nanoseconds.
+    **/
+    public long getTotalTime(int method)
+    {
+        return m_times.get(method);
+    }
+
+    /**
+     * Returns a copy of the latency histogram of the method.
+     *
+     * @param method the method index.
+     * @return an array of <tt>BUCKETS</tt> call counts.
+    **/
+    public long[] getHistogram(int method)
+    {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            histogram[i] = m_histograms.get(method * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Discards all recorded calls.
+    **/
+    public void reset()
+    {
+        for (int i = 0; i < m_methods.length; i++)
+        {
+            m_counts.set(i, 0L);
+            m_times.set(i, 0L);
+        }
+        for (int i = 0; i < m_histograms.length(); i++)
+        {
+            m_histograms.set(i, 0L);
+        }
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < m_methods.length; i++)
+        {
+            long count = getCallCount(i);
+            sb.append((i > 0) ? ", " : "");
+            sb.append(m_methods[i]).append('=').append(count);
+            if (count > 0)
+            {
+                sb.append('/').append(getTotalTime(i) / count).append("ns");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Vector;
+
+import org.osgi.framework.Constants;
+import org.ungoverned.oscar.ldap.Mapper;
+
+/**
+ * An immutable snapshot of the properties of a registered service.
+ * Property names are case insensitive; each name is stored with a
+ * precomputed case-folded hash code and the names are sorted by that
+ * hash code, so look ups are a binary search followed by a case
+ * insensitive comparison and neither allocate memory nor require
+ * locking. A new snapshot is created whenever a service's properties
+ * are replaced. Snapshots are also the mapper used to evaluate filters
+ * against the service, so matching does not copy the properties.
+ * Array and collection values are copied when the snapshot is created
+ * and again when they are handed out by <tt>getProperty()</tt>, so that
+ * callers cannot change the snapshot.
+**/
+class ServiceProperties implements Mapper
+{
+    // Property names in their original case, sorted by folded hash code.
+    private final String[] m_keys;
+    // Case-folded hash codes of the property names.
+    private final int[] m_hashes;
+    // Property values.
+    private final Object[] m_values;
+    // Cached service ranking.
+    private final int m_ranking;
+
+    private ServiceProperties(String[] keys, int[] hashes, Object[] values)
+    {
+        m_keys = keys;
+        m_hashes = hashes;
+        m_values = values;
+        Object rank = get(Constants.SERVICE_RANKING);
+        m_ranking = (rank instanceof Integer) ? ((Integer) rank).intValue() : 0;
+    }
+
+    /**
+     * Creates a property snapshot from the supplied dictionary and the
+     * framework assigned properties, which override any properties with
+     * the same name in the dictionary.
+     *
+     * @param dict the service properties or <tt>null</tt>.
+     * @param classes the service's class names.
+     * @param serviceId the service's id.
+     * @return the property snapshot.
+     * @throws IllegalArgumentException if a property name is not a string
+     *         or the dictionary contains case variants of the same name.
+    **/
+    public static ServiceProperties create(
+        Dictionary dict, String[] classes, Long serviceId)
+    {
+        int size = ((dict == null) ? 0 : dict.size()) + 2;
+        String[] keys = new String[size];
+        Object[] values = new Object[size];
+        int count = 0;
+
+        keys[count] = Constants.OBJECTCLASS;
+        values[count++] = classes.clone();
+        keys[count] = Constants.SERVICE_ID;
+        values[count++] = serviceId;
+
+        if (dict != null)
+        {
+            for (Enumeration e = dict.keys(); e.hasMoreElements(); )
+            {
+                Object key = e.nextElement();
+                if (!(key instanceof String))
+                {
+                    throw new IllegalArgumentException(
+                        "Service property keys must be strings: " + key);
+                }
+                // Framework assigned properties cannot be overridden.
+                if (((String) key).equalsIgnoreCase(Constants.OBJECTCLASS)
+                    || ((String) key).equalsIgnoreCase(Constants.SERVICE_ID))
+                {
+                    continue;
+                }
+                keys[count] = (String) key;
+                values[count++] = copyValue(dict.get(key));
+            }
+        }
+
+        int[] hashes = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            hashes[i] = hash(keys[i]);
+        }
+
+        // Sort by hash code using insertion sort, which is fast for the
+        // small number of properties services typically have.
+        for (int i = 1; i < count; i++)
+        {
+            int h = hashes[i];
+            String k = keys[i];
+            Object v = values[i];
+            int j = i - 1;
+            while ((j >= 0) && (hashes[j] > h))
+            {
+                hashes[j + 1] = hashes[j];
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            hashes[j + 1] = h;
+            keys[j + 1] = k;
+            values[j + 1] = v;
+        }
+
+        // Check for case variants of the same name.
+        for (int i = 1; i < count; i++)
+        {
+            for (int j = i - 1; (j >= 0) && (hashes[j] == hashes[i]); j--)
+            {
+                if (keys[j].equalsIgnoreCase(keys[i]))
+                {
+                    throw new IllegalArgumentException(
+                        "Duplicate service property: " + keys[i]);
+                }
+            }
+        }
+
+        if (count < size)
+        {
+            keys = copy(keys, count);
+            Object[] newValues = new Object[count];
+            System.arraycopy(values, 0, newValues, 0, count);
+            values = newValues;
+        }
+
+        return new ServiceProperties(keys, hashes, values);
+    }
+
+    /**
+     * Returns the value of the named property.
+     *
+     * @param key the case insensitive property name.
+     * @return the property value or <tt>null</tt> if there is none.
+    **/
+    public Object get(String key)
+    {
+        int idx = indexOf(key);
+        return (idx < 0) ? null : m_values[idx];
+    }
+
+    /**
+     * Returns the value of the named property for handing out to callers;
+     * array and collection values are copied.
+     *
+     * @param key the case insensitive property name.
+     * @return the property value or <tt>null</tt> if there is none.
+    **/
+    public Object getProperty(String key)
+    {
+        return copyValue(get(key));
+    }
+
+    /**
+     * Copies array and collection values; other values are immutable or
+     * not copyable and are returned as is. Collections keep their kind,
+     * <tt>Vector</tt>s in particular stay <tt>Vector</tt>s.
+    **/
+    private static Object copyValue(Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        else if (value.getClass().isArray())
+        {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        else if (value instanceof Vector)
+        {
+            return new Vector((Vector) value);
+        }
+        else if (value instanceof Set)
+        {
+            return new LinkedHashSet((Set) value);
+        }
+        else if (value instanceof List)
+        {
+            return new ArrayList((List) value);
+        }
+        else if (value instanceof Collection)
+        {
+            return new ArrayList((Collection) value);
+        }
+        return value;
+    }
+
+    public Object lookup(String name)
+    {
+        return get(name);
+    }
+
+    /**
+     * Returns the index of the named property.
+     *
+     * @param key the case insensitive property name.
+     * @return the index of the property or <tt>-1</tt> if there is none.
+    **/
+    public int indexOf(String key)
+    {
+        int h = hash(key);
+
+        // Binary search for the first name with the same hash code.
+        int low = 0, high = m_hashes.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (m_hashes[mid] < h)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+
+        for (int i = low; (i < m_hashes.length) && (m_hashes[i] == h); i++)
+        {
+            if (m_keys[i].equalsIgnoreCase(key))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size()
+    {
+        return m_keys.length;
+    }
+
+    public String getKey(int idx)
+    {
+        return m_keys[idx];
+    }
+
+    public Object getValue(int idx)
+    {
+        return m_values[idx];
+    }
+
+    /**
+     * Returns a copy of the property names in their original case.
+     *
+     * @return an array of property names.
+    **/
+    public String[] getKeys()
+    {
+        return copy(m_keys, m_keys.length);
+    }
+
+    public int getRanking()
+    {
+        return m_ranking;
+    }
+
+    /**
+     * Returns the names of the properties that differ between this and
+     * the supplied snapshot, i.e., properties that were added, removed,
+     * or whose values are not equal. Array values are compared element
+     * by element.
+     *
+     * @param other the snapshot to compare with.
+     * @return a set of lower case property names, which is empty if the
+     *         snapshots contain the same properties.
+    **/
+    public Set getChangedKeys(ServiceProperties other)
+    {
+        Set changed = null;
+        for (int i = 0; i < m_keys.length; i++)
+        {
+            int idx = other.indexOf(m_keys[i]);
+            if ((idx < 0) || !valueEquals(m_values[i], other.m_values[idx]))
+            {
+                changed = (changed == null) ? new HashSet() : changed;
+                changed.add(m_keys[i].toLowerCase(Locale.ROOT));
+            }
+        }
+        for (int i = 0; i < other.m_keys.length; i++)
+        {
+            if (indexOf(other.m_keys[i]) < 0)
+            {
+                changed = (changed == null) ? new HashSet() : changed;
+                changed.add(other.m_keys[i].toLowerCase(Locale.ROOT));
+            }
+        }
+        return (changed == null) ? Collections.EMPTY_SET : changed;
+    }
+
+    private static boolean valueEquals(Object v1, Object v2)
+    {
+        if (v1 == v2)
+        {
+            return true;
+        }
+        else if ((v1 == null) || (v2 == null))
+        {
+            return false;
+        }
+        else if (v1.equals(v2))
+        {
+            return true;
+        }
+        // Arrays, including arrays of primitives, only compare equal
+        // by their elements.
+        return v1.getClass().isArray()
+            && Arrays.deepEquals(new Object[] { v1 }, new Object[] { v2 });
+    }
+
+    /**
+     * Computes a case insensitive hash code of the supplied string, which
+     * is consistent with <tt>String.equalsIgnoreCase()</tt>.
+     *
+     * @param s the string to hash.
+     * @return the case-folded hash code.
+    **/
+    static int hash(String s)
+    {
+        int h = 0;
+        for (int i = 0, len = s.length(); i < len; i++)
+        {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        return h;
+    }
+
+    private static String[] copy(String[] array, int length)
+    {
+        String[] newArray = new String[length];
+        System.arraycopy(array, 0, newArray, 0, length);
+        return newArray;
+    }
+}
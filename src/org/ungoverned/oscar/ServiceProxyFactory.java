@@ -0,0 +1,733 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates instrumented proxies for service objects. A proxy
+ * implements all interfaces under which the service was registered and
+ * delegates each call to the service object, recording the call in the
+ * registration's <tt>ServiceMetrics</tt>.
+ * <p>
+ * Proxy classes are generated, one for each set of interfaces, and
+ * instantiated through a method handle for their constructor. Unlike
+ * <tt>java.lang.reflect.Proxy</tt>, a generated proxy calls the service
+ * object directly with <tt>invokeinterface</tt>, without boxing
+ * arguments or reflective dispatch, so the JIT compiler can inline the
+ * call. A proxy class is defined in the package of the first service
+ * interface that is not part of a named module, so that it can see the
+ * interfaces of bundles; for interfaces of the platform it is defined
+ * in the framework's package. Where the framework has full access to
+ * that package, the proxy class is a hidden class, which can be
+ * unloaded as soon as it is no longer used; in the packages of bundles,
+ * which are in other modules, it is a normal class of the bundle's
+ * class loader. Services that are registered under classes, or under
+ * interfaces that are not all visible from one class loader, are not
+ * proxied.
+**/
+class ServiceProxyFactory
+{
+    private static final String PROXY_NAME = "ServiceProxy";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String METRICS = "org/ungoverned/oscar/ServiceMetrics";
+    private static final String METRICS_DESC = "L" + METRICS + ";";
+    private static final String CTOR_DESC = "(Ljava/lang/Object;" + METRICS_DESC + ")V";
+    private static final MethodType CTOR_TYPE =
+        MethodType.methodType(Object.class, Object.class, ServiceMetrics.class);
+
+    // Caches the generated proxy classes with the first interface they
+    // implement, so they can be unloaded along with the interface.
+    private static final ClassValue m_proxyClasses = new ClassValue() {
+        protected Object computeValue(Class clazz)
+        {
+            return new ConcurrentHashMap();
+        }
+    };
+
+    // Makes the names of normal proxy classes unique.
+    private static final AtomicInteger m_counter = new AtomicInteger();
+
+    // Names of the proxied service classes.
+    private Set m_classNames = null;
+    // Whether calls are recorded.
+    private volatile boolean m_enabled = true;
+
+    /**
+     * Creates a proxy factory.
+     *
+     * @param classNames the names of the service classes to proxy; the
+     *        name <tt>*</tt> selects all services.
+     * @param enabled whether calls are recorded initially.
+    **/
+    public ServiceProxyFactory(Set classNames, boolean enabled)
+    {
+        m_classNames = classNames;
+        m_enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return m_enabled;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        m_enabled = enabled;
+    }
+
+    /**
+     * Returns the service object a bundle gets for a registration, which
+     * is a proxy if the registration is selected for proxying. Services
+     * that are not service factories share one proxy.
+     *
+     * @param reg the registration of the service.
+     * @param svcObj the service object.
+     * @return the proxy or the service object itself.
+    **/
+    public Object getProxy(ServiceRegistrationImpl reg, Object svcObj)
+    {
+        if (!isSelected(reg.getClasses()))
+        {
+            return svcObj;
+        }
+        if (!reg.isFactory())
+        {
+            synchronized (reg)
+            {
+                if (reg.getSharedProxy() == null)
+                {
+                    reg.setSharedProxy(createProxy(reg, svcObj));
+                }
+                return reg.getSharedProxy();
+            }
+        }
+        return createProxy(reg, svcObj);
+    }
+
+    private boolean isSelected(String[] classNames)
+    {
+        if (m_classNames.contains("*"))
+        {
+            return true;
+        }
+        for (int i = 0; i < classNames.length; i++)
+        {
+            if (m_classNames.contains(classNames[i]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object createProxy(ServiceRegistrationImpl reg, Object svcObj)
+    {
+        String[] classNames = reg.getClasses();
+        Class[] ifaces = new Class[classNames.length];
+        for (int i = 0; i < classNames.length; i++)
+        {
+            ifaces[i] = ServiceRegistry.loadClassUsingClass(svcObj.getClass(), classNames[i]);
+            if ((ifaces[i] == null) || !ifaces[i].isInterface())
+            {
+                return svcObj;
+            }
+        }
+
+        try
+        {
+            ProxyClass proxyClass = getProxyClass(ifaces);
+            if (proxyClass == null)
+            {
+                return svcObj;
+            }
+            ServiceMetrics metrics = reg.getMetrics(this, proxyClass.m_methods);
+            return proxyClass.m_ctor.invoke(svcObj, metrics);
+        }
+        catch (Throwable th)
+        {
+            Oscar.error("ServiceProxyFactory: Unable to create proxy for "
+                + reg.getReference(), th);
+            return svcObj;
+        }
+    }
+
+    private ProxyClass getProxyClass(Class[] ifaces) throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < ifaces.length; i++)
+        {
+            sb.append(ifaces[i].getName()).append(',');
+        }
+        String key = sb.toString();
+
+        Map cache = (Map) m_proxyClasses.get(ifaces[0]);
+        ProxyClass proxyClass = (ProxyClass) cache.get(key);
+        if ((proxyClass != null) && Arrays.equals(proxyClass.m_ifaces, ifaces))
+        {
+            return proxyClass;
+        }
+        proxyClass = defineProxyClass(ifaces);
+        if (proxyClass != null)
+        {
+            cache.put(key, proxyClass);
+        }
+        return proxyClass;
+    }
+
+    private ProxyClass defineProxyClass(Class[] ifaces) throws Exception
+    {
+        // Determine the package in which to define the proxy class.
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (int i = 0; i < ifaces.length; i++)
+        {
+            if ((ifaces[i].getClassLoader() != null) && !ifaces[i].getModule().isNamed())
+            {
+                lookup = MethodHandles.privateLookupIn(ifaces[i], lookup);
+                break;
+            }
+        }
+        Class host = lookup.lookupClass();
+        ClassLoader loader = host.getClassLoader();
+        if (!isVisible(ServiceMetrics.class, loader))
+        {
+            return null;
+        }
+        for (int i = 0; i < ifaces.length; i++)
+        {
+            if (!isVisible(ifaces[i], loader)
+                || (!Modifier.isPublic(ifaces[i].getModifiers())
+                    && !ifaces[i].getPackageName().equals(host.getPackageName())))
+            {
+                return null;
+            }
+        }
+
+        // Collect the methods to implement, sorted so that method
+        // indexes do not depend on reflection order.
+        Map methodMap = new TreeMap();
+        for (int i = 0; i < ifaces.length; i++)
+        {
+            Method[] methods = ifaces[i].getMethods();
+            for (int j = 0; j < methods.length; j++)
+            {
+                if (!Modifier.isStatic(methods[j].getModifiers()))
+                {
+                    String sig = methods[j].getName() + getDescriptor(methods[j]);
+                    if (!methodMap.containsKey(sig))
+                    {
+                        methodMap.put(sig, methods[j]);
+                    }
+                }
+            }
+        }
+        Method[] methods = (Method[]) methodMap.values().toArray(new Method[methodMap.size()]);
+
+        String pkg = host.getPackageName().replace('.', '/');
+        String className = (pkg.length() == 0) ? PROXY_NAME : pkg + "/" + PROXY_NAME;
+        Class proxy = null;
+        if (lookup.hasFullPrivilegeAccess())
+        {
+            proxy = lookup.defineHiddenClass(
+                generate(className, ifaces, methods), true).lookupClass();
+        }
+        else
+        {
+            // Hidden classes can only be defined with full access.
+            className = className + "$" + m_counter.incrementAndGet();
+            proxy = lookup.defineClass(generate(className, ifaces, methods));
+        }
+        MethodHandle ctor = lookup.findConstructor(proxy,
+            MethodType.methodType(void.class, Object.class, ServiceMetrics.class));
+
+        ProxyClass proxyClass = new ProxyClass();
+        proxyClass.m_ifaces = ifaces;
+        proxyClass.m_ctor = ctor.asType(CTOR_TYPE);
+        proxyClass.m_methods = new String[methods.length];
+        for (int i = 0; i < methods.length; i++)
+        {
+            proxyClass.m_methods[i] = getSignature(methods[i]);
+        }
+        return proxyClass;
+    }
+
+    private static boolean isVisible(Class clazz, ClassLoader loader)
+    {
+        try
+        {
+            return (BundleClassLoader.loadClassQuietly(clazz.getName(), loader) == clazz);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return false;
+        }
+    }
+
+    private static String getSignature(Method method)
+    {
+        StringBuffer sb = new StringBuffer(method.getName()).append('(');
+        Class[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; i++)
+        {
+            sb.append((i > 0) ? ", " : "").append(params[i].getSimpleName());
+        }
+        return sb.append(')').toString();
+    }
+
+    //
+    // Class file generation.
+    //
+
+    /**
+     * Generates a class file for a proxy class. The class has two fields
+     * for the service object and the metrics, a constructor setting
+     * them, and for each method the equivalent of:
+     * <pre>
+     *  long start = m_metrics.start();
+     *  try
+     *  {
+     *      return ((Iface) m_target).method(args);
+     *  }
+     *  finally
+     *  {
+     *      m_metrics.stop(index, start);
+     *  }
+     * </pre>
+     * The class file version is 49, which does not require stack map
+     * frames.
+    **/
+    private static byte[] generate(String className, Class[] ifaces, Method[] methods)
+        throws IOException
+    {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(className);
+        int superClass = cp.classRef(OBJECT);
+        int[] ifaceRefs = new int[ifaces.length];
+        for (int i = 0; i < ifaces.length; i++)
+        {
+            ifaceRefs[i] = cp.classRef(getInternalName(ifaces[i]));
+        }
+        int targetField = cp.memberRef(9, className, "m_target", "Ljava/lang/Object;");
+        int metricsField = cp.memberRef(9, className, "m_metrics", METRICS_DESC);
+        int startMethod = cp.memberRef(10, METRICS, "start", "()J");
+        int stopMethod = cp.memberRef(10, METRICS, "stop", "(IJ)V");
+        int codeAttr = cp.utf8("Code");
+
+        ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        DataOutputStream mout = new DataOutputStream(methodBytes);
+
+        // Constructor.
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+        out.writeByte(0x2a); // aload_0
+        out.writeByte(0xb7); // invokespecial Object.<init>
+        out.writeShort(cp.memberRef(10, OBJECT, "<init>", "()V"));
+        out.writeByte(0x2a); // aload_0
+        out.writeByte(0x2b); // aload_1
+        out.writeByte(0xb5); // putfield m_target
+        out.writeShort(targetField);
+        out.writeByte(0x2a); // aload_0
+        out.writeByte(0x2c); // aload_2
+        out.writeByte(0xb5); // putfield m_metrics
+        out.writeShort(metricsField);
+        out.writeByte(0xb1); // return
+        writeMethod(mout, cp, 0x0001, "<init>", CTOR_DESC, codeAttr,
+            code.toByteArray(), 2, 3, null);
+
+        // Delegating methods.
+        for (int m = 0; m < methods.length; m++)
+        {
+            Class[] params = methods[m].getParameterTypes();
+            Class ret = methods[m].getReturnType();
+            String desc = getDescriptor(methods[m]);
+            int argSlots = 0;
+            for (int i = 0; i < params.length; i++)
+            {
+                argSlots += getSlots(params[i]);
+            }
+            int startLocal = 1 + argSlots;
+
+            code = new ByteArrayOutputStream();
+            out = new DataOutputStream(code);
+            // long start = m_metrics.start();
+            out.writeByte(0x2a);
+            out.writeByte(0xb4); // getfield m_metrics
+            out.writeShort(metricsField);
+            out.writeByte(0xb6); // invokevirtual start
+            out.writeShort(startMethod);
+            writeLocal(out, 0x37, startLocal); // lstore
+            int startPc = code.size();
+            // ((Iface) m_target).method(args)
+            out.writeByte(0x2a);
+            out.writeByte(0xb4); // getfield m_target
+            out.writeShort(targetField);
+            out.writeByte(0xc0); // checkcast
+            out.writeShort(cp.classRef(getInternalName(methods[m].getDeclaringClass())));
+            for (int i = 0, slot = 1; i < params.length; i++)
+            {
+                writeLocal(out, getLoadOpcode(params[i]), slot);
+                slot += getSlots(params[i]);
+            }
+            out.writeByte(0xb9); // invokeinterface
+            out.writeShort(cp.memberRef(11,
+                getInternalName(methods[m].getDeclaringClass()), methods[m].getName(), desc));
+            out.writeByte(1 + argSlots);
+            out.writeByte(0);
+            int endPc = code.size();
+            // m_metrics.stop(index, start); return result
+            writeStop(out, cp, metricsField, stopMethod, m, startLocal);
+            out.writeByte(getReturnOpcode(ret));
+            int handlerPc = code.size();
+            // m_metrics.stop(index, start); rethrow
+            writeStop(out, cp, metricsField, stopMethod, m, startLocal);
+            out.writeByte(0xbf); // athrow
+
+            writeMethod(mout, cp, 0x0001, methods[m].getName(), desc, codeAttr,
+                code.toByteArray(), Math.max(1 + argSlots, 6) + 1, startLocal + 2,
+                new int[] { startPc, endPc, handlerPc });
+        }
+        mout.flush();
+
+        // Assemble the class file; the constant pool must be complete.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream cout = new DataOutputStream(bytes);
+        cout.writeInt(0xcafebabe);
+        cout.writeShort(0);
+        cout.writeShort(49);
+        cp.write(cout);
+        cout.writeShort(0x0030); // final, super
+        cout.writeShort(thisClass);
+        cout.writeShort(superClass);
+        cout.writeShort(ifaceRefs.length);
+        for (int i = 0; i < ifaceRefs.length; i++)
+        {
+            cout.writeShort(ifaceRefs[i]);
+        }
+        cout.writeShort(2);
+        writeField(cout, cp, "m_target", "Ljava/lang/Object;");
+        writeField(cout, cp, "m_metrics", METRICS_DESC);
+        cout.writeShort(methods.length + 1);
+        methodBytes.writeTo(cout);
+        cout.writeShort(0);
+        cout.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeStop(DataOutputStream out, ConstantPool cp,
+        int metricsField, int stopMethod, int index, int startLocal)
+        throws IOException
+    {
+        out.writeByte(0x2a);
+        out.writeByte(0xb4); // getfield m_metrics
+        out.writeShort(metricsField);
+        if (index <= Short.MAX_VALUE)
+        {
+            out.writeByte(0x11); // sipush
+            out.writeShort(index);
+        }
+        else
+        {
+            out.writeByte(0x13); // ldc_w
+            out.writeShort(cp.integer(index));
+        }
+        writeLocal(out, 0x16, startLocal); // lload
+        out.writeByte(0xb6); // invokevirtual stop
+        out.writeShort(stopMethod);
+    }
+
+    private static void writeLocal(DataOutputStream out, int opcode, int index)
+        throws IOException
+    {
+        if (index > 255)
+        {
+            out.writeByte(0xc4); // wide
+            out.writeByte(opcode);
+            out.writeShort(index);
+        }
+        else
+        {
+            out.writeByte(opcode);
+            out.writeByte(index);
+        }
+    }
+
+    private static void writeField(DataOutputStream out, ConstantPool cp,
+        String name, String desc) throws IOException
+    {
+        out.writeShort(0x0012); // private final
+        out.writeShort(cp.utf8(name));
+        out.writeShort(cp.utf8(desc));
+        out.writeShort(0);
+    }
+
+    private static void writeMethod(DataOutputStream out, ConstantPool cp,
+        int access, String name, String desc, int codeAttr, byte[] code,
+        int maxStack, int maxLocals, int[] handler) throws IOException
+    {
+        out.writeShort(access);
+        out.writeShort(cp.utf8(name));
+        out.writeShort(cp.utf8(desc));
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.length + ((handler == null) ? 0 : 8));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        if (handler == null)
+        {
+            out.writeShort(0);
+        }
+        else
+        {
+            out.writeShort(1);
+            out.writeShort(handler[0]);
+            out.writeShort(handler[1]);
+            out.writeShort(handler[2]);
+            out.writeShort(0); // any exception
+        }
+        out.writeShort(0);
+    }
+
+    private static int getSlots(Class type)
+    {
+        return ((type == long.class) || (type == double.class)) ? 2 : 1;
+    }
+
+    private static int getLoadOpcode(Class type)
+    {
+        if (!type.isPrimitive())
+        {
+            return 0x19; // aload
+        }
+        else if (type == long.class)
+        {
+            return 0x16; // lload
+        }
+        else if (type == float.class)
+        {
+            return 0x17; // fload
+        }
+        else if (type == double.class)
+        {
+            return 0x18; // dload
+        }
+        return 0x15; // iload
+    }
+
+    private static int getReturnOpcode(Class type)
+    {
+        if (type == void.class)
+        {
+            return 0xb1; // return
+        }
+        else if (!type.isPrimitive())
+        {
+            return 0xb0; // areturn
+        }
+        else if (type == long.class)
+        {
+            return 0xad; // lreturn
+        }
+        else if (type == float.class)
+        {
+            return 0xae; // freturn
+        }
+        else if (type == double.class)
+        {
+            return 0xaf; // dreturn
+        }
+        return 0xac; // ireturn
+    }
+
+    private static String getInternalName(Class clazz)
+    {
+        return clazz.getName().replace('.', '/');
+    }
+
+    private static String getDescriptor(Method method)
+    {
+        StringBuffer sb = new StringBuffer("(");
+        Class[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; i++)
+        {
+            sb.append(getDescriptor(params[i]));
+        }
+        return sb.append(')').append(getDescriptor(method.getReturnType())).toString();
+    }
+
+    private static String getDescriptor(Class type)
+    {
+        if (type.isArray())
+        {
+            return getInternalName(type);
+        }
+        else if (!type.isPrimitive())
+        {
+            return "L" + getInternalName(type) + ";";
+        }
+        return String.valueOf(PRIMITIVES.get(type));
+    }
+
+    private static final Map PRIMITIVES = new HashMap();
+
+    static
+    {
+        PRIMITIVES.put(void.class, "V");
+        PRIMITIVES.put(boolean.class, "Z");
+        PRIMITIVES.put(byte.class, "B");
+        PRIMITIVES.put(char.class, "C");
+        PRIMITIVES.put(short.class, "S");
+        PRIMITIVES.put(int.class, "I");
+        PRIMITIVES.put(long.class, "J");
+        PRIMITIVES.put(float.class, "F");
+        PRIMITIVES.put(double.class, "D");
+    }
+
+    private static class ProxyClass
+    {
+        public Class[] m_ifaces = null;
+        public MethodHandle m_ctor = null;
+        public String[] m_methods = null;
+    }
+
+    /**
+     * A minimal constant pool builder, which only supports the entry
+     * types needed for proxy classes.
+    **/
+    private static class ConstantPool
+    {
+        private ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private DataOutputStream m_out = new DataOutputStream(m_bytes);
+        private Map m_entries = new HashMap();
+        private int m_count = 1;
+
+        public int utf8(String s) throws IOException
+        {
+            Integer idx = (Integer) m_entries.get("U" + s);
+            if (idx == null)
+            {
+                m_out.writeByte(1);
+                m_out.writeUTF(s);
+                idx = add("U" + s);
+            }
+            return idx.intValue();
+        }
+
+        public int integer(int value) throws IOException
+        {
+            Integer idx = (Integer) m_entries.get("I" + value);
+            if (idx == null)
+            {
+                m_out.writeByte(3);
+                m_out.writeInt(value);
+                idx = add("I" + value);
+            }
+            return idx.intValue();
+        }
+
+        public int classRef(String internalName) throws IOException
+        {
+            Integer idx = (Integer) m_entries.get("C" + internalName);
+            if (idx == null)
+            {
+                int name = utf8(internalName);
+                m_out.writeByte(7);
+                m_out.writeShort(name);
+                idx = add("C" + internalName);
+            }
+            return idx.intValue();
+        }
+
+        /**
+         * Adds a field (tag 9), method (tag 10), or interface method
+         * (tag 11) reference.
+        **/
+        public int memberRef(int tag, String owner, String name, String desc)
+            throws IOException
+        {
+            String key = tag + owner + "." + name + desc;
+            Integer idx = (Integer) m_entries.get(key);
+            if (idx == null)
+            {
+                int ownerIdx = classRef(owner);
+                Integer nat = (Integer) m_entries.get("N" + name + desc);
+                if (nat == null)
+                {
+                    int nameIdx = utf8(name);
+                    int descIdx = utf8(desc);
+                    m_out.writeByte(12);
+                    m_out.writeShort(nameIdx);
+                    m_out.writeShort(descIdx);
+                    nat = add("N" + name + desc);
+                }
+                m_out.writeByte(tag);
+                m_out.writeShort(ownerIdx);
+                m_out.writeShort(nat.intValue());
+                idx = add(key);
+            }
+            return idx.intValue();
+        }
+
+        public void write(DataOutputStream out) throws IOException
+        {
+            m_out.flush();
+            out.writeShort(m_count);
+            m_bytes.writeTo(out);
+        }
+
+        private Integer add(String key)
+        {
+            Integer idx = Integer.valueOf(m_count++);
+            m_entries.put(key, idx);
+            return idx;
+        }
+    }
+}
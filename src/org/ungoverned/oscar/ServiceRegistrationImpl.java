@@ -0,0 +1,325 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.Dictionary;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+class ServiceRegistrationImpl implements ServiceRegistration
+{
+    // Service registry.
+    private ServiceRegistry m_registry = null;
+    // Bundle implementing the service.
+    private Bundle m_bundle = null;
+    // Interfaces associated with the service object.
+    private String[] m_classes = null;
+    // Service Id associated with the service object.
+    private Long m_serviceId = null;
+    // Service object.
+    private Object m_svcObj = null;
+    // Service factory interface.
+    private ServiceFactory m_factory = null;
+    // Associated property snapshot, which is replaced as a whole.
+    private volatile ServiceProperties m_props = null;
+    // Re-usable service reference.
+    private ServiceReferenceImpl m_ref = null;
+    // Serializes service factory calls.
+    private final Object m_factoryLock = new Object();
+    // Metrics of the instrumented proxies of the service, if any.
+    private volatile ServiceMetrics m_metrics = null;
+    // Proxy shared by all bundles, unless the service is a factory.
+    private Object m_sharedProxy = null;
+    // Set by the one thread that unregisters the service.
+    private final AtomicBoolean m_unregistered = new AtomicBoolean(false);
+
+    public ServiceRegistrationImpl(
+        ServiceRegistry registry, Bundle bundle,
+        String[] classes, Long serviceId,
+        Object svcObj, Dictionary dict)
+    {
+        m_registry = registry;
+        m_bundle = bundle;
+        m_classes = classes;
+        m_serviceId = serviceId;
+        m_svcObj = svcObj;
+        m_factory = (m_svcObj instanceof ServiceFactory)
+            ? (ServiceFactory) m_svcObj : null;
+
+        m_props = ServiceProperties.create(dict, m_classes, m_serviceId);
+
+        // This reference is the "standard" reference for this
+        // service and will always be returned by getReference().
+        m_ref = new ServiceReferenceImpl(this, m_bundle);
+    }
+
+    protected boolean isValid()
+    {
+        return (m_svcObj != null);
+    }
+
+    protected void invalidate()
+    {
+        m_svcObj = null;
+    }
+
+    /**
+     * Claims the unregistration of the service; only the first caller
+     * succeeds, so only one thread fires the service's
+     * <tt>UNREGISTERING</tt> event and removes it.
+     *
+     * @return <tt>true</tt> if the calling thread claimed it.
+    **/
+    boolean claimUnregistration() // package protected
+    {
+        return m_unregistered.compareAndSet(false, true);
+    }
+
+    public ServiceReference getReference()
+    {
+        return m_ref;
+    }
+
+    public void setProperties(Dictionary dict)
+    {
+        if (!isValid())
+        {
+            throw new IllegalStateException(
+                "The service registration is no longer valid.");
+        }
+
+        // Tell registry about the new property snapshot, which replaces
+        // the current snapshot; readers holding on to the previous
+        // snapshot are not affected.
+        m_registry.servicePropertiesModified(
+            this, ServiceProperties.create(dict, m_classes, m_serviceId));
+    }
+
+    public void unregister()
+    {
+        m_registry.unregisterService(m_bundle, this);
+    }
+
+    //
+    // Utility methods.
+    //
+
+    ServiceRegistry getRegistry() // package protected
+    {
+        return m_registry;
+    }
+
+    Bundle getBundle() // package protected
+    {
+        return m_bundle;
+    }
+
+    String[] getClasses() // package protected
+    {
+        return m_classes;
+    }
+
+    Long getServiceId() // package protected
+    {
+        return m_serviceId;
+    }
+
+    int getRanking() // package protected
+    {
+        return m_props.getRanking();
+    }
+
+    ServiceProperties getProperties() // package protected
+    {
+        return m_props;
+    }
+
+    void setPropertySnapshot(ServiceProperties props) // package protected
+    {
+        m_props = props;
+    }
+
+    Object getProperty(String key) // package protected
+    {
+        return m_props.getProperty(key);
+    }
+
+    String[] getPropertyKeys() // package protected
+    {
+        return m_props.getKeys();
+    }
+
+    /**
+     * Returns the class of the object registered as the service; for
+     * service factories this is the class of the factory, since the
+     * class of the service object is not known until it is created.
+    **/
+    Class getServiceClass() // package protected
+    {
+        Object svcObj = m_svcObj;
+        return (svcObj == null) ? null : svcObj.getClass();
+    }
+
+    /**
+     * Determines whether the service object is compatible with the
+     * supplied class, i.e., whether a requester that sees the supplied
+     * class can cast the service object to it. This check may load
+     * classes, so callers should cache its result.
+    **/
+    boolean isAssignableTo(Class clazz) // package protected
+    {
+        Object svcObj = m_svcObj;
+        if (svcObj == null)
+        {
+            return false;
+        }
+        else if (m_factory == null)
+        {
+            return clazz.isInstance(svcObj);
+        }
+        // For service factories, the best we can do is to verify that
+        // the registering bundle sees the same class as the requester.
+        if (m_bundle instanceof BundleImpl)
+        {
+            try
+            {
+                return (BundleClassLoader.loadClassQuietly(clazz.getName(),
+                    ((BundleImpl) m_bundle).getInfo().getClassLoader()) == clazz);
+            }
+            catch (ClassNotFoundException ex)
+            {
+                return false;
+            }
+        }
+        return (ServiceRegistry.loadClassUsingClass(
+            svcObj.getClass(), clazz.getName()) == clazz);
+    }
+
+    /**
+     * Returns the lock that serializes calls to the service factory for
+     * the same registration, so that each bundle gets exactly one
+     * service object without blocking access to other services.
+    **/
+    Object getFactoryLock() // package protected
+    {
+        return m_factoryLock;
+    }
+
+    boolean isFactory() // package protected
+    {
+        return (m_factory != null);
+    }
+
+    ServiceFactory getFactory() // package protected
+    {
+        return m_factory;
+    }
+
+    /**
+     * Returns the metrics of the instrumented proxies of the service.
+     *
+     * @return the metrics or <tt>null</tt> if the service was never
+     *         proxied.
+    **/
+    ServiceMetrics getMetrics() // package protected
+    {
+        return m_metrics;
+    }
+
+    /**
+     * Returns the metrics of the instrumented proxies of the service,
+     * creating them for the supplied methods if necessary.
+    **/
+    synchronized ServiceMetrics getMetrics(
+        ServiceProxyFactory factory, String[] methods) // package protected
+    {
+        if (m_metrics == null)
+        {
+            m_metrics = new ServiceMetrics(factory, methods);
+        }
+        return m_metrics;
+    }
+
+    Object getSharedProxy() // package protected
+    {
+        return m_sharedProxy;
+    }
+
+    void setSharedProxy(Object proxy) // package protected
+    {
+        m_sharedProxy = proxy;
+    }
+
+    Object getService(Bundle acqBundle) // package protected
+    {
+        // If the service object is a service factory, then
+        // let it create the service object.
+        if (m_factory != null)
+        {
+            try
+            {
+                return m_factory.getService(acqBundle, this);
+            }
+            catch (Exception ex)
+            {
+                Oscar.error("ServiceRegistrationImpl: Error getting service.", ex);
+                return null;
+            }
+        }
+        return m_svcObj;
+    }
+
+    void ungetService(Bundle relBundle, Object svcObj) // package protected
+    {
+        // If the service object is a service factory, then
+        // let is release the service object.
+        if (m_factory != null)
+        {
+            try
+            {
+                m_factory.ungetService(relBundle, this, svcObj);
+            }
+            catch (Exception ex)
+            {
+                Oscar.error("ServiceRegistrationImpl: Error ungetting service.", ex);
+            }
+        }
+    }
+}
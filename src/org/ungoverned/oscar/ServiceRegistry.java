@@ -0,0 +1,1128 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * This class keeps track of all registered services, the bundles that
+ * registered them, and the bundles that are using them. Services are
+ * indexed by the names of the classes under which they were registered
+ * and, optionally, by the string values of configured service properties.
+ * <p>
+ * The registrations and their indexes are kept in immutable, versioned
+ * snapshots. Readers, i.e., look ups and filter evaluation, use the
+ * snapshot that is current when they start and never lock; writers
+ * serialize on the registry, apply their mutations to a transaction that
+ * copies only the parts of the snapshot it modifies, and then publish the
+ * result as the next version with a single volatile write. Batch
+ * operations apply all of their mutations in one transaction, so they
+ * publish a single version. Service usage is tracked separately under its
+ * own lock, so getting and releasing services never contends with
+ * registrations.
+**/
+class ServiceRegistry
+{
+    private Oscar m_oscar = null;
+    private long m_currentServiceId = 1L;
+    // Lower case names of the properties with an inverted index.
+    private Set m_indexedAttrs = null;
+    // The current snapshot of registrations and indexes.
+    private volatile Snapshot m_snapshot = null;
+
+    // Creates instrumented service proxies, if configured.
+    private ServiceProxyFactory m_proxyFactory = null;
+
+    // Lock for the usage maps.
+    private final Object m_usageLock = new Object();
+    // Maps bundle to a map of the registrations it uses to usage counts.
+    private Map m_inUseMap = new HashMap();
+    // Maps registration to a map of the bundles using it to usage counts.
+    private Map m_usingMap = new HashMap();
+
+    // Maps requesting bundle to a map of requested classes to a map of
+    // provider classes, or registering bundles for service factories, to
+    // a boolean indicating class compatibility.
+    private Map m_assignableCache = new ConcurrentHashMap();
+
+    /**
+     * Creates a service registry.
+     *
+     * @param oscar the framework instance.
+     * @param attrs the lower case names of the service properties for
+     *        which an inverted index is maintained.
+     * @param proxyFactory the factory of instrumented service proxies or
+     *        <tt>null</tt> if services are not proxied.
+    **/
+    public ServiceRegistry(Oscar oscar, Set attrs, ServiceProxyFactory proxyFactory)
+    {
+        m_oscar = oscar;
+        m_proxyFactory = proxyFactory;
+        m_indexedAttrs = Collections.unmodifiableSet(new LinkedHashSet(attrs));
+        m_snapshot = new Snapshot(0L, Collections.EMPTY_MAP,
+            Collections.EMPTY_MAP, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+    }
+
+    public ServiceRegistration registerService(
+        Bundle bundle, String[] classNames, Object svcObj, Dictionary dict)
+    {
+        ServiceRegistrationImpl reg = null;
+
+        synchronized (this)
+        {
+            // Create the service registration.
+            reg = new ServiceRegistrationImpl(
+                this, bundle, classNames, Long.valueOf(m_currentServiceId++), svcObj, dict);
+            Transaction tx = new Transaction(m_snapshot);
+            tx.addRegistration(reg);
+            m_snapshot = tx.commit();
+        }
+
+        // Fire service event.
+        m_oscar.fireServiceEvent(ServiceEvent.REGISTERED, reg.getReference());
+
+        return reg;
+    }
+
+    /**
+     * Registers a batch of services in one atomic update of the registry.
+     * All registrations become visible to look ups at the same time and
+     * before any <tt>REGISTERED</tt> event is delivered; the events are
+     * then delivered by <tt>Oscar.fireServiceEvents()</tt>.
+     *
+     * @param bundle the bundle registering the services.
+     * @param classNames the class names of each service.
+     * @param svcObjs the service objects.
+     * @param dicts the service properties of each service; the array or
+     *        any of its elements may be <tt>null</tt>.
+     * @return the registrations in the order of the supplied arrays.
+    **/
+    public ServiceRegistration[] registerServices(
+        Bundle bundle, String[][] classNames, Object[] svcObjs, Dictionary[] dicts)
+    {
+        ServiceRegistrationImpl[] regs = new ServiceRegistrationImpl[svcObjs.length];
+        ServiceReference[] refs = new ServiceReference[svcObjs.length];
+
+        synchronized (this)
+        {
+            // Create all registrations before adding any of them, since
+            // creating a registration may fail due to invalid properties.
+            for (int i = 0; i < regs.length; i++)
+            {
+                regs[i] = new ServiceRegistrationImpl(
+                    this, bundle, classNames[i], Long.valueOf(m_currentServiceId + i),
+                    svcObjs[i], (dicts == null) ? null : dicts[i]);
+                refs[i] = regs[i].getReference();
+            }
+            m_currentServiceId += regs.length;
+            Transaction tx = new Transaction(m_snapshot);
+            for (int i = 0; i < regs.length; i++)
+            {
+                tx.addRegistration(regs[i]);
+            }
+            m_snapshot = tx.commit();
+        }
+
+        // Fire service events.
+        m_oscar.fireServiceEvents(ServiceEvent.REGISTERED, refs);
+
+        return regs;
+    }
+
+    public void unregisterService(Bundle bundle, ServiceRegistration reg)
+    {
+        if (!((ServiceRegistrationImpl) reg).claimUnregistration())
+        {
+            throw new IllegalStateException(
+                "The service registration is no longer valid.");
+        }
+
+        // Fire the service event before removing the registration, so
+        // that listeners are still able to get the service object.
+        m_oscar.fireServiceEvent(ServiceEvent.UNREGISTERING, reg.getReference());
+
+        synchronized (this)
+        {
+            Transaction tx = new Transaction(m_snapshot);
+            tx.removeRegistration((ServiceRegistrationImpl) reg);
+            m_snapshot = tx.commit();
+        }
+
+        releaseRegistration((ServiceRegistrationImpl) reg);
+    }
+
+    /**
+     * Unregisters a batch of services. The <tt>UNREGISTERING</tt> events
+     * for all services are delivered first, while all of the services are
+     * still registered; then all registrations are removed in one atomic
+     * update of the registry and finally the service objects are released
+     * by all bundles still using them. Services that are unregistered
+     * concurrently by another thread are skipped.
+     *
+     * @param regs the registrations to unregister.
+     * @return <tt>true</tt> if all of the services were unregistered by
+     *         the calling thread.
+    **/
+    public boolean unregisterServices(ServiceRegistration[] regs)
+    {
+        List claimed = new ArrayList(regs.length);
+        for (int i = 0; i < regs.length; i++)
+        {
+            if (((ServiceRegistrationImpl) regs[i]).claimUnregistration())
+            {
+                claimed.add(regs[i]);
+            }
+        }
+        ServiceReference[] refs = new ServiceReference[claimed.size()];
+        for (int i = 0; i < refs.length; i++)
+        {
+            refs[i] = ((ServiceRegistration) claimed.get(i)).getReference();
+        }
+
+        // Fire the service events before removing the registrations.
+        m_oscar.fireServiceEvents(ServiceEvent.UNREGISTERING, refs);
+
+        synchronized (this)
+        {
+            Transaction tx = new Transaction(m_snapshot);
+            for (int i = 0; i < claimed.size(); i++)
+            {
+                tx.removeRegistration((ServiceRegistrationImpl) claimed.get(i));
+            }
+            m_snapshot = tx.commit();
+        }
+
+        for (int i = 0; i < claimed.size(); i++)
+        {
+            releaseRegistration((ServiceRegistrationImpl) claimed.get(i));
+        }
+        return (claimed.size() == regs.length);
+    }
+
+    private void releaseRegistration(ServiceRegistrationImpl reg)
+    {
+        // Now forcibly release the service object for all stubborn
+        // clients using the reverse usage index.
+        UsageCount[] usages = null;
+        synchronized (m_usageLock)
+        {
+            Map usingMap = (Map) m_usingMap.remove(reg);
+            if (usingMap != null)
+            {
+                usages = (UsageCount[]) usingMap.values().toArray(
+                    new UsageCount[usingMap.size()]);
+                for (int i = 0; i < usages.length; i++)
+                {
+                    removeUsageCount(usages[i]);
+                }
+            }
+        }
+        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        {
+            reg.ungetService(usages[i].m_bundle, usages[i].m_svcObj);
+        }
+
+        // Invalidate registration.
+        reg.invalidate();
+
+        // Release the idle objects of a pooled service.
+        if (reg.getFactory() instanceof PooledServiceFactory)
+        {
+            ((PooledServiceFactory) reg.getFactory()).close(reg);
+        }
+    }
+
+    /**
+     * Unregisters all services registered by the supplied bundle, which
+     * is necessary when the bundle is stopped.
+     *
+     * @param bundle the bundle whose services are unregistered.
+    **/
+    public void unregisterServices(Bundle bundle)
+    {
+        Set set = (Set) m_snapshot.m_regsByBundle.get(bundle);
+        if (set != null)
+        {
+            unregisterServices((ServiceRegistration[]) set.toArray(
+                new ServiceRegistration[set.size()]));
+        }
+    }
+
+    /**
+     * Releases all services used by the supplied bundle, which is
+     * necessary when the bundle is stopped.
+     *
+     * @param bundle the bundle whose used services are released.
+    **/
+    public void ungetServices(Bundle bundle)
+    {
+        UsageCount[] usages = null;
+        synchronized (m_usageLock)
+        {
+            Map inUseMap = (Map) m_inUseMap.get(bundle);
+            if (inUseMap == null)
+            {
+                return;
+            }
+            usages = (UsageCount[]) inUseMap.values().toArray(
+                new UsageCount[inUseMap.size()]);
+            for (int i = 0; i < usages.length; i++)
+            {
+                removeUsageCount(usages[i]);
+            }
+        }
+        for (int i = 0; i < usages.length; i++)
+        {
+            usages[i].m_reg.ungetService(bundle, usages[i].m_svcObj);
+        }
+    }
+
+    public ServiceReference[] getRegisteredServices(Bundle bundle)
+    {
+        Set regs = (Set) m_snapshot.m_regsByBundle.get(bundle);
+        if (regs == null)
+        {
+            return null;
+        }
+        ServiceReference[] refs = new ServiceReference[regs.size()];
+        int idx = 0;
+        for (Iterator i = regs.iterator(); i.hasNext(); )
+        {
+            refs[idx++] = ((ServiceRegistration) i.next()).getReference();
+        }
+        return refs;
+    }
+
+    public ServiceReference[] getServicesInUse(Bundle bundle)
+    {
+        synchronized (m_usageLock)
+        {
+            Map inUseMap = (Map) m_inUseMap.get(bundle);
+            if (inUseMap == null)
+            {
+                return null;
+            }
+            ServiceReference[] refs = new ServiceReference[inUseMap.size()];
+            int idx = 0;
+            for (Iterator i = inUseMap.keySet().iterator(); i.hasNext(); )
+            {
+                refs[idx++] = ((ServiceRegistration) i.next()).getReference();
+            }
+            return refs;
+        }
+    }
+
+    /**
+     * Replaces the property snapshot of the supplied registration and
+     * fires the resulting events. If the new properties are equal to
+     * the current ones, then nothing is done and no event is fired.
+     *
+     * @param reg the registration whose properties are replaced.
+     * @param props the new property snapshot.
+    **/
+    public void servicePropertiesModified(
+        ServiceRegistrationImpl reg, ServiceProperties props)
+    {
+        ServiceProperties old = null;
+        Set changed = null;
+
+        synchronized (this)
+        {
+            old = reg.getProperties();
+            changed = old.getChangedKeys(props);
+            if (changed.size() == 0)
+            {
+                return;
+            }
+
+            Set regs = (Set) m_snapshot.m_regsByBundle.get(reg.getBundle());
+            if ((regs == null) || !regs.contains(reg))
+            {
+                // The service was unregistered concurrently, so there
+                // is nobody left to notify.
+                return;
+            }
+            else if (!containsAny(m_indexedAttrs, changed))
+            {
+                // No indexed property was modified, so there is nothing
+                // to re-index.
+                reg.setPropertySnapshot(props);
+            }
+            else
+            {
+                // First publish a version that indexes the registration
+                // under both its old and new property values, then replace
+                // the properties and finally publish a version without the
+                // old values. This way a concurrent reader always finds the
+                // registration among its candidates and its result is
+                // consistent with either the old or the new properties.
+                Transaction tx = new Transaction(m_snapshot);
+                tx.addAttributes(reg, props);
+                m_snapshot = tx.commit();
+
+                reg.setPropertySnapshot(props);
+
+                tx = new Transaction(m_snapshot);
+                tx.removeAttributes(reg, old);
+                tx.addAttributes(reg, props);
+                m_snapshot = tx.commit();
+            }
+        }
+
+        m_oscar.fireServiceModified(reg, old, props, changed);
+    }
+
+    public ServiceReference[] getServiceReferences(
+        String className, Filter filter)
+    {
+        return filterReferences(
+            getCandidates(m_snapshot, className, filter), filter, null, null);
+    }
+
+    /**
+     * Returns the references of services registered under the name of the
+     * supplied class whose service objects are compatible with the class.
+     * Compatibility is determined at most once for each requesting bundle,
+     * requested class, and provider class; the result is cached until the
+     * cache is flushed by <tt>flushAssignableCache()</tt> or until one of
+     * the bundles is updated or uninstalled.
+     *
+     * @param requester the bundle requesting the services.
+     * @param clazz the class of the requested services.
+     * @param filter the filter to apply or <tt>null</tt>.
+     * @return an array of matching references or <tt>null</tt>.
+    **/
+    public ServiceReference[] getServiceReferences(
+        Bundle requester, Class clazz, Filter filter)
+    {
+        return filterReferences(getCandidates(m_snapshot, clazz.getName(), filter),
+            filter, requester, clazz);
+    }
+
+    /**
+     * Returns the registrations that may match a look up. If the filter
+     * requires specific values of indexed properties, the posting sets of
+     * those values are intersected, starting with the smallest one, and
+     * only the registrations in the intersection have to be matched
+     * against the filter.
+     *
+     * @param snapshot the snapshot used for the look up.
+     * @param className the class name of the look up or <tt>null</tt>.
+     * @param filter the filter of the look up or <tt>null</tt>.
+     * @return a collection of candidate registrations or <tt>null</tt>.
+    **/
+    private Collection getCandidates(
+        Snapshot snapshot, String className, Filter filter)
+    {
+        Set classRegs = null;
+        if (className != null)
+        {
+            classRegs = (Set) snapshot.m_classIndex.get(className);
+            if (classRegs == null)
+            {
+                return null;
+            }
+        }
+
+        // Get the posting sets of the required property values.
+        String[][] terms = ((filter instanceof OscarFilter) && (m_indexedAttrs.size() > 0))
+            ? ((OscarFilter) filter).getRequiredTerms(m_indexedAttrs) : null;
+        if ((terms == null) || (terms.length == 0))
+        {
+            if (classRegs != null)
+            {
+                return classRegs;
+            }
+            List all = new ArrayList();
+            for (Iterator i = snapshot.m_regsByBundle.values().iterator(); i.hasNext(); )
+            {
+                all.addAll((Set) i.next());
+            }
+            return all;
+        }
+
+        Set[] postings = new Set[terms.length];
+        Set[] unindexed = new Set[terms.length];
+        int smallest = 0;
+        for (int i = 0; i < terms.length; i++)
+        {
+            Map valueMap = (Map) snapshot.m_attrIndex.get(terms[i][0]);
+            postings[i] = (valueMap == null) ? null : (Set) valueMap.get(terms[i][1]);
+            unindexed[i] = (Set) snapshot.m_unindexed.get(terms[i][0]);
+            if ((postings[i] == null) && (unindexed[i] == null))
+            {
+                return null;
+            }
+            if ((size(postings[i]) + size(unindexed[i]))
+                < (size(postings[smallest]) + size(unindexed[smallest])))
+            {
+                smallest = i;
+            }
+        }
+
+        // Intersect, starting with the smallest posting set.
+        List candidates = new ArrayList();
+        for (int pass = 0; pass < 2; pass++)
+        {
+            Set set = (pass == 0) ? postings[smallest] : unindexed[smallest];
+            if (set == null)
+            {
+                continue;
+            }
+            for (Iterator i = set.iterator(); i.hasNext(); )
+            {
+                ServiceRegistrationImpl reg = (ServiceRegistrationImpl) i.next();
+                boolean match = (classRegs == null) || classRegs.contains(reg);
+                for (int j = 0; match && (j < terms.length); j++)
+                {
+                    match = (j == smallest)
+                        || ((postings[j] != null) && postings[j].contains(reg))
+                        || ((unindexed[j] != null) && unindexed[j].contains(reg));
+                }
+                if (match)
+                {
+                    candidates.add(reg);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean containsAny(Set set, Set values)
+    {
+        for (Iterator i = values.iterator(); i.hasNext(); )
+        {
+            if (set.contains(i.next()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int size(Set set)
+    {
+        return (set == null) ? 0 : set.size();
+    }
+
+    private ServiceReference[] filterReferences(
+        Collection candidates, Filter filter, Bundle requester, Class clazz)
+    {
+        if ((candidates == null) || (candidates.size() == 0))
+        {
+            return null;
+        }
+
+        List refs = new ArrayList(candidates.size());
+        for (Iterator i = candidates.iterator(); i.hasNext(); )
+        {
+            ServiceRegistrationImpl reg = (ServiceRegistrationImpl) i.next();
+            if ((clazz != null) && !isAssignableTo(requester, clazz, reg))
+            {
+                continue;
+            }
+            if ((filter == null) || filter.match(reg.getReference()))
+            {
+                refs.add(reg.getReference());
+            }
+        }
+
+        if (refs.size() == 0)
+        {
+            return null;
+        }
+        return (ServiceReference[]) refs.toArray(new ServiceReference[refs.size()]);
+    }
+
+    /**
+     * Selects the reference with the highest service ranking from the
+     * supplied array; ties are broken in favor of the lowest service id.
+     *
+     * @param refs the references from which to select.
+     * @return the best reference or <tt>null</tt> if the array is empty.
+    **/
+    public static ServiceReference getBestReference(ServiceReference[] refs)
+    {
+        if ((refs == null) || (refs.length == 0))
+        {
+            return null;
+        }
+
+        ServiceRegistrationImpl best =
+            ((ServiceReferenceImpl) refs[0]).getServiceRegistration();
+        for (int i = 1; i < refs.length; i++)
+        {
+            ServiceRegistrationImpl reg =
+                ((ServiceReferenceImpl) refs[i]).getServiceRegistration();
+            int rank = reg.getRanking(), bestRank = best.getRanking();
+            if ((rank > bestRank) || ((rank == bestRank)
+                && (reg.getServiceId().longValue() < best.getServiceId().longValue())))
+            {
+                best = reg;
+            }
+        }
+        return best.getReference();
+    }
+
+    private boolean isAssignableTo(
+        Bundle requester, Class clazz, ServiceRegistrationImpl reg)
+    {
+        // Service factories are checked against the class space of the
+        // registering bundle, so they are cached by bundle; otherwise the
+        // results of different bundles would be mixed up for factories of
+        // the same class, such as all lazy services.
+        Object providerKey = reg.isFactory() ? reg.getBundle() : reg.getServiceClass();
+        if ((providerKey == null) || !reg.isValid())
+        {
+            return false;
+        }
+
+        Map classMap = (Map) m_assignableCache.get(requester);
+        if (classMap == null)
+        {
+            classMap = new ConcurrentHashMap();
+            m_assignableCache.put(requester, classMap);
+        }
+        Map providerMap = (Map) classMap.get(clazz);
+        if (providerMap == null)
+        {
+            providerMap = new ConcurrentHashMap();
+            classMap.put(clazz, providerMap);
+        }
+        Boolean result = (Boolean) providerMap.get(providerKey);
+        if (result == null)
+        {
+            // Concurrent callers may compute the same result, which is
+            // harmless since the check has no side effects.
+            result = Boolean.valueOf(reg.isAssignableTo(clazz));
+            providerMap.put(providerKey, result);
+        }
+        return result.booleanValue();
+    }
+
+    /**
+     * Discards all cached class compatibility results; this must be
+     * called whenever the class spaces of bundles may have changed,
+     * e.g., when packages are refreshed.
+    **/
+    public void flushAssignableCache()
+    {
+        m_assignableCache.clear();
+    }
+
+    /**
+     * Discards the cached class compatibility results of a bundle, both
+     * as requester and as registrant of service factories; this must be
+     * called when the bundle is updated or uninstalled.
+     *
+     * @param bundle the updated or uninstalled bundle.
+    **/
+    public void flushAssignableCache(Bundle bundle)
+    {
+        m_assignableCache.remove(bundle);
+        for (Iterator i = m_assignableCache.values().iterator(); i.hasNext(); )
+        {
+            Map classMap = (Map) i.next();
+            for (Iterator j = classMap.values().iterator(); j.hasNext(); )
+            {
+                ((Map) j.next()).remove(bundle);
+            }
+        }
+    }
+
+    public Object getService(Bundle bundle, ServiceReference ref)
+    {
+        ServiceRegistrationImpl reg =
+            ((ServiceReferenceImpl) ref).getServiceRegistration();
+
+        Object svcObj = getCachedService(bundle, reg);
+        if ((svcObj != null) || !reg.isValid())
+        {
+            return svcObj;
+        }
+
+        if (!reg.isFactory())
+        {
+            svcObj = reg.getService(bundle);
+            Object proxy = getProxy(reg, svcObj);
+            synchronized (m_usageLock)
+            {
+                UsageCount usage = getUsageCount(bundle, reg);
+                if (usage != null)
+                {
+                    usage.m_count++;
+                    return usage.getServiceObject();
+                }
+                return reg.isValid() ? addUsage(bundle, reg, svcObj, proxy) : null;
+            }
+        }
+
+        // Service factories are called without holding the usage lock,
+        // since they may run arbitrary code, such as activating a
+        // component that gets other services; calls for the same
+        // registration are serialized so that each bundle gets exactly
+        // one service object.
+        synchronized (reg.getFactoryLock())
+        {
+            svcObj = getCachedService(bundle, reg);
+            if ((svcObj != null) || !reg.isValid())
+            {
+                return svcObj;
+            }
+            svcObj = reg.getService(bundle);
+            if (svcObj == null)
+            {
+                return null;
+            }
+            Object proxy = getProxy(reg, svcObj);
+            synchronized (m_usageLock)
+            {
+                // The service may have been unregistered meanwhile.
+                if (reg.isValid())
+                {
+                    return addUsage(bundle, reg, svcObj, proxy);
+                }
+            }
+            reg.ungetService(bundle, svcObj);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the service object cached for the supplied bundle and
+     * increments its usage count.
+     *
+     * @return the cached service object or <tt>null</tt>.
+    **/
+    private Object getCachedService(Bundle bundle, ServiceRegistrationImpl reg)
+    {
+        synchronized (m_usageLock)
+        {
+            UsageCount usage = getUsageCount(bundle, reg);
+            if (usage == null)
+            {
+                return null;
+            }
+            usage.m_count++;
+            return usage.getServiceObject();
+        }
+    }
+
+    private Object getProxy(ServiceRegistrationImpl reg, Object svcObj)
+    {
+        return ((m_proxyFactory == null) || (svcObj == null))
+            ? null : m_proxyFactory.getProxy(reg, svcObj);
+    }
+
+    /**
+     * Records the first use of a service object by a bundle; must be
+     * called while holding the usage lock.
+     *
+     * @return the object handed to the bundle, i.e., the proxy if there
+     *         is one or the service object.
+    **/
+    private Object addUsage(
+        Bundle bundle, ServiceRegistrationImpl reg, Object svcObj, Object proxy)
+    {
+        if (svcObj == null)
+        {
+            return null;
+        }
+        UsageCount usage = new UsageCount();
+        usage.m_bundle = bundle;
+        usage.m_reg = reg;
+        usage.m_svcObj = svcObj;
+        usage.m_proxy = proxy;
+        usage.m_count = 1;
+        addUsageCount(usage);
+        return usage.getServiceObject();
+    }
+
+    /**
+     * Returns the metrics recorded by the instrumented proxies of the
+     * referenced service.
+     *
+     * @param ref the service reference.
+     * @return the metrics or <tt>null</tt> if the service was never
+     *         proxied.
+    **/
+    public ServiceMetrics getServiceMetrics(ServiceReference ref)
+    {
+        return ((ServiceReferenceImpl) ref).getServiceRegistration().getMetrics();
+    }
+
+    public boolean ungetService(Bundle bundle, ServiceReference ref)
+    {
+        ServiceRegistrationImpl reg =
+            ((ServiceReferenceImpl) ref).getServiceRegistration();
+
+        UsageCount usage = null;
+        synchronized (m_usageLock)
+        {
+            // Get the usage count.
+            usage = getUsageCount(bundle, reg);
+
+            // If there is no cached services, then just return immediately.
+            if (usage == null)
+            {
+                return false;
+            }
+
+            // Decrement usage count and if it reached zero, then
+            // remove it.
+            usage.m_count--;
+            if (usage.m_count > 0)
+            {
+                return true;
+            }
+            removeUsageCount(usage);
+        }
+
+        // Release the service object without holding the usage lock.
+        reg.ungetService(bundle, usage.m_svcObj);
+        return true;
+    }
+
+    public Bundle[] getUsingBundles(ServiceReference ref)
+    {
+        synchronized (m_usageLock)
+        {
+            Map usingMap = (Map) m_usingMap.get(
+                ((ServiceReferenceImpl) ref).getServiceRegistration());
+            return (usingMap == null)
+                ? null : (Bundle[]) usingMap.keySet().toArray(new Bundle[usingMap.size()]);
+        }
+    }
+
+    private UsageCount getUsageCount(Bundle bundle, ServiceRegistrationImpl reg)
+    {
+        Map inUseMap = (Map) m_inUseMap.get(bundle);
+        return (inUseMap == null) ? null : (UsageCount) inUseMap.get(reg);
+    }
+
+    private void addUsageCount(UsageCount usage)
+    {
+        Map inUseMap = (Map) m_inUseMap.get(usage.m_bundle);
+        if (inUseMap == null)
+        {
+            inUseMap = new LinkedHashMap();
+            m_inUseMap.put(usage.m_bundle, inUseMap);
+        }
+        inUseMap.put(usage.m_reg, usage);
+
+        Map usingMap = (Map) m_usingMap.get(usage.m_reg);
+        if (usingMap == null)
+        {
+            usingMap = new LinkedHashMap();
+            m_usingMap.put(usage.m_reg, usingMap);
+        }
+        usingMap.put(usage.m_bundle, usage);
+    }
+
+    private void removeUsageCount(UsageCount usage)
+    {
+        Map inUseMap = (Map) m_inUseMap.get(usage.m_bundle);
+        if ((inUseMap != null) && (inUseMap.remove(usage.m_reg) != null)
+            && (inUseMap.size() == 0))
+        {
+            m_inUseMap.remove(usage.m_bundle);
+        }
+
+        Map usingMap = (Map) m_usingMap.get(usage.m_reg);
+        if ((usingMap != null) && (usingMap.remove(usage.m_bundle) != null)
+            && (usingMap.size() == 0))
+        {
+            m_usingMap.remove(usage.m_reg);
+        }
+    }
+
+    /**
+     * Loads the named class using the class loader of the supplied class.
+     *
+     * @param clazz the class whose class loader is used.
+     * @param name the name of the class to load.
+     * @return the loaded class or <tt>null</tt> if it could not be loaded.
+    **/
+    static Class loadClassUsingClass(Class clazz, String name) // package protected
+    {
+        try
+        {
+            return BundleClassLoader.loadClassQuietly(name, clazz.getClassLoader());
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * An immutable version of the registrations and their indexes; neither
+     * the maps nor the sets they contain are ever modified once the
+     * snapshot is published.
+    **/
+    private static class Snapshot
+    {
+        public final long m_version;
+        // Maps bundle to the set of its service registrations.
+        public final Map m_regsByBundle;
+        // Maps class name to the set of its service registrations.
+        public final Map m_classIndex;
+        // Maps lower case property name to a map of string values
+        // to sets of service registrations.
+        public final Map m_attrIndex;
+        // Maps lower case property name to the set of registrations
+        // whose values are not strings.
+        public final Map m_unindexed;
+
+        public Snapshot(long version, Map regsByBundle, Map classIndex,
+            Map attrIndex, Map unindexed)
+        {
+            m_version = version;
+            m_regsByBundle = regsByBundle;
+            m_classIndex = classIndex;
+            m_attrIndex = attrIndex;
+            m_unindexed = unindexed;
+        }
+    }
+
+    /**
+     * Accumulates mutations of a snapshot and produces the next version.
+     * Maps and sets of the base snapshot are copied the first time they
+     * are modified by the transaction; copies created by the transaction
+     * are then modified in place, so a batch of mutations only copies
+     * each affected collection once.
+    **/
+    private class Transaction
+    {
+        private Snapshot m_base = null;
+        private Map m_regsByBundle = null;
+        private Map m_classIndex = null;
+        private Map m_attrIndex = null;
+        private Map m_unindexed = null;
+        // Collections created by this transaction.
+        private Map m_owned = new IdentityHashMap();
+
+        public Transaction(Snapshot base)
+        {
+            m_base = base;
+            m_regsByBundle = base.m_regsByBundle;
+            m_classIndex = base.m_classIndex;
+            m_attrIndex = base.m_attrIndex;
+            m_unindexed = base.m_unindexed;
+        }
+
+        public Snapshot commit()
+        {
+            return new Snapshot(m_base.m_version + 1, m_regsByBundle,
+                m_classIndex, m_attrIndex, m_unindexed);
+        }
+
+        public void addRegistration(ServiceRegistrationImpl reg)
+        {
+            // Add the service registration to the bundle's set
+            // of registrations and to the class index.
+            m_regsByBundle = own(m_regsByBundle);
+            ownSet(m_regsByBundle, reg.getBundle()).add(reg);
+            m_classIndex = own(m_classIndex);
+            String[] classNames = reg.getClasses();
+            for (int i = 0; i < classNames.length; i++)
+            {
+                ownSet(m_classIndex, classNames[i]).add(reg);
+            }
+            addAttributes(reg, reg.getProperties());
+        }
+
+        public boolean removeRegistration(ServiceRegistrationImpl reg)
+        {
+            Set regs = (Set) m_regsByBundle.get(reg.getBundle());
+            if ((regs == null) || !regs.contains(reg))
+            {
+                return false;
+            }
+            m_regsByBundle = own(m_regsByBundle);
+            removeFromSet(m_regsByBundle, reg.getBundle(), reg);
+            m_classIndex = own(m_classIndex);
+            String[] classNames = reg.getClasses();
+            for (int i = 0; i < classNames.length; i++)
+            {
+                removeFromSet(m_classIndex, classNames[i], reg);
+            }
+            removeAttributes(reg, reg.getProperties());
+            return true;
+        }
+
+        public void addAttributes(ServiceRegistrationImpl reg, ServiceProperties props)
+        {
+            for (Iterator i = m_indexedAttrs.iterator(); i.hasNext(); )
+            {
+                String attr = (String) i.next();
+                Object value = props.get(attr);
+                if (value == null)
+                {
+                    continue;
+                }
+                String[] values = ServiceListenerIndex.getStringValues(value);
+                if (values == null)
+                {
+                    // Only string values can be indexed, since filter values
+                    // are converted to the type of the property value.
+                    m_unindexed = own(m_unindexed);
+                    ownSet(m_unindexed, attr).add(reg);
+                    continue;
+                }
+                m_attrIndex = own(m_attrIndex);
+                Map valueMap = ownMap(m_attrIndex, attr);
+                for (int j = 0; j < values.length; j++)
+                {
+                    ownSet(valueMap, values[j]).add(reg);
+                }
+            }
+        }
+
+        public void removeAttributes(ServiceRegistrationImpl reg, ServiceProperties props)
+        {
+            for (Iterator i = m_indexedAttrs.iterator(); i.hasNext(); )
+            {
+                String attr = (String) i.next();
+                Object value = props.get(attr);
+                if (value == null)
+                {
+                    continue;
+                }
+                String[] values = ServiceListenerIndex.getStringValues(value);
+                if (values == null)
+                {
+                    m_unindexed = own(m_unindexed);
+                    removeFromSet(m_unindexed, attr, reg);
+                    continue;
+                }
+                if (!m_attrIndex.containsKey(attr))
+                {
+                    continue;
+                }
+                m_attrIndex = own(m_attrIndex);
+                Map valueMap = ownMap(m_attrIndex, attr);
+                for (int j = 0; j < values.length; j++)
+                {
+                    removeFromSet(valueMap, values[j], reg);
+                }
+                if (valueMap.size() == 0)
+                {
+                    m_attrIndex.remove(attr);
+                }
+            }
+        }
+
+        private Map own(Map map)
+        {
+            if (m_owned.containsKey(map))
+            {
+                return map;
+            }
+            Map copy = new HashMap(map);
+            m_owned.put(copy, copy);
+            return copy;
+        }
+
+        private Map ownMap(Map parent, Object key)
+        {
+            Map map = (Map) parent.get(key);
+            map = own((map == null) ? Collections.EMPTY_MAP : map);
+            parent.put(key, map);
+            return map;
+        }
+
+        private Set ownSet(Map parent, Object key)
+        {
+            Set set = (Set) parent.get(key);
+            if ((set == null) || !m_owned.containsKey(set))
+            {
+                set = (set == null) ? new LinkedHashSet() : new LinkedHashSet(set);
+                m_owned.put(set, set);
+                parent.put(key, set);
+            }
+            return set;
+        }
+
+        private void removeFromSet(Map parent, Object key, Object value)
+        {
+            Set set = (Set) parent.get(key);
+            if ((set == null) || !set.contains(value))
+            {
+                return;
+            }
+            set = ownSet(parent, key);
+            set.remove(value);
+            if (set.size() == 0)
+            {
+                parent.remove(key);
+            }
+        }
+    }
+
+    private static class UsageCount
+    {
+        public int m_count = 0;
+        public Bundle m_bundle = null;
+        public ServiceRegistrationImpl m_reg = null;
+        public Object m_svcObj = null;
+        // The instrumented proxy of the service object, if any.
+        public Object m_proxy = null;
+
+        public Object getServiceObject()
+        {
+            return (m_proxy != null) ? m_proxy : m_svcObj;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * This class records a timeline of framework operations, such as bundle
+ * installs, manifest parsing, package resolution, class loader creation,
+ * activator calls, service registrations, and event deliveries, and
+ * writes it as trace event JSON, which can be opened in trace viewers
+ * such as <tt>chrome://tracing</tt> or Perfetto. Each operation is
+ * recorded as a complete event with its thread and, if it concerns a
+ * bundle, the bundle's identifier and location.
+ * <p>
+ * The framework only creates a profiler if the
+ * <tt>oscar.profile.file</tt> property is set; all hooks check for the
+ * profiler first, so profiling costs nothing when it is disabled. The
+ * number of recorded events is limited, further events are dropped.
+**/
+class StartupProfiler
+{
+    private static final int MAX_EVENTS = 1 << 20;
+
+    private File m_file = null;
+    private long m_origin = System.nanoTime();
+    private ConcurrentLinkedQueue m_events = new ConcurrentLinkedQueue();
+    private AtomicInteger m_count = new AtomicInteger();
+    private AtomicLong m_dropped = new AtomicLong();
+
+    /**
+     * Creates a profiler.
+     *
+     * @param file the file the timeline is written to.
+    **/
+    StartupProfiler(File file)
+    {
+        m_file = file;
+    }
+
+    /**
+     * Returns the start time of an operation.
+     *
+     * @return the current time in nanoseconds.
+    **/
+    long begin()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records an operation that ends now.
+     *
+     * @param name the name of the operation.
+     * @param category the category of the operation.
+     * @param bundle the bundle the operation concerns or <tt>null</tt>.
+     * @param start the start time returned by <tt>begin()</tt>.
+    **/
+    void end(String name, String category, Bundle bundle, long start)
+    {
+        long end = System.nanoTime();
+        // The count stops at the limit, so it cannot overflow.
+        int count;
+        do
+        {
+            count = m_count.get();
+            if (count >= MAX_EVENTS)
+            {
+                m_dropped.incrementAndGet();
+                return;
+            }
+        }
+        while (!m_count.compareAndSet(count, count + 1));
+        m_events.add(new Event(name, category, bundle, start, end,
+            Thread.currentThread()));
+    }
+
+    /**
+     * Writes the recorded timeline to the profiler's file.
+    **/
+    void write()
+    {
+        try
+        {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(m_file), StandardCharsets.UTF_8));
+            try
+            {
+                write(out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Oscar.error("StartupProfiler: Unable to write " + m_file, ex);
+        }
+    }
+
+    /**
+     * Writes the recorded timeline as trace event JSON.
+     *
+     * @param out the writer to write to.
+     * @throws IOException if the timeline cannot be written.
+    **/
+    void write(Writer out) throws IOException
+    {
+        Map threads = new TreeMap();
+        out.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (Iterator i = m_events.iterator(); i.hasNext(); )
+        {
+            Event event = (Event) i.next();
+            threads.put(Long.valueOf(event.m_tid), event.m_thread);
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("{\"name\":");
+            quote(out, event.m_name);
+            out.write(",\"cat\":");
+            quote(out, event.m_category);
+            out.write(",\"ph\":\"X\",\"ts\":");
+            micros(out, event.m_start - m_origin);
+            out.write(",\"dur\":");
+            micros(out, event.m_end - event.m_start);
+            out.write(",\"pid\":1,\"tid\":" + event.m_tid);
+            if (event.m_location != null)
+            {
+                out.write(",\"args\":{\"bundle\":" + event.m_bundleId + ",\"location\":");
+                quote(out, event.m_location);
+                out.write("}");
+            }
+            out.write("}");
+        }
+        for (Iterator i = threads.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+                + entry.getKey() + ",\"args\":{\"name\":");
+            quote(out, (String) entry.getValue());
+            out.write("}}");
+        }
+        out.write("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":"
+            + m_dropped.get() + "}}\n");
+    }
+
+    private static void micros(Writer out, long nanos) throws IOException
+    {
+        String frac = Long.toString(1000 + (nanos % 1000));
+        out.write(Long.toString(nanos / 1000));
+        out.write('.');
+        out.write(frac, 1, 3);
+    }
+
+    private static void quote(Writer out, String s) throws IOException
+    {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\'))
+            {
+                out.write('\\');
+                out.write(c);
+            }
+            else if (c < 0x20)
+            {
+                String hex = Integer.toHexString(0x10000 + c);
+                out.write("\\u");
+                out.write(hex, 1, 4);
+            }
+            else
+            {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private static class Event
+    {
+        private String m_name = null;
+        private String m_category = null;
+        private long m_bundleId = -1;
+        private String m_location = null;
+        private long m_start = 0;
+        private long m_end = 0;
+        private long m_tid = 0;
+        private String m_thread = null;
+
+        Event(String name, String category, Bundle bundle, long start, long end,
+            Thread thread)
+        {
+            m_name = name;
+            m_category = category;
+            if (bundle != null)
+            {
+                m_bundleId = bundle.getBundleId();
+                m_location = bundle.getLocation();
+            }
+            m_start = start;
+            m_end = end;
+            m_tid = thread.getId();
+            m_thread = thread.getName();
+        }
+    }
+}
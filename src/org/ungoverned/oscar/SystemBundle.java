@@ -1,14 +1,110 @@
 package org.ungoverned.oscar;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
 
 public class SystemBundle extends BundleImpl {
+    private List m_activatorList = null;
 
     protected SystemBundle(Oscar oscar, BundleInfo info, List activatorList)
         throws BundleException
     {
         super(oscar, info);
+
+        m_activatorList = (activatorList == null)
+            ? new ArrayList() : new ArrayList(activatorList);
+    }
+
+    public int getState()
+    {
+        switch (getOscar().getFrameworkStatus())
+        {
+            case Oscar.STARTING_STATUS:
+                return Bundle.STARTING;
+            case Oscar.STOPPING_STATUS:
+                return Bundle.STOPPING;
+            case Oscar.RUNNING_STATUS:
+                return Bundle.ACTIVE;
+            default:
+                return Bundle.RESOLVED;
+        }
+    }
+
+    public String getLocation()
+    {
+        return Constants.SYSTEM_BUNDLE_LOCATION;
+    }
+
+    public synchronized void start() throws BundleException
+    {
+        if (getContext() != null)
+        {
+            return;
+        }
+        setContext(new BundleContextImpl(getOscar(), this));
+
+        // Start all activators passed into the framework.
+        for (int i = 0; i < m_activatorList.size(); i++)
+        {
+            try
+            {
+                ((BundleActivator) m_activatorList.get(i)).start(getContext());
+            }
+            catch (Exception ex)
+            {
+                throw new BundleException("Activator start error.", ex);
+            }
+        }
+    }
+
+    /**
+     * Shuts down the framework on a separate thread, since the calling
+     * thread may be an activator or listener of a bundle that is stopped
+     * during the shutdown.
+    **/
+    public void stop() throws BundleException
+    {
+        Thread t = new Thread("Oscar Shutdown") {
+            public void run()
+            {
+                getOscar().shutdown();
+            }
+        };
+        t.start();
+    }
+
+    /**
+     * Stops the activators passed into the framework; called by the
+     * framework when it shuts down.
+    **/
+    synchronized void stopActivators() // package protected
+    {
+        if (getContext() == null)
+        {
+            return;
+        }
+
+        // Stop all activators in reverse order.
+        for (int i = m_activatorList.size() - 1; i >= 0; i--)
+        {
+            try
+            {
+                ((BundleActivator) m_activatorList.get(i)).stop(getContext());
+            }
+            catch (Exception ex)
+            {
+                Oscar.error("SystemBundle: Activator stop error.", ex);
+            }
+        }
+
+        // Release everything the activators left behind.
+        getContext().invalidate();
+        getOscar().cleanupBundle(this);
+        setContext(null);
     }
 }
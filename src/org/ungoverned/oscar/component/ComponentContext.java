@@ -0,0 +1,77 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.component;
+
+import java.util.Dictionary;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * The context of an activated component. A component implementation
+ * receives its context if it declares a public <tt>activate</tt> or
+ * <tt>deactivate</tt> method taking a <tt>ComponentContext</tt>
+ * parameter; both methods are optional and may also be declared without
+ * parameters.
+**/
+public interface ComponentContext
+{
+    /**
+     * Returns the context of the bundle that declares the component.
+     *
+     * @return the bundle context.
+    **/
+    public BundleContext getBundleContext();
+
+    /**
+     * Returns the properties of the component, which are also the
+     * service properties of the services it provides.
+     *
+     * @return the component properties.
+    **/
+    public Dictionary getProperties();
+
+    /**
+     * Returns the service object bound to one of the component's
+     * required service classes. The bound service does not change while
+     * the component is active; if it is unregistered, the component is
+     * deactivated first.
+     *
+     * @param className the required service class.
+     * @return the bound service object or <tt>null</tt> if the class is
+     *         not required by the component.
+    **/
+    public Object locateService(String className);
+}
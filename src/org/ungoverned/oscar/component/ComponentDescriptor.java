@@ -0,0 +1,123 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.component;
+
+import org.ungoverned.oscar.util.HeaderParser;
+
+/**
+ * This class describes a component as declared by the
+ * <tt>Oscar-Component</tt> manifest header.
+**/
+class ComponentDescriptor
+{
+    private String m_name = null;
+    private String m_className = null;
+    private String[] m_provides = null;
+    private String[] m_requires = null;
+    private boolean m_immediate = false;
+
+    public ComponentDescriptor(
+        String name, String className, String[] provides, String[] requires,
+        boolean immediate)
+    {
+        m_name = name;
+        m_className = className;
+        m_provides = provides;
+        m_requires = requires;
+        // Components without services are activated when satisfied.
+        m_immediate = immediate || (provides.length == 0);
+    }
+
+    /**
+     * Parses the components declared by a manifest header.
+     *
+     * @param header the value of the <tt>Oscar-Component</tt> header.
+     * @return an array of component descriptors.
+     * @throws IllegalArgumentException if the header is malformed.
+    **/
+    public static ComponentDescriptor[] parse(String header)
+    {
+        HeaderParser.Clause[] clauses = HeaderParser.parse(header);
+        ComponentDescriptor[] descriptors = new ComponentDescriptor[clauses.length];
+        for (int i = 0; i < clauses.length; i++)
+        {
+            if (clauses[i].getNames().length != 1)
+            {
+                throw new IllegalArgumentException(
+                    "Each component must have exactly one class: " + header);
+            }
+            String className = clauses[i].getName();
+            String name = clauses[i].getParameter("name");
+            descriptors[i] = new ComponentDescriptor(
+                (name == null) ? className : name,
+                className,
+                HeaderParser.parseList(clauses[i].getParameter("provide")),
+                HeaderParser.parseList(clauses[i].getParameter("require")),
+                "true".equalsIgnoreCase(clauses[i].getParameter("immediate")));
+        }
+        return descriptors;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public String getClassName()
+    {
+        return m_className;
+    }
+
+    public String[] getProvides()
+    {
+        return m_provides;
+    }
+
+    public String[] getRequires()
+    {
+        return m_requires;
+    }
+
+    public boolean isImmediate()
+    {
+        return m_immediate;
+    }
+
+    public String toString()
+    {
+        return m_name;
+    }
+}
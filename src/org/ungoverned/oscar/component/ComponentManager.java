@@ -0,0 +1,629 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.ungoverned.oscar.Oscar;
+import org.ungoverned.oscar.util.OscarConstants;
+
+/**
+ * This class manages the lifecycle of a single component. The component
+ * is satisfied while a service is registered for each of its required
+ * classes. When it becomes satisfied, its services are registered using
+ * a service factory, so the component is only instantiated when one of
+ * its services is first requested; immediate components are instead
+ * activated right away on the runtime's executor. When a bound service
+ * is unregistered or the component is no longer satisfied, the component
+ * is deactivated and its services are unregistered.
+ * <p>
+ * Changes of the satisfaction state are serialized by a state lock,
+ * which is only held while deciding what has to be done; the resulting
+ * registrations, unregistrations and deactivations are queued and then
+ * performed in order by a single thread without holding the state lock,
+ * since they call out to listeners and to the component. The component
+ * instance is guarded by a separate instance lock, which is never held
+ * together with the state lock; this way service requests for a
+ * component that is being activated only wait for the activation itself.
+**/
+class ComponentManager implements ServiceListener
+{
+    static final String COMPONENT_NAME = "component.name";
+
+    private ComponentRuntime m_runtime = null;
+    private ComponentDescriptor m_descriptor = null;
+    private BundleContext m_context = null;
+    private ClassLoader m_loader = null;
+
+    // Guards the satisfaction state and the queued actions.
+    private final Object m_stateLock = new Object();
+    private boolean m_enabled = false;
+    private boolean m_satisfied = false;
+    private LinkedList m_actions = new LinkedList();
+    private boolean m_running = false;
+    // The references of services that went away, which an activation
+    // in progress may have bound before the event was delivered.
+    private Map m_departed = new WeakHashMap();
+    // Only accessed by the thread performing the queued actions.
+    private ServiceRegistration m_registration = null;
+    // Incremented whenever the component becomes satisfied or
+    // unsatisfied; activations of previous generations are ignored.
+    private volatile int m_generation = 0;
+
+    // Guards the component instance.
+    private final Object m_instanceLock = new Object();
+    private Object m_instance = null;
+    // Volatile so the bound services can be checked without the lock;
+    // the context is not modified while it is published.
+    private volatile ComponentContextImpl m_componentContext = null;
+
+    public ComponentManager(
+        ComponentRuntime runtime, ComponentDescriptor descriptor,
+        BundleContext context, ClassLoader loader)
+    {
+        m_runtime = runtime;
+        m_descriptor = descriptor;
+        m_context = context;
+        m_loader = loader;
+    }
+
+    public ComponentDescriptor getDescriptor()
+    {
+        return m_descriptor;
+    }
+
+    /**
+     * Starts managing the component by listening for its required
+     * services and registering or activating it if it is satisfied.
+    **/
+    public void enable()
+    {
+        String[] requires = m_descriptor.getRequires();
+        if (requires.length > 0)
+        {
+            StringBuffer sb = new StringBuffer();
+            sb.append((requires.length > 1) ? "(|" : "");
+            for (int i = 0; i < requires.length; i++)
+            {
+                sb.append("(" + Constants.OBJECTCLASS + "=" + requires[i] + ")");
+            }
+            sb.append((requires.length > 1) ? ")" : "");
+            try
+            {
+                m_context.addServiceListener(this, sb.toString());
+            }
+            catch (InvalidSyntaxException ex)
+            {
+                Oscar.error("ComponentRuntime: Invalid required class in "
+                    + m_descriptor, ex);
+                return;
+            }
+        }
+        synchronized (m_stateLock)
+        {
+            m_enabled = true;
+            update(null);
+        }
+        runActions();
+    }
+
+    /**
+     * Stops managing the component; the component is deactivated and
+     * its services are unregistered.
+    **/
+    public void disable()
+    {
+        synchronized (m_stateLock)
+        {
+            if (!m_enabled)
+            {
+                return;
+            }
+            m_enabled = false;
+            if (m_satisfied)
+            {
+                unsatisfy();
+            }
+        }
+        if (m_descriptor.getRequires().length > 0)
+        {
+            m_context.removeServiceListener(this);
+        }
+        runActions();
+    }
+
+    public void serviceChanged(ServiceEvent event)
+    {
+        synchronized (m_stateLock)
+        {
+            if (!m_enabled)
+            {
+                return;
+            }
+            if ((event.getType() == ServiceEvent.UNREGISTERING)
+                || (event.getType() == OscarConstants.SERVICE_MODIFIED_ENDMATCH))
+            {
+                // Bound services never change, so the component is
+                // deactivated if one of them goes away; it is activated
+                // again below if a replacement is available.
+                m_departed.put(event.getServiceReference(), null);
+                if (m_satisfied && isBound(event.getServiceReference()))
+                {
+                    unsatisfy();
+                }
+                update(event.getServiceReference());
+            }
+            else
+            {
+                m_departed.remove(event.getServiceReference());
+                update(null);
+            }
+        }
+        runActions();
+    }
+
+    /**
+     * Makes the component satisfied or unsatisfied depending on the
+     * availability of its required services. Must be called while
+     * holding the state lock; the resulting actions are only queued.
+     *
+     * @param removed a reference that is being unregistered and must be
+     *        ignored, or <tt>null</tt>.
+    **/
+    private void update(ServiceReference removed)
+    {
+        boolean satisfied = isSatisfied(removed);
+        if (satisfied && !m_satisfied)
+        {
+            satisfy();
+        }
+        else if (!satisfied && m_satisfied)
+        {
+            unsatisfy();
+        }
+    }
+
+    private boolean isSatisfied(ServiceReference removed)
+    {
+        String[] requires = m_descriptor.getRequires();
+        for (int i = 0; i < requires.length; i++)
+        {
+            if (getReference(requires[i], removed) == null)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ServiceReference getReference(String className, ServiceReference removed)
+    {
+        if (removed == null)
+        {
+            return m_context.getServiceReference(className);
+        }
+        ServiceReference[] refs = null;
+        try
+        {
+            refs = m_context.getServiceReferences(className, null);
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            // This cannot happen without a filter.
+        }
+        ServiceReference best = null;
+        for (int i = 0; (refs != null) && (i < refs.length); i++)
+        {
+            if (!refs[i].equals(removed) && ((best == null) || isBetter(refs[i], best)))
+            {
+                best = refs[i];
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(ServiceReference ref1, ServiceReference ref2)
+    {
+        int rank1 = getRanking(ref1), rank2 = getRanking(ref2);
+        if (rank1 != rank2)
+        {
+            return rank1 > rank2;
+        }
+        return ((Long) ref1.getProperty(Constants.SERVICE_ID)).longValue()
+            < ((Long) ref2.getProperty(Constants.SERVICE_ID)).longValue();
+    }
+
+    private static int getRanking(ServiceReference ref)
+    {
+        Object rank = ref.getProperty(Constants.SERVICE_RANKING);
+        return (rank instanceof Integer) ? ((Integer) rank).intValue() : 0;
+    }
+
+    private void satisfy()
+    {
+        m_satisfied = true;
+        final int generation = ++m_generation;
+
+        final String[] provides = m_descriptor.getProvides();
+        if (provides.length > 0)
+        {
+            m_actions.add(new Runnable() {
+                public void run()
+                {
+                    Hashtable props = new Hashtable();
+                    props.put(COMPONENT_NAME, m_descriptor.getName());
+                    try
+                    {
+                        m_registration = m_context.registerService(
+                            provides, new ComponentFactory(generation), props);
+                    }
+                    catch (IllegalStateException ex)
+                    {
+                        // The bundle is stopping.
+                    }
+                }
+            });
+        }
+
+        if (m_descriptor.isImmediate())
+        {
+            m_runtime.execute(new Runnable() {
+                public void run()
+                {
+                    getInstance(generation);
+                }
+            });
+        }
+    }
+
+    private void unsatisfy()
+    {
+        m_satisfied = false;
+        m_generation++;
+
+        m_actions.add(new Runnable() {
+            public void run()
+            {
+                if (m_registration != null)
+                {
+                    try
+                    {
+                        m_registration.unregister();
+                    }
+                    catch (IllegalStateException ex)
+                    {
+                        // The bundle already unregistered its services.
+                    }
+                    m_registration = null;
+                }
+
+                deactivate();
+            }
+        });
+    }
+
+    /**
+     * Performs the queued actions in order without holding the state
+     * lock. If another thread is already performing them, it also
+     * performs the actions queued by the calling thread.
+    **/
+    private void runActions()
+    {
+        synchronized (m_stateLock)
+        {
+            if (m_running)
+            {
+                return;
+            }
+            m_running = true;
+        }
+
+        while (true)
+        {
+            Runnable action = null;
+            synchronized (m_stateLock)
+            {
+                if (m_actions.isEmpty())
+                {
+                    m_running = false;
+                    return;
+                }
+                action = (Runnable) m_actions.removeFirst();
+            }
+            try
+            {
+                action.run();
+            }
+            catch (Throwable th)
+            {
+                Oscar.error("ComponentRuntime: Error updating " + m_descriptor, th);
+            }
+        }
+    }
+
+    private boolean isBound(ServiceReference ref)
+    {
+        ComponentContextImpl cc = m_componentContext;
+        return (cc != null) && cc.isBound(ref);
+    }
+
+    /**
+     * Returns the component instance, activating the component if
+     * necessary.
+     *
+     * @param generation the generation for which the instance is needed.
+     * @return the instance or <tt>null</tt> if the generation is outdated
+     *         or the component cannot be activated.
+    **/
+    Object getInstance(int generation) // package protected
+    {
+        ComponentContextImpl cc = null;
+        Object instance = null;
+        ServiceReference[] bound = null;
+        synchronized (m_instanceLock)
+        {
+            if (m_instance != null)
+            {
+                return m_instance;
+            }
+            else if (generation != m_generation)
+            {
+                return null;
+            }
+
+            cc = new ComponentContextImpl();
+            try
+            {
+                // Bind the required services.
+                String[] requires = m_descriptor.getRequires();
+                for (int i = 0; i < requires.length; i++)
+                {
+                    if (!cc.bind(requires[i]))
+                    {
+                        cc.unbindAll();
+                        return null;
+                    }
+                }
+
+                instance = m_loader.loadClass(
+                    m_descriptor.getClassName()).getDeclaredConstructor().newInstance();
+                invoke(instance, "activate", cc);
+                m_componentContext = cc;
+                m_instance = instance;
+                bound = cc.getBound();
+            }
+            catch (Throwable th)
+            {
+                if (th instanceof InvocationTargetException)
+                {
+                    th = ((InvocationTargetException) th).getTargetException();
+                }
+                Oscar.error("ComponentRuntime: Unable to activate " + m_descriptor, th);
+                cc.unbindAll();
+                return null;
+            }
+        }
+
+        // A bound service that went away before the context was
+        // published was not noticed by serviceChanged(), so the
+        // component is deactivated here instead.
+        boolean departed = false;
+        synchronized (m_stateLock)
+        {
+            for (int i = 0; !departed && (i < bound.length); i++)
+            {
+                if (m_departed.containsKey(bound[i]) && m_satisfied
+                    && (generation == m_generation))
+                {
+                    departed = true;
+                    unsatisfy();
+                    update(bound[i]);
+                }
+            }
+        }
+        if (departed)
+        {
+            runActions();
+            return null;
+        }
+        return instance;
+    }
+
+    private void deactivate()
+    {
+        synchronized (m_instanceLock)
+        {
+            if (m_instance == null)
+            {
+                return;
+            }
+            try
+            {
+                invoke(m_instance, "deactivate", m_componentContext);
+            }
+            catch (Throwable th)
+            {
+                if (th instanceof InvocationTargetException)
+                {
+                    th = ((InvocationTargetException) th).getTargetException();
+                }
+                Oscar.error("ComponentRuntime: Error deactivating " + m_descriptor, th);
+            }
+            ComponentContextImpl cc = m_componentContext;
+            m_componentContext = null;
+            m_instance = null;
+            cc.unbindAll();
+        }
+    }
+
+    /**
+     * Invokes the named public method on the component instance if it
+     * exists, passing the component context if the method accepts it.
+    **/
+    private static void invoke(Object instance, String name, ComponentContext cc)
+        throws Exception
+    {
+        Method method = null;
+        try
+        {
+            method = instance.getClass().getMethod(
+                name, new Class[] { ComponentContext.class });
+            method.invoke(instance, new Object[] { cc });
+            return;
+        }
+        catch (NoSuchMethodException ex)
+        {
+            // Try the method without parameters.
+        }
+        try
+        {
+            method = instance.getClass().getMethod(name, new Class[0]);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return;
+        }
+        method.invoke(instance, new Object[0]);
+    }
+
+    /**
+     * The service factory registered for components that provide
+     * services; it activates the component when its service is first
+     * requested.
+    **/
+    private class ComponentFactory implements ServiceFactory
+    {
+        private int m_factoryGeneration = 0;
+
+        public ComponentFactory(int generation)
+        {
+            m_factoryGeneration = generation;
+        }
+
+        public Object getService(Bundle bundle, ServiceRegistration reg)
+        {
+            return getInstance(m_factoryGeneration);
+        }
+
+        public void ungetService(Bundle bundle, ServiceRegistration reg, Object svcObj)
+        {
+            // The instance is kept until the component is deactivated.
+        }
+    }
+
+    private class ComponentContextImpl implements ComponentContext
+    {
+        // Maps required class names to bound references.
+        private Map m_refs = new HashMap();
+        // Maps required class names to bound service objects.
+        private Map m_services = new HashMap();
+
+        public BundleContext getBundleContext()
+        {
+            return m_context;
+        }
+
+        public Dictionary getProperties()
+        {
+            Hashtable props = new Hashtable();
+            props.put(COMPONENT_NAME, m_descriptor.getName());
+            return props;
+        }
+
+        public Object locateService(String className)
+        {
+            return m_services.get(className);
+        }
+
+        public boolean bind(String className)
+        {
+            ServiceReference ref = getReference(className, null);
+            Object svcObj = (ref == null) ? null : m_context.getService(ref);
+            if (svcObj == null)
+            {
+                return false;
+            }
+            m_refs.put(className, ref);
+            m_services.put(className, svcObj);
+            return true;
+        }
+
+        public boolean isBound(ServiceReference ref)
+        {
+            return m_refs.containsValue(ref);
+        }
+
+        public ServiceReference[] getBound()
+        {
+            return (ServiceReference[]) m_refs.values().toArray(
+                new ServiceReference[m_refs.size()]);
+        }
+
+        public void unbindAll()
+        {
+            for (Iterator i = m_refs.values().iterator(); i.hasNext(); )
+            {
+                try
+                {
+                    m_context.ungetService((ServiceReference) i.next());
+                }
+                catch (IllegalStateException ex)
+                {
+                    // The bundle context is no longer valid.
+                }
+            }
+            m_refs.clear();
+            m_services.clear();
+        }
+    }
+}
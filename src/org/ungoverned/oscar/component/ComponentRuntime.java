@@ -0,0 +1,192 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.ungoverned.oscar.Oscar;
+import org.ungoverned.oscar.util.DaemonThreadPool;
+import org.ungoverned.oscar.util.OscarConstants;
+
+/**
+ * This class implements the framework's component runtime, which manages
+ * the components declared by the <tt>Oscar-Component</tt> manifest
+ * header of active bundles. Components are wired to their required
+ * services through the service registry: a component becomes satisfied
+ * when all of its required services are registered, which also orders
+ * activation by dependencies, since a component providing a service is
+ * registered before the components requiring it can become satisfied.
+ * <p>
+ * Components that provide services are only instantiated when one of
+ * their services is first requested. Immediate components are activated
+ * in parallel on a bounded pool of threads, which are created on demand
+ * and terminate when idle, so that neither bundle start nor the
+ * registration of a required service waits for component code.
+**/
+public class ComponentRuntime
+{
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private int m_maxThreads = 0;
+    private ThreadPoolExecutor m_executor = null;
+    private boolean m_closed = false;
+    // Maps bundle to the managers of its components.
+    private Map m_managerMap = new HashMap();
+
+    /**
+     * Creates a component runtime.
+     *
+     * @param maxThreads the maximum number of activation threads.
+    **/
+    public ComponentRuntime(int maxThreads)
+    {
+        m_maxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * Starts managing the components declared by a bundle that was just
+     * started. Errors in the component declarations are logged and
+     * otherwise ignored.
+     *
+     * @param bundle the started bundle.
+     * @param context the context of the bundle.
+     * @param loader the class loader of the bundle.
+    **/
+    public void addComponents(Bundle bundle, BundleContext context, ClassLoader loader)
+    {
+        String header = (String) bundle.getHeaders().get(OscarConstants.COMPONENT_HEADER);
+        if (header == null)
+        {
+            return;
+        }
+
+        ComponentDescriptor[] descriptors = null;
+        try
+        {
+            descriptors = ComponentDescriptor.parse(header);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Oscar.error("ComponentRuntime: Invalid component header in bundle "
+                + bundle.getBundleId(), ex);
+            return;
+        }
+
+        ComponentManager[] managers = new ComponentManager[descriptors.length];
+        for (int i = 0; i < descriptors.length; i++)
+        {
+            managers[i] = new ComponentManager(this, descriptors[i], context, loader);
+        }
+        synchronized (m_managerMap)
+        {
+            m_managerMap.put(bundle, managers);
+        }
+        for (int i = 0; i < managers.length; i++)
+        {
+            managers[i].enable();
+        }
+    }
+
+    /**
+     * Stops managing the components of a bundle that is being stopped;
+     * the components are deactivated in reverse order of declaration.
+     *
+     * @param bundle the bundle being stopped.
+    **/
+    public void removeComponents(Bundle bundle)
+    {
+        ComponentManager[] managers = null;
+        synchronized (m_managerMap)
+        {
+            managers = (ComponentManager[]) m_managerMap.remove(bundle);
+        }
+        for (int i = (managers == null) ? -1 : managers.length - 1; i >= 0; i--)
+        {
+            managers[i].disable();
+        }
+    }
+
+    /**
+     * Shuts down the activation threads; pending activations are
+     * discarded.
+    **/
+    public synchronized void shutdown()
+    {
+        m_closed = true;
+        if (m_executor != null)
+        {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    /**
+     * Runs the supplied activation task on the activation threads.
+     *
+     * @param task the task to run.
+    **/
+    void execute(Runnable task) // package protected
+    {
+        ThreadPoolExecutor executor = null;
+        synchronized (this)
+        {
+            if (m_closed)
+            {
+                // The runtime was shut down.
+                return;
+            }
+            if (m_executor == null)
+            {
+                m_executor = new DaemonThreadPool(
+                    "Oscar Component Activator", m_maxThreads, KEEP_ALIVE_SECONDS);
+            }
+            executor = m_executor;
+        }
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The runtime was shut down concurrently.
+        }
+    }
+}
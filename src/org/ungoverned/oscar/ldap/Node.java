@@ -0,0 +1,684 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.ldap;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+
+/**
+ * A node of a parsed LDAP filter expression. Composite nodes
+ * (<tt>AND</tt>, <tt>OR</tt>, and <tt>NOT</tt>) have child nodes, while
+ * all other nodes compare a single attribute against a value using the
+ * comparison rules of the OSGi specification. Nodes are immutable once
+ * created by the <tt>Parser</tt>.
+**/
+public class Node
+{
+    public static final int AND = 0;
+    public static final int OR = 1;
+    public static final int NOT = 2;
+    public static final int EQUAL = 3;
+    public static final int APPROX = 4;
+    public static final int GREATER = 5;
+    public static final int LESS = 6;
+    public static final int PRESENT = 7;
+    public static final int SUBSTRING = 8;
+
+    // Operator of this node.
+    private int m_op = -1;
+    // Children of composite nodes.
+    private Node[] m_children = null;
+    // Attribute name and value of comparison nodes.
+    private String m_attr = null;
+    private String m_value = null;
+    // Substring pieces; the first element is the initial piece and
+    // the last element is the final piece, either of which may be
+    // empty if the substring starts or ends with a wildcard.
+    private String[] m_pieces = null;
+
+    // The value of comparison nodes converted once to the types of
+    // property values, so that evaluation neither parses nor allocates.
+    private String m_trimmed = null;
+    private String m_normalized = null;
+    private boolean m_longValid = false;
+    private long m_long = 0;
+    private boolean m_doubleValid = false;
+    private double m_double = 0;
+    private boolean m_floatValid = false;
+    private float m_float = 0;
+    private boolean m_boolean = false;
+    private boolean m_charValid = false;
+    private char m_char = 0;
+    // The value converted to the last other type of property value.
+    private volatile CoercedValue m_coerced = null;
+
+    Node(int op, Node[] children)
+    {
+        m_op = op;
+        m_children = children;
+    }
+
+    Node(int op, String attr, String value)
+    {
+        m_op = op;
+        m_attr = attr;
+        m_value = value;
+        if (value != null)
+        {
+            bindValue();
+        }
+    }
+
+    Node(String attr, String[] pieces)
+    {
+        m_op = SUBSTRING;
+        m_attr = attr;
+        m_pieces = pieces;
+    }
+
+    public int getOperator()
+    {
+        return m_op;
+    }
+
+    public Node[] getChildren()
+    {
+        return m_children;
+    }
+
+    public String getAttribute()
+    {
+        return m_attr;
+    }
+
+    public String getValue()
+    {
+        return m_value;
+    }
+
+    /**
+     * Returns the canonical form of this node, so that filters that only
+     * differ in spelling have the same string representation. Attribute
+     * names are converted to lower case, nested conjunctions and
+     * disjunctions are flattened, their terms are sorted and duplicate
+     * terms are removed, and double negations are eliminated. The
+     * canonical form is equivalent to this node.
+     *
+     * @return the canonical form of this node.
+    **/
+    public Node normalize()
+    {
+        switch (m_op)
+        {
+            case AND:
+            case OR:
+                // Sort the terms by their string representation, which
+                // also removes duplicates.
+                Map terms = new TreeMap();
+                addTerms(terms, m_op);
+                if (terms.size() == 1)
+                {
+                    return (Node) terms.values().iterator().next();
+                }
+                return new Node(m_op,
+                    (Node[]) terms.values().toArray(new Node[terms.size()]));
+            case NOT:
+                Node child = m_children[0].normalize();
+                if (child.m_op == NOT)
+                {
+                    return child.m_children[0];
+                }
+                return new Node(NOT, new Node[] { child });
+            case SUBSTRING:
+                return new Node(m_attr.toLowerCase(Locale.ROOT), m_pieces);
+            default:
+                return new Node(m_op, m_attr.toLowerCase(Locale.ROOT), m_value);
+        }
+    }
+
+    private void addTerms(Map terms, int op)
+    {
+        for (int i = 0; i < m_children.length; i++)
+        {
+            if (m_children[i].m_op == op)
+            {
+                m_children[i].addTerms(terms, op);
+            }
+            else
+            {
+                Node child = m_children[i].normalize();
+                if (child.m_op == op)
+                {
+                    // A double negation of a nested term.
+                    child.addTerms(terms, op);
+                }
+                else
+                {
+                    terms.put(child.toString(), child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates this node using the supplied mapper to look up
+     * attribute values.
+     *
+     * @param mapper the mapper used to look up attribute values.
+     * @return <tt>true</tt> if the attributes satisfy this node,
+     *         <tt>false</tt> otherwise.
+    **/
+    public boolean evaluate(Mapper mapper)
+    {
+        switch (m_op)
+        {
+            case AND:
+                for (int i = 0; i < m_children.length; i++)
+                {
+                    if (!m_children[i].evaluate(mapper))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (int i = 0; i < m_children.length; i++)
+                {
+                    if (m_children[i].evaluate(mapper))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !m_children[0].evaluate(mapper);
+            case PRESENT:
+                return (mapper.lookup(m_attr) != null);
+            default:
+                Object target = mapper.lookup(m_attr);
+                return (target != null) && compare(target);
+        }
+    }
+
+    private void bindValue()
+    {
+        m_trimmed = m_value.trim();
+        m_normalized = normalize(m_value);
+        m_boolean = Boolean.valueOf(m_trimmed).booleanValue();
+        m_charValid = (m_trimmed.length() == 1);
+        m_char = m_charValid ? m_trimmed.charAt(0) : 0;
+        try
+        {
+            m_long = Long.parseLong(m_trimmed);
+            m_longValid = true;
+        }
+        catch (NumberFormatException ex)
+        {
+            // The value is not an integer.
+        }
+        try
+        {
+            m_double = Double.parseDouble(m_trimmed);
+            m_float = Float.parseFloat(m_trimmed);
+            m_doubleValid = m_floatValid = true;
+        }
+        catch (NumberFormatException ex)
+        {
+            // The value is not a floating point number.
+        }
+    }
+
+    private boolean compare(Object target)
+    {
+        Class clazz = target.getClass();
+        if (clazz == String.class)
+        {
+            return compareString((String) target);
+        }
+        else if (clazz == Integer.class)
+        {
+            return compareIntegral(((Integer) target).intValue(),
+                Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+        else if (clazz == Long.class)
+        {
+            return compareIntegral(((Long) target).longValue(),
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        else if (clazz == Short.class)
+        {
+            return compareIntegral(((Short) target).shortValue(),
+                Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+        else if (clazz == Byte.class)
+        {
+            return compareIntegral(((Byte) target).byteValue(),
+                Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        else if (clazz == Double.class)
+        {
+            return compareDouble(((Double) target).doubleValue());
+        }
+        else if (clazz == Float.class)
+        {
+            return compareFloat(((Float) target).floatValue());
+        }
+        else if (clazz == Boolean.class)
+        {
+            return compareBoolean(((Boolean) target).booleanValue());
+        }
+        else if (clazz == Character.class)
+        {
+            return compareChar(((Character) target).charValue());
+        }
+        else if (target instanceof Object[])
+        {
+            Object[] array = (Object[]) target;
+            for (int i = 0; i < array.length; i++)
+            {
+                if ((array[i] != null) && compare(array[i]))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if (clazz.isArray())
+        {
+            return comparePrimitiveArray(target);
+        }
+        else if ((target instanceof List) && (target instanceof RandomAccess))
+        {
+            List list = (List) target;
+            for (int i = 0, size = list.size(); i < size; i++)
+            {
+                Object obj = list.get(i);
+                if ((obj != null) && compare(obj))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if (target instanceof Collection)
+        {
+            for (Iterator iter = ((Collection) target).iterator(); iter.hasNext(); )
+            {
+                Object obj = iter.next();
+                if ((obj != null) && compare(obj))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return compareObject(target);
+    }
+
+    private boolean comparePrimitiveArray(Object target)
+    {
+        Class type = target.getClass().getComponentType();
+        for (int i = 0, len = Array.getLength(target); i < len; i++)
+        {
+            boolean match = false;
+            if (type == int.class)
+            {
+                match = compareIntegral(((int[]) target)[i],
+                    Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+            else if (type == long.class)
+            {
+                match = compareIntegral(((long[]) target)[i],
+                    Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            else if (type == short.class)
+            {
+                match = compareIntegral(((short[]) target)[i],
+                    Short.MIN_VALUE, Short.MAX_VALUE);
+            }
+            else if (type == byte.class)
+            {
+                match = compareIntegral(((byte[]) target)[i],
+                    Byte.MIN_VALUE, Byte.MAX_VALUE);
+            }
+            else if (type == double.class)
+            {
+                match = compareDouble(((double[]) target)[i]);
+            }
+            else if (type == float.class)
+            {
+                match = compareFloat(((float[]) target)[i]);
+            }
+            else if (type == boolean.class)
+            {
+                match = compareBoolean(((boolean[]) target)[i]);
+            }
+            else if (type == char.class)
+            {
+                match = compareChar(((char[]) target)[i]);
+            }
+            if (match)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares an integral value to the filter value, which only
+     * matches if it is an integer in the range of the value's type.
+    **/
+    private boolean compareIntegral(long target, long min, long max)
+    {
+        if ((m_op == SUBSTRING) || !m_longValid || (m_long < min) || (m_long > max))
+        {
+            return false;
+        }
+        return compareOrdered((target < m_long) ? -1 : ((target == m_long) ? 0 : 1));
+    }
+
+    private boolean compareDouble(double target)
+    {
+        return (m_op != SUBSTRING) && m_doubleValid
+            && compareOrdered(Double.compare(target, m_double));
+    }
+
+    private boolean compareFloat(float target)
+    {
+        return (m_op != SUBSTRING) && m_floatValid
+            && compareOrdered(Float.compare(target, m_float));
+    }
+
+    private boolean compareBoolean(boolean target)
+    {
+        return ((m_op == EQUAL) || (m_op == APPROX)) && (target == m_boolean);
+    }
+
+    private boolean compareChar(char target)
+    {
+        return m_charValid && compareOrdered(target - m_char);
+    }
+
+    private boolean compareString(String target)
+    {
+        switch (m_op)
+        {
+            case EQUAL:
+                return target.equals(m_value);
+            case APPROX:
+                return approxEquals(target, m_normalized);
+            case GREATER:
+                return target.compareTo(m_value) >= 0;
+            case LESS:
+                return target.compareTo(m_value) <= 0;
+            case SUBSTRING:
+                return compareSubstring(target);
+        }
+        return false;
+    }
+
+    private boolean compareSubstring(String target)
+    {
+        int last = m_pieces.length - 1;
+        if (!target.startsWith(m_pieces[0]))
+        {
+            return false;
+        }
+        int idx = m_pieces[0].length();
+        for (int i = 1; i < last; i++)
+        {
+            idx = target.indexOf(m_pieces[i], idx);
+            if (idx < 0)
+            {
+                return false;
+            }
+            idx += m_pieces[i].length();
+        }
+        return ((target.length() - idx) >= m_pieces[last].length())
+            && target.endsWith(m_pieces[last]);
+    }
+
+    private boolean compareObject(Object target)
+    {
+        if (m_op == SUBSTRING)
+        {
+            return false;
+        }
+
+        CoercedValue coerced = m_coerced;
+        if ((coerced == null) || (coerced.m_class != target.getClass()))
+        {
+            coerced = new CoercedValue();
+            coerced.m_class = target.getClass();
+            try
+            {
+                coerced.m_value = coerce(target.getClass(), m_trimmed);
+            }
+            catch (Exception ex)
+            {
+                // The filter value cannot be represented using the
+                // type of the target, so they can never match.
+            }
+            m_coerced = coerced;
+        }
+
+        Object value = coerced.m_value;
+        if (value == null)
+        {
+            return false;
+        }
+        else if (value instanceof Comparable)
+        {
+            return compareOrdered(((Comparable) target).compareTo(value));
+        }
+        return ((m_op == EQUAL) || (m_op == APPROX)) && target.equals(value);
+    }
+
+    private boolean compareOrdered(int cmp)
+    {
+        switch (m_op)
+        {
+            case EQUAL:
+            case APPROX:
+                return cmp == 0;
+            case GREATER:
+                return cmp >= 0;
+            case LESS:
+                return cmp <= 0;
+        }
+        return false;
+    }
+
+    private static Object coerce(Class clazz, String s) throws Exception
+    {
+        if (clazz == Integer.class)
+        {
+            return Integer.valueOf(s);
+        }
+        else if (clazz == Long.class)
+        {
+            return Long.valueOf(s);
+        }
+        else if (clazz == Double.class)
+        {
+            return Double.valueOf(s);
+        }
+        else if (clazz == Float.class)
+        {
+            return Float.valueOf(s);
+        }
+        else if (clazz == Short.class)
+        {
+            return Short.valueOf(s);
+        }
+        else if (clazz == Byte.class)
+        {
+            return Byte.valueOf(s);
+        }
+        else if (clazz == BigInteger.class)
+        {
+            return new BigInteger(s);
+        }
+        else if (clazz == BigDecimal.class)
+        {
+            return new BigDecimal(s);
+        }
+
+        // Try to use a string constructor for unknown types.
+        Constructor ctor = clazz.getConstructor(new Class[] { String.class });
+        return ctor.newInstance(new Object[] { s });
+    }
+
+    /**
+     * Compares a string to a normalized string ignoring case and white
+     * space in the former, without creating a normalized copy.
+    **/
+    private static boolean approxEquals(String s, String normalized)
+    {
+        int j = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c))
+            {
+                if ((j == normalized.length())
+                    || (Character.toLowerCase(c) != normalized.charAt(j++)))
+                {
+                    return false;
+                }
+            }
+        }
+        return (j == normalized.length());
+    }
+
+    private static String normalize(String s)
+    {
+        StringBuffer sb = new StringBuffer(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c))
+            {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the string representation of this node to the supplied
+     * string buffer; the result is a valid LDAP filter string.
+     *
+     * @param sb the string buffer to which the node is appended.
+    **/
+    public void toString(StringBuffer sb)
+    {
+        sb.append('(');
+        switch (m_op)
+        {
+            case AND:
+            case OR:
+                sb.append((m_op == AND) ? '&' : '|');
+                for (int i = 0; i < m_children.length; i++)
+                {
+                    m_children[i].toString(sb);
+                }
+                break;
+            case NOT:
+                sb.append('!');
+                m_children[0].toString(sb);
+                break;
+            case PRESENT:
+                sb.append(m_attr).append("=*");
+                break;
+            case SUBSTRING:
+                sb.append(m_attr).append('=');
+                for (int i = 0; i < m_pieces.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        sb.append('*');
+                    }
+                    encode(sb, m_pieces[i]);
+                }
+                break;
+            default:
+                sb.append(m_attr);
+                sb.append((m_op == EQUAL) ? "="
+                    : (m_op == APPROX) ? "~="
+                    : (m_op == GREATER) ? ">=" : "<=");
+                encode(sb, m_value);
+                break;
+        }
+        sb.append(')');
+    }
+
+    private static void encode(StringBuffer sb, String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ((c == '\\') || (c == '*') || (c == '(') || (c == ')'))
+            {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        toString(sb);
+        return sb.toString();
+    }
+
+    private static class CoercedValue
+    {
+        public Class m_class = null;
+        public Object m_value = null;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * A recursive descent parser for the RFC 1960 LDAP filter syntax used
+ * by the OSGi framework. The parser converts a filter string into a tree
+ * of <tt>Node</tt>s that can be evaluated repeatedly without reparsing.
+**/
+public class Parser
+{
+    private String m_filter = null;
+    private int m_pos = 0;
+
+    private Parser(String filter)
+    {
+        m_filter = filter;
+    }
+
+    /**
+     * Parses the supplied filter string.
+     *
+     * @param filter the filter string to parse.
+     * @return the root node of the parsed filter.
+     * @throws InvalidSyntaxException if the filter string is not valid.
+    **/
+    public static Node parse(String filter) throws InvalidSyntaxException
+    {
+        if (filter == null)
+        {
+            throw new InvalidSyntaxException("Filter is null.", filter);
+        }
+        Parser parser = new Parser(filter);
+        parser.skipWhitespace();
+        Node root = parser.parseFilter();
+        parser.skipWhitespace();
+        if (parser.m_pos != filter.length())
+        {
+            throw parser.error("Extraneous trailing characters");
+        }
+        return root;
+    }
+
+    private Node parseFilter() throws InvalidSyntaxException
+    {
+        expect('(');
+        skipWhitespace();
+        Node node = null;
+        switch (peek())
+        {
+            case '&':
+                m_pos++;
+                node = new Node(Node.AND, parseFilterList());
+                break;
+            case '|':
+                m_pos++;
+                node = new Node(Node.OR, parseFilterList());
+                break;
+            case '!':
+                m_pos++;
+                skipWhitespace();
+                node = new Node(Node.NOT, new Node[] { parseFilter() });
+                break;
+            default:
+                node = parseItem();
+                break;
+        }
+        skipWhitespace();
+        expect(')');
+        return node;
+    }
+
+    private Node[] parseFilterList() throws InvalidSyntaxException
+    {
+        List list = new ArrayList();
+        skipWhitespace();
+        while (peek() == '(')
+        {
+            list.add(parseFilter());
+            skipWhitespace();
+        }
+        if (list.size() == 0)
+        {
+            throw error("Empty filter list");
+        }
+        return (Node[]) list.toArray(new Node[list.size()]);
+    }
+
+    private Node parseItem() throws InvalidSyntaxException
+    {
+        int start = m_pos;
+        while ((m_pos < m_filter.length()) && ("=<>~()".indexOf(peek()) < 0))
+        {
+            m_pos++;
+        }
+        String attr = m_filter.substring(start, m_pos).trim();
+        if (attr.length() == 0)
+        {
+            throw error("Missing attribute name");
+        }
+
+        int op = -1;
+        switch (peek())
+        {
+            case '=':
+                op = Node.EQUAL;
+                m_pos++;
+                break;
+            case '~':
+                op = Node.APPROX;
+                m_pos++;
+                expect('=');
+                break;
+            case '>':
+                op = Node.GREATER;
+                m_pos++;
+                expect('=');
+                break;
+            case '<':
+                op = Node.LESS;
+                m_pos++;
+                expect('=');
+                break;
+            default:
+                throw error("Invalid operator");
+        }
+
+        // Parse the value into pieces separated by unescaped
+        // wildcards; a single piece means there were no wildcards.
+        List pieces = new ArrayList();
+        StringBuffer sb = new StringBuffer();
+        while (m_pos < m_filter.length())
+        {
+            char c = m_filter.charAt(m_pos);
+            if (c == ')')
+            {
+                break;
+            }
+            else if (c == '(')
+            {
+                throw error("Unescaped '(' in value");
+            }
+            else if (c == '*')
+            {
+                pieces.add(sb.toString());
+                sb.setLength(0);
+            }
+            else if (c == '\\')
+            {
+                if (++m_pos == m_filter.length())
+                {
+                    throw error("Unterminated escape sequence");
+                }
+                sb.append(m_filter.charAt(m_pos));
+            }
+            else
+            {
+                sb.append(c);
+            }
+            m_pos++;
+        }
+        pieces.add(sb.toString());
+
+        if (pieces.size() == 1)
+        {
+            return new Node(op, attr, (String) pieces.get(0));
+        }
+        else if (op != Node.EQUAL)
+        {
+            throw error("Wildcards are only allowed for equality");
+        }
+        else if ((pieces.size() == 2)
+            && (((String) pieces.get(0)).length() == 0)
+            && (((String) pieces.get(1)).length() == 0))
+        {
+            return new Node(Node.PRESENT, attr, null);
+        }
+        return new Node(attr, (String[]) pieces.toArray(new String[pieces.size()]));
+    }
+
+    private char peek() throws InvalidSyntaxException
+    {
+        if (m_pos >= m_filter.length())
+        {
+            throw error("Unexpected end of filter");
+        }
+        return m_filter.charAt(m_pos);
+    }
+
+    private void expect(char c) throws InvalidSyntaxException
+    {
+        if (peek() != c)
+        {
+            throw error("Expected '" + c + "'");
+        }
+        m_pos++;
+    }
+
+    private void skipWhitespace()
+    {
+        while ((m_pos < m_filter.length())
+            && Character.isWhitespace(m_filter.charAt(m_pos)))
+        {
+            m_pos++;
+        }
+    }
+
+    private InvalidSyntaxException error(String msg)
+    {
+        return new InvalidSyntaxException(
+            msg + " at position " + m_pos + ".", m_filter);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class implements the fixed size thread pools used by the
+ * framework to run bundle code in parallel. Tasks are queued without
+ * bound; the pool's threads are daemon threads, which are created on
+ * demand, are named after the pool and terminate when they have been
+ * idle for the supplied time.
+**/
+public class DaemonThreadPool extends ThreadPoolExecutor
+{
+    /**
+     * Creates a thread pool.
+     *
+     * @param name the name of the pool's threads, to which a sequence
+     *        number is appended.
+     * @param size the number of threads of the pool.
+     * @param keepAliveSeconds the number of seconds after which an
+     *        idle thread terminates.
+    **/
+    public DaemonThreadPool(final String name, int size, long keepAliveSeconds)
+    {
+        super(size, size, keepAliveSeconds, TimeUnit.SECONDS,
+            new LinkedBlockingQueue(), new ThreadFactory() {
+                private int m_count = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, name + " " + (++m_count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        allowCoreThreadTimeOut(true);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class parses manifest headers that consist of comma separated
+ * clauses, where each clause consists of one or more semicolon separated
+ * names followed by semicolon separated <tt>key=value</tt> parameters,
+ * for example:
+ * <pre>
+ *  com.acme.foo; com.acme.bar; version="1.0", com.acme.baz
+ * </pre>
+ * Values may be quoted with double quotes, in which case they may
+ * contain commas and semicolons. The <tt>key:=value</tt> form is
+ * accepted as well and treated like a normal parameter.
+**/
+public class HeaderParser
+{
+    /**
+     * Parses the supplied header value.
+     *
+     * @param header the header value to parse.
+     * @return an array of the clauses of the header, which is empty if
+     *         the header is <tt>null</tt> or empty.
+     * @throws IllegalArgumentException if the header is malformed.
+    **/
+    public static Clause[] parse(String header)
+    {
+        if (header == null)
+        {
+            return new Clause[0];
+        }
+
+        List clauses = new ArrayList();
+        List pieces = split(header, ',');
+        for (int i = 0; i < pieces.size(); i++)
+        {
+            String piece = ((String) pieces.get(i)).trim();
+            if (piece.length() == 0)
+            {
+                continue;
+            }
+            List names = new ArrayList();
+            Map params = new LinkedHashMap();
+            List parts = split(piece, ';');
+            for (int j = 0; j < parts.size(); j++)
+            {
+                String part = ((String) parts.get(j)).trim();
+                int idx = part.indexOf('=');
+                if (idx < 0)
+                {
+                    if (params.size() > 0)
+                    {
+                        throw new IllegalArgumentException(
+                            "Names must precede parameters: " + piece);
+                    }
+                    else if (part.length() == 0)
+                    {
+                        throw new IllegalArgumentException(
+                            "Empty name in clause: " + piece);
+                    }
+                    names.add(part);
+                    continue;
+                }
+                String key = part.substring(0, (idx > 0) && (part.charAt(idx - 1) == ':')
+                    ? idx - 1 : idx).trim();
+                String value = part.substring(idx + 1).trim();
+                if (key.length() == 0)
+                {
+                    throw new IllegalArgumentException(
+                        "Empty parameter name in clause: " + piece);
+                }
+                if ((value.length() >= 2) && value.startsWith("\"") && value.endsWith("\""))
+                {
+                    value = value.substring(1, value.length() - 1);
+                }
+                params.put(key, value);
+            }
+            if (names.size() == 0)
+            {
+                throw new IllegalArgumentException("Clause has no name: " + piece);
+            }
+            clauses.add(new Clause(
+                (String[]) names.toArray(new String[names.size()]), params));
+        }
+        return (Clause[]) clauses.toArray(new Clause[clauses.size()]);
+    }
+
+    /**
+     * Splits a comma separated list, such as a parameter value, into its
+     * trimmed, non-empty elements.
+     *
+     * @param value the list to split or <tt>null</tt>.
+     * @return an array of the list elements.
+    **/
+    public static String[] parseList(String value)
+    {
+        if (value == null)
+        {
+            return new String[0];
+        }
+        List list = new ArrayList();
+        List pieces = split(value, ',');
+        for (int i = 0; i < pieces.size(); i++)
+        {
+            String piece = ((String) pieces.get(i)).trim();
+            if (piece.length() > 0)
+            {
+                list.add(piece);
+            }
+        }
+        return (String[]) list.toArray(new String[list.size()]);
+    }
+
+    private static List split(String s, char delim)
+    {
+        List list = new ArrayList();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"')
+            {
+                quoted = !quoted;
+            }
+            else if ((c == delim) && !quoted)
+            {
+                list.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (quoted)
+        {
+            throw new IllegalArgumentException("Unterminated quote: " + s);
+        }
+        list.add(s.substring(start));
+        return list;
+    }
+
+    /**
+     * A clause of a manifest header.
+    **/
+    public static class Clause
+    {
+        private String[] m_names = null;
+        private Map m_params = null;
+
+        Clause(String[] names, Map params)
+        {
+            m_names = names;
+            m_params = Collections.unmodifiableMap(params);
+        }
+
+        /**
+         * Returns the names of the clause.
+         *
+         * @return an array containing at least one name.
+        **/
+        public String[] getNames()
+        {
+            return m_names.clone();
+        }
+
+        /**
+         * Returns the first name of the clause.
+         *
+         * @return the first name.
+        **/
+        public String getName()
+        {
+            return m_names[0];
+        }
+
+        /**
+         * Returns the value of the named parameter.
+         *
+         * @param key the parameter name.
+         * @return the unquoted parameter value or <tt>null</tt>.
+        **/
+        public String getParameter(String key)
+        {
+            return (String) m_params.get(key);
+        }
+
+        /**
+         * Returns the parameters of the clause.
+         *
+         * @return an unmodifiable map of parameter names to values.
+        **/
+        public Map getParameters()
+        {
+            return m_params;
+        }
+    }
+}
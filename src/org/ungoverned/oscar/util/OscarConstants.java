@@ -0,0 +1,215 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.util;
+
+/**
+ * This class defines the names of the Oscar-specific configuration
+ * properties, which are either passed into the <tt>Oscar</tt>
+ * constructor or defined as system properties.
+**/
+public class OscarConstants
+{
+    /**
+     * Comma or whitespace separated list of service property names for
+     * which the service registry maintains an inverted index, e.g.,
+     * <tt>tenant, region</tt>. Equality terms on these properties in
+     * look up and listener filters are answered from the index before
+     * evaluating the complete filter. The <tt>objectClass</tt> property
+     * is always indexed.
+    **/
+    public static final String SERVICE_INDEX_ATTRIBUTES_PROP =
+        "oscar.service.index.attributes";
+
+    /**
+     * The directory in which installed bundles are stored; each bundle
+     * is stored in its own sub-directory. The default is the
+     * <tt>.oscar/cache</tt> directory in the user's home directory.
+    **/
+    public static final String CACHE_DIR_PROP = "oscar.cache.dir";
+
+    /**
+     * The manifest header declaring the components of a bundle, which
+     * are managed by the framework's component runtime. Each clause
+     * names a component implementation class and may specify the
+     * following parameters:
+     * <ul>
+     *   <li><tt>name</tt> - the component name, which defaults to the
+     *       implementation class name.</li>
+     *   <li><tt>provide</tt> - a comma separated list of the service
+     *       classes under which the component is registered.</li>
+     *   <li><tt>require</tt> - a comma separated list of the service
+     *       classes the component depends on; the component is only
+     *       registered or activated while all of them are available.</li>
+     *   <li><tt>immediate</tt> - whether a component that provides
+     *       services is activated as soon as it is satisfied, instead
+     *       of when its service is first requested; components that
+     *       provide no services are always immediate.</li>
+     * </ul>
+     * For example:
+     * <pre>
+     *  Oscar-Component: com.acme.impl.FooImpl; provide=com.acme.Foo;
+     *   require="com.acme.Bar,com.acme.Baz"
+     * </pre>
+    **/
+    public static final String COMPONENT_HEADER = "Oscar-Component";
+
+    /**
+     * The manifest header declaring the activation policy of a bundle.
+     * A bundle with the <tt>lazy</tt> policy is not activated when it
+     * is started; it stays in the <tt>STARTING</tt> state until the
+     * first class is loaded from it, which triggers the call of its
+     * activator. The <tt>include</tt> and <tt>exclude</tt> parameters
+     * restrict the packages whose classes trigger the activation to a
+     * comma separated list, for example:
+     * <pre>
+     *  Bundle-ActivationPolicy: lazy; exclude:="com.acme.api"
+     * </pre>
+    **/
+    public static final String ACTIVATION_POLICY_HEADER = "Bundle-ActivationPolicy";
+
+    /**
+     * The value of the <tt>Bundle-ActivationPolicy</tt> header for lazy
+     * activation.
+    **/
+    public static final String ACTIVATION_LAZY = "lazy";
+
+    /**
+     * The maximum number of threads the component runtime uses to
+     * activate immediate components; the default is the number of
+     * available processors.
+    **/
+    public static final String COMPONENT_THREADS_PROP = "oscar.component.threads";
+
+    /**
+     * Comma or whitespace separated list of service class names whose
+     * services are handed out as instrumented proxies recording call
+     * counts and latencies, or <tt>*</tt> for all services. Only services
+     * registered under interfaces can be proxied. Proxies are not created
+     * if this property is not set.
+    **/
+    public static final String SERVICE_PROXY_CLASSES_PROP = "oscar.service.proxy.classes";
+
+    /**
+     * Whether instrumented service proxies record calls initially; the
+     * default is <tt>true</tt>. Recording can be switched at run time
+     * with <tt>Oscar.setServiceMetricsEnabled()</tt>.
+    **/
+    public static final String SERVICE_METRICS_ENABLED_PROP = "oscar.service.metrics.enabled";
+
+    /**
+     * The prefix of the properties listing the bundles to install and
+     * start when the framework starts. The property
+     * <tt>oscar.auto.start.&lt;n&gt;</tt> lists the whitespace separated
+     * locations of the bundles to start at start level <tt>&lt;n&gt;</tt>.
+     * Start levels are processed in ascending order, while the bundles of
+     * a level are started in parallel.
+    **/
+    public static final String AUTO_START_PROP = "oscar.auto.start";
+
+    /**
+     * The maximum number of threads used to install and start the
+     * bundles listed by the <tt>oscar.auto.start.&lt;n&gt;</tt>
+     * properties; the default is the number of available processors.
+    **/
+    public static final String AUTO_START_THREADS_PROP = "oscar.auto.start.threads";
+
+    /**
+     * The file from which the launcher reads the framework's
+     * configuration properties; the default is <tt>system.properties</tt>
+     * in the current directory.
+    **/
+    public static final String SYSTEM_PROPERTIES_PROP = "oscar.system.properties";
+
+    /**
+     * The time in milliseconds a bundle activator's start or stop method
+     * may take. If it is set, activators are called on a bounded pool of
+     * activator threads; an activator that does not return in time fails
+     * the start or stop of its bundle with a framework event of type
+     * <tt>ERROR</tt>, which carries the stack trace of the stuck thread.
+     * By default, activators are called on the calling thread without a
+     * time limit.
+    **/
+    public static final String ACTIVATOR_TIMEOUT_PROP = "oscar.activator.timeout";
+
+    /**
+     * The manifest header with which a bundle overrides the activator
+     * timeout in milliseconds for its own activator; a value of zero
+     * calls the activator on the calling thread without a time limit.
+    **/
+    public static final String ACTIVATOR_TIMEOUT_HEADER = "Oscar-ActivatorTimeout";
+
+    /**
+     * The maximum number of activator threads used when an activator
+     * timeout is set; the default is the number of available processors.
+     * Threads of activators that timed out and have not returned yet are
+     * not counted, since they are replaced by additional threads.
+    **/
+    public static final String ACTIVATOR_THREADS_PROP = "oscar.activator.threads";
+
+    /**
+     * The file to which a timeline of the framework's start is written,
+     * in the trace event JSON format of Chrome's trace viewer. The
+     * timeline records bundle installs, manifest parsing, package
+     * resolution, class loader creation, bundle starts and activator
+     * calls, service registrations, and event deliveries. No timeline
+     * is recorded if this property is not set.
+    **/
+    public static final String PROFILE_FILE_PROP = "oscar.profile.file";
+
+    /**
+     * Whether the timeline is recorded after the framework has started
+     * as well; the default is <tt>false</tt>. If it is <tt>true</tt>, the
+     * timeline file is written again when the framework shuts down.
+    **/
+    public static final String PROFILE_RUNTIME_PROP = "oscar.profile.runtime";
+
+    /**
+     * The start level assigned to newly installed bundles; the default
+     * is 1. Bundles that are persistently started are restarted in
+     * order of their start levels when the framework is restarted.
+    **/
+    public static final String BUNDLE_START_LEVEL_PROP = "oscar.startlevel.bundle";
+
+    /**
+     * The type of the service event delivered to a service listener
+     * when the properties of a service were modified and the service no
+     * longer matches the listener's filter, although it matched before
+     * the modification. This event type is not defined by the OSGi
+     * release 3 specification, so it is defined here; listeners that do
+     * not know the type should simply ignore it.
+    **/
+    public static final int SERVICE_MODIFIED_ENDMATCH = 0x00000008;
+}
@@ -0,0 +1,514 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class tracks the services that match a filter and keeps the
+ * object associated with each tracked service, so that users do not
+ * have to look up services repeatedly or write their own service
+ * listeners, for example:
+ * <pre>
+ *  ServiceTracker tracker = new ServiceTracker(context, Foo.class.getName(), null);
+ *  tracker.open();
+ *  ...
+ *  Foo foo = (Foo) tracker.getService();
+ * </pre>
+ * The tracker registers a service listener with the tracked filter; for
+ * trackers created with a class name, the filter only tests the
+ * <tt>objectClass</tt> property, which allows the framework to route
+ * events to the tracker using its class name index.
+ * <p>
+ * The set of tracked services is kept as an immutable array sorted by
+ * service ranking (highest first) and then service id (lowest first).
+ * Events replace the array while holding the tracker's lock, but the
+ * accessor methods only read the current array, so they never block and
+ * <tt>getService()</tt> and <tt>getServiceReference()</tt> run in
+ * constant time. The customizer is always called without holding the
+ * lock, so that it may call back into the framework; services whose
+ * <tt>addingService()</tt> call is still in progress are remembered,
+ * so that a service unregistered meanwhile is removed again as soon as
+ * the call returns.
+ * <p>
+ * By default, the tracker gets the service object of each tracked
+ * service from the framework; a <tt>ServiceTrackerCustomizer</tt> can
+ * be supplied to change this, or the tracker can be subclassed.
+**/
+public class ServiceTracker implements ServiceTrackerCustomizer
+{
+    private static final Tracked[] m_emptyList = new Tracked[0];
+
+    private BundleContext m_context = null;
+    private String m_filter = null;
+    private ServiceTrackerCustomizer m_customizer = null;
+    private ServiceListener m_listener = null;
+
+    // Lock guarding the tracked services and the services being added.
+    private final Object m_eventLock = new Object();
+    // References whose addingService() call is in progress.
+    private Set m_adding = new HashSet();
+    // Tracked services sorted by ranking.
+    private volatile Tracked[] m_tracked = m_emptyList;
+    // Number of changes to the tracked services.
+    private volatile int m_trackingCount = 0;
+
+    /**
+     * Creates a tracker for the services registered under the supplied
+     * class name.
+     *
+     * @param context the bundle context used to track services.
+     * @param className the class name of the services to track.
+     * @param customizer the customizer or <tt>null</tt> to use the
+     *        tracker itself as the customizer.
+    **/
+    public ServiceTracker(
+        BundleContext context, String className,
+        ServiceTrackerCustomizer customizer)
+    {
+        m_context = context;
+        m_filter = "(" + Constants.OBJECTCLASS + "=" + className + ")";
+        m_customizer = (customizer == null) ? this : customizer;
+    }
+
+    /**
+     * Creates a tracker for the services matching the supplied filter.
+     *
+     * @param context the bundle context used to track services.
+     * @param filter the filter of the services to track.
+     * @param customizer the customizer or <tt>null</tt> to use the
+     *        tracker itself as the customizer.
+    **/
+    public ServiceTracker(
+        BundleContext context, Filter filter,
+        ServiceTrackerCustomizer customizer)
+    {
+        m_context = context;
+        m_filter = filter.toString();
+        m_customizer = (customizer == null) ? this : customizer;
+    }
+
+    /**
+     * Starts tracking services; services that are already registered
+     * are tracked immediately.
+    **/
+    public void open()
+    {
+        ServiceListener listener = null;
+        synchronized (m_eventLock)
+        {
+            if (m_listener != null)
+            {
+                return;
+            }
+            listener = new ServiceListener() {
+                public void serviceChanged(ServiceEvent event)
+                {
+                    ServiceTracker.this.serviceChanged(event);
+                }
+            };
+            m_listener = listener;
+        }
+
+        ServiceReference[] refs = null;
+        try
+        {
+            // Add the listener before getting the current services,
+            // so that no registrations are missed.
+            m_context.addServiceListener(listener, m_filter);
+            refs = m_context.getServiceReferences(null, m_filter);
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            synchronized (m_eventLock)
+            {
+                m_listener = null;
+            }
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+
+        for (int i = 0; (refs != null) && (i < refs.length); i++)
+        {
+            // Unregistered services have no bundle.
+            if (refs[i].getBundle() != null)
+            {
+                track(refs[i]);
+            }
+        }
+    }
+
+    /**
+     * Stops tracking services; all tracked services are removed.
+    **/
+    public void close()
+    {
+        ServiceListener listener = null;
+        Tracked[] tracked = null;
+        synchronized (m_eventLock)
+        {
+            if (m_listener == null)
+            {
+                return;
+            }
+            listener = m_listener;
+            m_listener = null;
+            tracked = m_tracked;
+            m_tracked = m_emptyList;
+            m_trackingCount++;
+        }
+
+        m_context.removeServiceListener(listener);
+        for (int i = 0; i < tracked.length; i++)
+        {
+            m_customizer.removedService(tracked[i].m_ref, tracked[i].m_svcObj);
+        }
+    }
+
+    /**
+     * Returns the reference of the tracked service with the highest
+     * ranking.
+     *
+     * @return the reference or <tt>null</tt> if no service is tracked.
+    **/
+    public ServiceReference getServiceReference()
+    {
+        Tracked[] tracked = m_tracked;
+        return (tracked.length == 0) ? null : tracked[0].m_ref;
+    }
+
+    /**
+     * Returns the object associated with the tracked service with the
+     * highest ranking.
+     *
+     * @return the object or <tt>null</tt> if no service is tracked.
+    **/
+    public Object getService()
+    {
+        Tracked[] tracked = m_tracked;
+        return (tracked.length == 0) ? null : tracked[0].m_svcObj;
+    }
+
+    /**
+     * Returns the object associated with the supplied tracked service.
+     *
+     * @param ref the reference of the tracked service.
+     * @return the object or <tt>null</tt> if the service is not tracked.
+    **/
+    public Object getService(ServiceReference ref)
+    {
+        Tracked[] tracked = m_tracked;
+        for (int i = 0; i < tracked.length; i++)
+        {
+            if (tracked[i].m_ref.equals(ref))
+            {
+                return tracked[i].m_svcObj;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the references of all tracked services sorted by ranking.
+     *
+     * @return an array of references or <tt>null</tt> if no service
+     *         is tracked.
+    **/
+    public ServiceReference[] getServiceReferences()
+    {
+        Tracked[] tracked = m_tracked;
+        if (tracked.length == 0)
+        {
+            return null;
+        }
+        ServiceReference[] refs = new ServiceReference[tracked.length];
+        for (int i = 0; i < tracked.length; i++)
+        {
+            refs[i] = tracked[i].m_ref;
+        }
+        return refs;
+    }
+
+    /**
+     * Returns the objects associated with all tracked services sorted
+     * by ranking.
+     *
+     * @return an array of objects or <tt>null</tt> if no service
+     *         is tracked.
+    **/
+    public Object[] getServices()
+    {
+        Tracked[] tracked = m_tracked;
+        if (tracked.length == 0)
+        {
+            return null;
+        }
+        Object[] svcObjs = new Object[tracked.length];
+        for (int i = 0; i < tracked.length; i++)
+        {
+            svcObjs[i] = tracked[i].m_svcObj;
+        }
+        return svcObjs;
+    }
+
+    /**
+     * Returns the number of tracked services.
+     *
+     * @return the number of tracked services.
+    **/
+    public int size()
+    {
+        return m_tracked.length;
+    }
+
+    /**
+     * Returns a counter that is incremented whenever the tracked
+     * services change, which allows callers to cheaply detect changes.
+     *
+     * @return the tracking count.
+    **/
+    public int getTrackingCount()
+    {
+        return m_trackingCount;
+    }
+
+    //
+    // ServiceTrackerCustomizer methods.
+    //
+
+    public Object addingService(ServiceReference ref)
+    {
+        return m_context.getService(ref);
+    }
+
+    public void modifiedService(ServiceReference ref, Object svcObj)
+    {
+    }
+
+    public void removedService(ServiceReference ref, Object svcObj)
+    {
+        m_context.ungetService(ref);
+    }
+
+    //
+    // Event processing methods.
+    //
+
+    private void serviceChanged(ServiceEvent event)
+    {
+        ServiceReference ref = event.getServiceReference();
+        switch (event.getType())
+        {
+            case ServiceEvent.REGISTERED:
+                track(ref);
+                break;
+            case ServiceEvent.MODIFIED:
+                modified(ref);
+                break;
+            case ServiceEvent.UNREGISTERING:
+            case OscarConstants.SERVICE_MODIFIED_ENDMATCH:
+                untrack(ref);
+                break;
+        }
+    }
+
+    private void track(ServiceReference ref)
+    {
+        synchronized (m_eventLock)
+        {
+            // Ignore events that arrive after closing.
+            if ((m_listener == null) || (find(ref) >= 0) || !m_adding.add(ref))
+            {
+                return;
+            }
+        }
+
+        Object svcObj = null;
+        try
+        {
+            svcObj = m_customizer.addingService(ref);
+        }
+        finally
+        {
+            boolean removed = false;
+            synchronized (m_eventLock)
+            {
+                // The reference is no longer in the set if the service
+                // was removed while it was being added.
+                removed = !m_adding.remove(ref) || (m_listener == null);
+                if ((svcObj != null) && !removed)
+                {
+                    m_tracked = insert(m_tracked, new Tracked(ref, svcObj));
+                    m_trackingCount++;
+                }
+            }
+            if ((svcObj != null) && removed)
+            {
+                m_customizer.removedService(ref, svcObj);
+            }
+        }
+    }
+
+    private void modified(ServiceReference ref)
+    {
+        Object svcObj = null;
+        synchronized (m_eventLock)
+        {
+            if ((m_listener == null) || m_adding.contains(ref))
+            {
+                return;
+            }
+            int idx = find(ref);
+            if (idx >= 0)
+            {
+                // The ranking may have changed, so re-sort.
+                svcObj = m_tracked[idx].m_svcObj;
+                m_tracked = insert(remove(m_tracked, idx),
+                    new Tracked(ref, svcObj));
+                m_trackingCount++;
+            }
+        }
+
+        if (svcObj == null)
+        {
+            track(ref);
+        }
+        else
+        {
+            m_customizer.modifiedService(ref, svcObj);
+        }
+    }
+
+    private void untrack(ServiceReference ref)
+    {
+        Object svcObj = null;
+        synchronized (m_eventLock)
+        {
+            if (m_adding.remove(ref))
+            {
+                // The adding thread removes the service when it is done.
+                return;
+            }
+            int idx = find(ref);
+            if (idx < 0)
+            {
+                return;
+            }
+            svcObj = m_tracked[idx].m_svcObj;
+            m_tracked = remove(m_tracked, idx);
+            m_trackingCount++;
+        }
+        m_customizer.removedService(ref, svcObj);
+    }
+
+    private int find(ServiceReference ref)
+    {
+        Tracked[] tracked = m_tracked;
+        for (int i = 0; i < tracked.length; i++)
+        {
+            if (tracked[i].m_ref.equals(ref))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Tracked[] insert(Tracked[] tracked, Tracked t)
+    {
+        // Find the insertion point to keep the array sorted.
+        int idx = 0;
+        while ((idx < tracked.length) && (tracked[idx].compareTo(t) < 0))
+        {
+            idx++;
+        }
+        Tracked[] newList = new Tracked[tracked.length + 1];
+        System.arraycopy(tracked, 0, newList, 0, idx);
+        newList[idx] = t;
+        System.arraycopy(tracked, idx, newList, idx + 1, tracked.length - idx);
+        return newList;
+    }
+
+    private static Tracked[] remove(Tracked[] tracked, int idx)
+    {
+        if (tracked.length == 1)
+        {
+            return m_emptyList;
+        }
+        Tracked[] newList = new Tracked[tracked.length - 1];
+        System.arraycopy(tracked, 0, newList, 0, idx);
+        System.arraycopy(tracked, idx + 1, newList, idx, newList.length - idx);
+        return newList;
+    }
+
+    private static class Tracked
+    {
+        public final ServiceReference m_ref;
+        public final Object m_svcObj;
+        public final int m_ranking;
+        public final long m_serviceId;
+
+        public Tracked(ServiceReference ref, Object svcObj)
+        {
+            m_ref = ref;
+            m_svcObj = svcObj;
+            Object rank = ref.getProperty(Constants.SERVICE_RANKING);
+            m_ranking = (rank instanceof Integer) ? ((Integer) rank).intValue() : 0;
+            m_serviceId = ((Long) ref.getProperty(Constants.SERVICE_ID)).longValue();
+        }
+
+        /**
+         * Orders by descending ranking and then ascending service id.
+        **/
+        public int compareTo(Tracked t)
+        {
+            if (m_ranking != t.m_ranking)
+            {
+                return (m_ranking > t.m_ranking) ? -1 : 1;
+            }
+            return (m_serviceId < t.m_serviceId) ? -1
+                : (m_serviceId > t.m_serviceId) ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Oscar - An implementation of the OSGi framework.
+ * Copyright (c) 2004, Richard S. Hall
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *  
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in
+ *     the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of the ungoverned.org nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *  
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Contact: Richard S. Hall (heavy@ungoverned.org)
+ * Contributor(s):
+ * 
+**/
+package org.ungoverned.oscar.util;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This interface allows a <tt>ServiceTracker</tt> user to customize
+ * which services are tracked and the service objects associated with
+ * them. All methods are called with the tracker's event lock held, so
+ * calls for the same tracker are never concurrent.
+**/
+public interface ServiceTrackerCustomizer
+{
+    /**
+     * Called when a matching service is about to be tracked.
+     *
+     * @param ref the reference of the service to track.
+     * @return the object to associate with the service or <tt>null</tt>
+     *         if the service should not be tracked.
+    **/
+    public Object addingService(ServiceReference ref);
+
+    /**
+     * Called when the properties of a tracked service were modified.
+     *
+     * @param ref the reference of the modified service.
+     * @param svcObj the object associated with the service.
+    **/
+    public void modifiedService(ServiceReference ref, Object svcObj);
+
+    /**
+     * Called when a tracked service is no longer tracked.
+     *
+     * @param ref the reference of the removed service.
+     * @param svcObj the object associated with the service.
+    **/
+    public void removedService(ServiceReference ref, Object svcObj);
+}